@@ -0,0 +1,76 @@
+package kvstore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Skewed reads with the near-cache for hot keys off and on: gets alone and a 90% get /
+// 10% put mix over the Zipf trace and store of HotKeyReport, which also reports the hot
+// keys found and the load spread over the nodes.
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotKeyBenchmark {
+
+    @Param({ "1.2" })
+    double exponent;
+
+    @Param({ "false", "true" })
+    boolean nearCache;
+
+    @Param({ "64" })
+    int maxHotKeys;
+
+    @Param({ "16" })
+    int sampleRate;
+
+    private ConsistentHashKVStore store;
+    private String[] values;
+    private int[] trace;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = ThreadLocalRandom.current().nextInt(HotKeyReport.TRACE_LENGTH);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = HotKeyReport.createStore();
+        if (nearCache) {
+            store.enableNearCache(maxHotKeys, HotKeyReport.MIN_SHARE, sampleRate);
+        }
+        trace = HotKeyReport.trace(new ZipfDistribution(HotKeyReport.KEYS, exponent));
+        values = new String[HotKeyReport.KEYS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "value" + i;
+        }
+    }
+
+    @Benchmark
+    public String get(Cursor cursor) {
+        return store.get(trace[cursor.next++ & (HotKeyReport.TRACE_LENGTH - 1)]);
+    }
+
+    @Benchmark
+    public String getPut(Cursor cursor) {
+        int key = trace[cursor.next++ & (HotKeyReport.TRACE_LENGTH - 1)];
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            store.put(key, values[key]);
+            return null;
+        }
+        return store.get(key);
+    }
+}
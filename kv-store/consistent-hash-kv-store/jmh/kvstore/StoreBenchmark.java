@@ -0,0 +1,116 @@
+package kvstore;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Baseline for the hot paths of ConsistentHashKVStore: get, put and getCacheNodes across
+// ring sizes and key distributions. Throughput mode gives calls per microsecond, sample
+// mode the latency percentiles, and -prof gc, on by default in the build, the bytes
+// allocated per call. Thread counts are chosen per run with -t.
+//
+// Key distributions:
+//   uniform     keys drawn uniformly from the key space
+//   zipf        keys drawn from a Zipf distribution with exponent 0.99
+//   sequential  every thread walks the key space in order
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+
+    private static final int KEYS = 100_000;
+    private static final int REPLICATION_FACTOR = 2;
+    private static final int TRACE_LENGTH = 1 << 20;
+
+    @Param({ "10", "100", "1000" })
+    int nodes;
+
+    @Param({ "uniform", "zipf", "sequential" })
+    String keys;
+
+    private ConsistentHashKVStore store;
+    private String[] values;
+    private int[] trace;
+
+    // Position of one thread in the trace, starting at a random offset so that threads do
+    // not walk it in lockstep
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = ThreadLocalRandom.current().nextInt(TRACE_LENGTH);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new ConsistentHashKVStore(REPLICATION_FACTOR);
+        for (int i = REPLICATION_FACTOR + 1; i < nodes; i++) {
+            store.addCache(store.newCache());
+        }
+        int[] all = new int[KEYS];
+        values = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            all[i] = i;
+            values[i] = "value" + i;
+        }
+        store.putAll(all, values);
+        trace = trace(keys);
+    }
+
+    @Benchmark
+    public String get(Cursor cursor) {
+        return store.get(trace[cursor.next++ & (TRACE_LENGTH - 1)]);
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) {
+        int key = trace[cursor.next++ & (TRACE_LENGTH - 1)];
+        store.put(key, values[key]);
+    }
+
+    @Benchmark
+    public ConsistentHashKVStore.Cache[] getCacheNodes(Cursor cursor) {
+        return store.getCacheNodes(trace[cursor.next++ & (TRACE_LENGTH - 1)]);
+    }
+
+    private static int[] trace(String distribution) {
+        int[] trace = new int[TRACE_LENGTH];
+        switch (distribution) {
+            case "uniform": {
+                Random random = new Random(1);
+                for (int i = 0; i < trace.length; i++) {
+                    trace[i] = random.nextInt(KEYS);
+                }
+                break;
+            }
+            case "zipf": {
+                ZipfDistribution zipf = new ZipfDistribution(KEYS, 0.99);
+                Random random = new Random(2);
+                for (int i = 0; i < trace.length; i++) {
+                    trace[i] = zipf.sample(random);
+                }
+                break;
+            }
+            case "sequential":
+                for (int i = 0; i < trace.length; i++) {
+                    trace[i] = i % KEYS;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+        }
+        return trace;
+    }
+}
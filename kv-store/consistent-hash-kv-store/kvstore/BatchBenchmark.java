@@ -0,0 +1,107 @@
+package kvstore;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Measures the per-key cost of getAll and putAll for growing batch sizes against a loop of
+// single-key gets. Batches resolve all of their keys against the ring in one pass and make
+// one engine call per node, so the fixed costs are shared by more keys as batches grow.
+//
+// Usage: java BatchBenchmark [nodes] [keys] [replicationFactor]
+public class BatchBenchmark {
+
+    private static final int[] BATCH_SIZES = { 1, 10, 100, 1000 };
+    // Keys touched per measurement
+    private static final int OPERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int replicationFactor = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        ConsistentHashKVStore store = new ConsistentHashKVStore(replicationFactor,
+                ConsistentHashRing.DEFAULT_VIRTUAL_NODES, PrimitiveStorageEngine::new);
+        for (int i = store.getCacheNodes(0).length; i < nodes; i++) {
+            store.addCache(store.newCache());
+        }
+        int[] all = new int[keyCount];
+        String[] values = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            all[i] = i;
+            values[i] = "value" + i;
+        }
+        store.putAll(all, values);
+        store.awaitRebalance(1, TimeUnit.MINUTES);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            System.out.println("Nodes: " + nodes + ", keys: " + keyCount + ", replication factor: "
+                    + replicationFactor + ", cores: " + Runtime.getRuntime().availableProcessors());
+            System.out.printf("%-8s %12s %12s %14s %12s%n",
+                    "batch", "get ns/key", "getAll", "getAll par", "putAll");
+            Random random = new Random(42);
+            // Warm up every path before measuring
+            for (int batchSize : BATCH_SIZES) {
+                measure(store, null, batchSize, keyCount, random);
+            }
+            for (int batchSize : BATCH_SIZES) {
+                double[] result = measure(store, executor, batchSize, keyCount, random);
+                System.out.printf("%-8d %12.1f %12.1f %14.1f %12.1f%n",
+                        batchSize, result[0], result[1], result[2], result[3]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // ns/key of single gets, getAll, parallel getAll and putAll for one batch size
+    private static double[] measure(ConsistentHashKVStore store, ExecutorService executor, int batchSize,
+            int keyCount, Random random) {
+        int batches = Math.max(1, OPERATIONS / batchSize);
+        int[][] keys = new int[batches][batchSize];
+        String[][] values = new String[batches][batchSize];
+        for (int b = 0; b < batches; b++) {
+            for (int i = 0; i < batchSize; i++) {
+                keys[b][i] = random.nextInt(keyCount);
+                values[b][i] = "value" + keys[b][i];
+            }
+        }
+        long operations = (long) batches * batchSize;
+        long sink = 0;
+
+        long start = System.nanoTime();
+        for (int b = 0; b < batches; b++) {
+            for (int key : keys[b]) {
+                sink += store.get(key).length();
+            }
+        }
+        double single = (double) (System.nanoTime() - start) / operations;
+
+        start = System.nanoTime();
+        for (int b = 0; b < batches; b++) {
+            sink += store.getAll(keys[b])[0].length();
+        }
+        double batched = (double) (System.nanoTime() - start) / operations;
+
+        double parallel = Double.NaN;
+        if (executor != null) {
+            start = System.nanoTime();
+            for (int b = 0; b < batches; b++) {
+                sink += store.getAll(keys[b], executor)[0].length();
+            }
+            parallel = (double) (System.nanoTime() - start) / operations;
+        }
+
+        start = System.nanoTime();
+        for (int b = 0; b < batches; b++) {
+            store.putAll(keys[b], values[b]);
+        }
+        double writes = (double) (System.nanoTime() - start) / operations;
+
+        if (sink == 0) {
+            throw new IllegalStateException("Lost all values");
+        }
+        return new double[] { single, batched, parallel, writes };
+    }
+}
@@ -0,0 +1,106 @@
+package kvstore;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Replays Zipf-distributed reads against stores with and without bounded loads and reports
+// how evenly the requests spread over the nodes: the max/mean and min/mean ratio of
+// requests per node, the share of reads served by a node other than the key's primary
+// owner, and how many keys were moved onto spill nodes to serve them.
+//
+// Usage: java BoundedLoadSimulation [nodes] [keys] [requests] [zipfExponent] [epsilons]
+public class BoundedLoadSimulation {
+
+    private static final int REPLICATION_FACTOR = 2;
+    private static final int SPILL_NODES = 8;
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 2_000_000;
+        double exponent = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        String epsilons = args.length > 4 ? args[4] : "1.0,0.5,0.25,0.1";
+
+        ZipfDistribution zipf = new ZipfDistribution(keys, exponent);
+        System.out.printf("Nodes: %d, keys: %d, requests: %d, zipf exponent: %.2f, hottest key: %.1f%% of reads%n",
+                nodes, keys, requests, exponent, zipf.probability(0) * 100);
+        System.out.printf("%-10s %10s %10s %12s %14s%n", "epsilon", "max/mean", "min/mean", "spilled", "keys moved");
+        simulate("off", -1, nodes, keys, requests, zipf);
+        for (String epsilon : epsilons.split(",")) {
+            simulate(epsilon, Double.parseDouble(epsilon), nodes, keys, requests, zipf);
+        }
+    }
+
+    private static void simulate(String label, double epsilon, int nodes, int keys, int requests,
+            ZipfDistribution zipf) {
+        ConsistentHashKVStore store = createStore(nodes, keys);
+        if (epsilon >= 0) {
+            store.setBoundedLoad(epsilon, SPILL_NODES);
+            store.setLoadWindow(100, TimeUnit.MILLISECONDS);
+        }
+        List<ConsistentHashKVStore.Cache> caches = store.getCaches();
+        long[] before = new long[caches.size()];
+        long entriesBefore = 0;
+        for (int i = 0; i < before.length; i++) {
+            before[i] = caches.get(i).requestCount();
+            entriesBefore += caches.get(i).size();
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < requests; i++) {
+            int key = zipf.sample(random);
+            if (store.get(key) == null) {
+                throw new IllegalStateException("Lost key " + key);
+            }
+        }
+
+        long max = 0;
+        long min = Long.MAX_VALUE;
+        long entriesAfter = 0;
+        for (int i = 0; i < before.length; i++) {
+            long served = caches.get(i).requestCount() - before[i];
+            max = Math.max(max, served);
+            min = Math.min(min, served);
+            entriesAfter += caches.get(i).size();
+        }
+        double mean = (double) requests / nodes;
+        System.out.printf("%-10s %10.3f %10.3f %11.1f%% %14d%n", label, max / mean, min / mean,
+                100.0 * store.spilledReadCount() / requests, entriesAfter - entriesBefore);
+        checkWritesReachSpillCopies(store);
+    }
+
+    // The hottest key now has copies on spill nodes; a single write and a batch write must
+    // both replace them, or reads served by those nodes return the old value
+    private static void checkWritesReachSpillCopies(ConsistentHashKVStore store) {
+        store.put(0, "put");
+        checkReads(store, "put");
+        store.putAll(new int[] { 0 }, new String[] { "putAll" });
+        checkReads(store, "putAll");
+        store.put(0, "value0");
+    }
+
+    private static void checkReads(ConsistentHashKVStore store, String expected) {
+        for (int i = 0; i < 1000; i++) {
+            String value = store.get(0);
+            if (!expected.equals(value)) {
+                throw new IllegalStateException("Read " + value + " after writing " + expected);
+            }
+        }
+    }
+
+    private static ConsistentHashKVStore createStore(int nodes, int keys) {
+        ConsistentHashKVStore store = new ConsistentHashKVStore(REPLICATION_FACTOR,
+                ConsistentHashRing.DEFAULT_VIRTUAL_NODES, PrimitiveStorageEngine::new);
+        for (int i = REPLICATION_FACTOR + 1; i < nodes; i++) {
+            store.addCache(store.newCache());
+        }
+        int[] keyArray = new int[keys];
+        String[] values = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyArray[i] = i;
+            values[i] = "value" + i;
+        }
+        store.putAll(keyArray, values);
+        return store;
+    }
+}
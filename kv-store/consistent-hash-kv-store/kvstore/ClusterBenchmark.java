@@ -0,0 +1,177 @@
+package kvstore;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import metrics.Metrics;
+
+// Starts clusters of 1, 2, 4 and 8 node processes on localhost, each a KVServer in its own
+// JVM, and drives each cluster through a ClusterClient from many concurrent callers doing
+// blocking GETs and SETs. Reports throughput, latency percentiles and how many requests
+// the client's per-node batching put on each pipeline.
+//
+// The node processes run the classes of this JVM's class path, so build first:
+//
+//   javac *.java && java ClusterBenchmark 1,2,4,8 64 5
+//
+// Keys are uniform by default. With a Zipf exponent they are skewed, and a positive number
+// of hot keys additionally runs every cluster with the client's near-cache on.
+//
+// Usage: java ClusterBenchmark [nodeCounts] [callers] [seconds] [getRatio] [keys]
+//                              [zipfExponent] [maxHotKeys]
+public class ClusterBenchmark {
+
+    private static final long WARMUP_MILLIS = 1000;
+    private static final int CONNECTIONS_PER_NODE = 2;
+    private static final double NEAR_CACHE_MIN_SHARE = 0.001;
+    private static final int NEAR_CACHE_SAMPLE_RATE = 16;
+
+    public static void main(String[] args) throws Exception {
+        String[] nodeCounts = (args.length > 0 ? args[0] : "1,2,4,8").split(",");
+        int callers = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        double getRatio = args.length > 3 ? Double.parseDouble(args[3]) : 0.9;
+        int keys = args.length > 4 ? Integer.parseInt(args[4]) : 100_000;
+        double exponent = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+        int maxHotKeys = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+        ZipfDistribution zipf = exponent > 0 ? new ZipfDistribution(keys, exponent) : null;
+
+        System.out.printf("Callers: %d, GETs: %.0f%%, keys: %d (%s), cores: %d%n", callers, getRatio * 100, keys,
+                zipf == null ? "uniform" : "zipf " + exponent, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%5s %10s %12s %10s %10s %10s %14s%n", "nodes", "nearcache", "ops/s", "p50 us", "p99 us",
+                "p99.9 us", "requests/batch");
+        for (String count : nodeCounts) {
+            int nodes = Integer.parseInt(count.trim());
+            List<Process> processes = new ArrayList<>();
+            try {
+                List<InetSocketAddress> addresses = startNodes(nodes, processes);
+                try (ClusterClient client = new ClusterClient(addresses, 0, CONNECTIONS_PER_NODE)) {
+                    run(client, nodes, false, callers, seconds, getRatio, keys, zipf);
+                }
+                if (maxHotKeys > 0) {
+                    try (ClusterClient client = new ClusterClient(addresses, 0, CONNECTIONS_PER_NODE)) {
+                        client.enableNearCache(maxHotKeys, NEAR_CACHE_MIN_SHARE, NEAR_CACHE_SAMPLE_RATE);
+                        run(client, nodes, true, callers, seconds, getRatio, keys, zipf);
+                    }
+                }
+            } finally {
+                for (Process process : processes) {
+                    process.destroy();
+                }
+                for (Process process : processes) {
+                    process.waitFor(10, TimeUnit.SECONDS);
+                }
+            }
+        }
+    }
+
+    // Launch node processes on free loopback ports and wait until they accept connections
+    private static List<InetSocketAddress> startNodes(int nodes, List<Process> processes)
+            throws IOException, InterruptedException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            int port;
+            try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                port = probe.getLocalPort();
+            }
+            processes.add(new ProcessBuilder(java, "-Xmx256m", "-cp", System.getProperty("java.class.path"),
+                    "kvstore.KVServer", Integer.toString(port), "1")
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+            addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        for (InetSocketAddress address : addresses) {
+            while (true) {
+                try {
+                    new Socket(address.getAddress(), address.getPort()).close();
+                    break;
+                } catch (IOException e) {
+                    if (System.nanoTime() > deadline) {
+                        throw new IOException("Node " + address + " did not start", e);
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    private static void run(ClusterClient client, int nodes, boolean nearCache, int callers, long seconds,
+            double getRatio, int keys, ZipfDistribution zipf) throws InterruptedException {
+        // Preload in chunks so that GETs hit
+        String value = "x".repeat(100);
+        for (int from = 0; from < keys; from += 10_000) {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int key = from; key < Math.min(keys, from + 10_000); key++) {
+                writes.add(client.putAsync(key, value));
+            }
+            for (CompletableFuture<Void> write : writes) {
+                write.join();
+            }
+        }
+
+        long[] operations = new long[callers];
+        Metrics.Histogram latency = new Metrics.Histogram();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long requestsBefore = sum(client, "kv_cluster_requests_total");
+        long batchesBefore = sum(client, "kv_cluster_batches_total");
+        Thread[] threads = new Thread[callers];
+        for (int c = 0; c < callers; c++) {
+            int index = c;
+            threads[c] = Thread.ofVirtual().start(() -> {
+                SplittableRandom random = new SplittableRandom(index * 0x9e3779b97f4a7c15L);
+                long now = System.nanoTime();
+                while (now < end) {
+                    int key = zipf == null ? random.nextInt(keys) : zipf.sample(random.nextDouble());
+                    long begin = now;
+                    if (random.nextDouble() < getRatio) {
+                        client.get(key);
+                    } else {
+                        client.put(key, value);
+                    }
+                    now = System.nanoTime();
+                    if (begin >= start) {
+                        latency.record(now - begin);
+                        operations[index]++;
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long total = 0;
+        for (long count : operations) {
+            total += count;
+        }
+        double perBatch = (double) (sum(client, "kv_cluster_requests_total") - requestsBefore)
+                / Math.max(1, sum(client, "kv_cluster_batches_total") - batchesBefore);
+        System.out.printf("%5d %10s %12.0f %10.1f %10.1f %10.1f %14.1f%n", nodes,
+                nearCache ? "on" : "off", total * 1e9 / (end - start), latency.percentile(0.5) / 1e3,
+                latency.percentile(0.99) / 1e3, latency.percentile(0.999) / 1e3, perBatch);
+    }
+
+    // Sum of a per-node metric over all nodes
+    private static long sum(ClusterClient client, String metric) {
+        double total = 0;
+        for (Map.Entry<String, Double> sample : client.metrics().snapshot().entrySet()) {
+            if (sample.getKey().startsWith(metric + "{")) {
+                total += sample.getValue();
+            }
+        }
+        return (long) total;
+    }
+}
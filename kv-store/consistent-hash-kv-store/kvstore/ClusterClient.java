@@ -0,0 +1,194 @@
+package kvstore;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ToLongFunction;
+import metrics.Metrics;
+
+// Client side of cluster mode, where every cache node is a KVServer in its own process.
+// The ring holds RemoteNodes instead of in-process Caches, and keys are routed exactly as
+// ConsistentHashKVStore.getCacheNodes routes them: the first replicationFactor + 1 distinct
+// nodes clockwise from the key's hash.
+//
+// Membership is static: the client is given the node addresses and changes only through
+// addNode and removeNode. Writes go to every replica; reads go to the primary and move
+// on to the next replica if a node cannot be reached. Nodes do not move keys between each
+// other, so after a membership change keys whose owners changed miss until written again,
+// as befits a cache tier.
+//
+// With enableNearCache the client keeps the values of hot keys itself, so their reads skip
+// the round trip. Only writes made through this client invalidate those copies.
+public class ClusterClient implements AutoCloseable {
+
+    private final ConsistentHashRing<RemoteNode> ring;
+    private final int replicationFactor;
+    private final int connectionsPerNode;
+    private final Metrics metrics = new Metrics();
+    // Copies of hot keys' values served without a round trip, null when off
+    private volatile NearCache nearCache;
+
+    public ClusterClient(List<InetSocketAddress> nodes, int replicationFactor, int connectionsPerNode) {
+        if (replicationFactor < 0) {
+            throw new IllegalArgumentException("Replication factor cannot be negative");
+        }
+        this.ring = new ConsistentHashRing<>(ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        this.replicationFactor = replicationFactor;
+        this.connectionsPerNode = connectionsPerNode;
+        // Not through addNode or other overridable methods, which would see a subclass
+        // before its constructor ran
+        for (InetSocketAddress address : nodes) {
+            RemoteNode node = new RemoteNode(address, connectionsPerNode);
+            ring.addNode(node.name, node);
+        }
+        metrics.gauge("kv_cluster_nodes", "Node processes on the ring", ring::size);
+        perNode("kv_cluster_requests_total", "Requests sent to the node", Metrics.Type.COUNTER,
+                node -> node.requests.sum());
+        perNode("kv_cluster_coalesced_gets_total", "GETs answered by a GET of the same key already in flight",
+                Metrics.Type.COUNTER, node -> node.coalescedGets.sum());
+        perNode("kv_cluster_batches_total", "Pipelines written to the node", Metrics.Type.COUNTER,
+                node -> node.batches.sum());
+        perNode("kv_cluster_connection_failures_total", "Batches failed by a broken connection",
+                Metrics.Type.COUNTER, node -> node.failures.sum());
+        perNode("kv_cluster_queue_depth", "Requests waiting for a connection", Metrics.Type.GAUGE,
+                RemoteNode::queueDepth);
+        metrics.register("kv_cluster_near_cache_hits_total", "GETs of hot keys served from the near-cache",
+                Metrics.Type.COUNTER, samples -> samples.add("", hitCount(nearCache)));
+    }
+
+    // Register a family with one sample per node on the ring at snapshot time
+    private void perNode(String name, String help, Metrics.Type type, ToLongFunction<RemoteNode> value) {
+        metrics.register(name, help, type, samples -> {
+            for (RemoteNode node : ring.nodes()) {
+                samples.add(Metrics.label("node", node.name), value.applyAsLong(node));
+            }
+        });
+    }
+
+    public synchronized void addNode(InetSocketAddress address) {
+        RemoteNode node = new RemoteNode(address, connectionsPerNode);
+        ring.addNode(node.name, node);
+    }
+
+    public synchronized void removeNode(InetSocketAddress address) {
+        String name = address.getHostString() + ":" + address.getPort();
+        for (RemoteNode node : ring.nodes()) {
+            if (node.name.equals(name)) {
+                ring.removeNode(node);
+                node.close();
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Node is not part of the ring: " + name);
+    }
+
+    // Nodes that store a key, primary first, as ConsistentHashKVStore.getCacheNodes
+    public RemoteNode[] getNodes(int key) {
+        RemoteNode[] nodes = new RemoteNode[replicationFactor + 1];
+        int found = ring.successors(ConsistentHashRing.hash(key), nodes);
+        return found == nodes.length ? nodes : Arrays.copyOf(nodes, found);
+    }
+
+    public CompletableFuture<String> getAsync(int key) {
+        NearCache near = nearCache;
+        if (near == null) {
+            return getRemote(key);
+        }
+        String cached = near.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long stamp = near.stamp(key);
+        return getRemote(key).thenApply(value -> {
+            if (value != null) {
+                near.offer(key, value, stamp);
+            }
+            return value;
+        });
+    }
+
+    private CompletableFuture<String> getRemote(int key) {
+        RemoteNode[] nodes = getNodes(key);
+        if (nodes.length == 0) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No nodes in the cluster"));
+        }
+        CompletableFuture<String> result = nodes[0].get(key);
+        for (int i = 1; i < nodes.length; i++) {
+            RemoteNode replica = nodes[i];
+            result = result.exceptionallyCompose(failure -> replica.get(key));
+        }
+        return result;
+    }
+
+    // Write to every replica; completes once all acknowledged
+    public CompletableFuture<Void> putAsync(int key, String value) {
+        RemoteNode[] nodes = getNodes(key);
+        if (nodes.length == 0) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No nodes in the cluster"));
+        }
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            writes[i] = nodes[i].set(key, value);
+        }
+        NearCache near = nearCache;
+        if (near == null) {
+            return CompletableFuture.allOf(writes);
+        }
+        // Drop the copy once the nodes hold the new value, so that a read loading the old
+        // value in the meantime cannot outlive the write
+        return CompletableFuture.allOf(writes).whenComplete((done, failure) -> near.invalidate(key));
+    }
+
+    public String get(int key) {
+        try {
+            return getAsync(key).join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Get of key " + key + " failed", e.getCause());
+        }
+    }
+
+    public void put(int key, String value) {
+        try {
+            putAsync(key, value).join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Put of key " + key + " failed", e.getCause());
+        }
+    }
+
+    // Keep the values of hot keys in this client, as ConsistentHashKVStore.enableNearCache
+    public void enableNearCache(int maxHotKeys, double minShare, int sampleRate) {
+        this.nearCache = new NearCache(maxHotKeys, minShare, sampleRate);
+    }
+
+    public void disableNearCache() {
+        this.nearCache = null;
+    }
+
+    // Keys the near-cache currently treats as hot, hottest first, empty when it is off
+    public int[] hotKeys() {
+        NearCache near = nearCache;
+        return near == null ? new int[0] : near.hotKeys();
+    }
+
+    // Number of GETs served from the near-cache
+    public long nearCacheHitCount() {
+        return hitCount(nearCache);
+    }
+
+    private static long hitCount(NearCache near) {
+        return near == null ? 0 : near.hitCount();
+    }
+
+    // Routing, batching and coalescing counts per node
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (RemoteNode node : ring.nodes()) {
+            node.close();
+        }
+    }
+}
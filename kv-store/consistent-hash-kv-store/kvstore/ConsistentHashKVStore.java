@@ -0,0 +1,1360 @@
+package kvstore;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import metrics.Metrics;
+
+// Thread-safe: get, put and getCacheNodes read an immutable snapshot of the ring without
+// locking, while addCache and removeCache are serialized with each other and publish a new
+// snapshot atomically. Keys are moved to their new owners by a background Rebalancer, and
+// reads fall through to the previous owner until the move is done.
+//
+// Every write carries a version, and replicas keep the value with the highest one. Writes
+// return once writeQuorum replicas acknowledged and reads consult readQuorum replicas, by
+// default all replicas for writes and the primary owner for reads.
+public class ConsistentHashKVStore {
+
+    // Inner class representing a simple cache with basic operations on top of a
+    // pluggable storage engine. With an eviction policy the cache is bounded: writes update
+    // the policy under a lock and evict, while reads only drop the key into a lossy buffer
+    // that is replayed into the policy in batches, so reads never wait for the lock.
+    public static class Cache {
+        // Sequence used to give unnamed caches a unique name
+        private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+        // Name of the cache node, used to place its virtual nodes on the ring
+        public final String name;
+        // Storage holding the cache's entries
+        private final StorageEngine engine;
+        // Eviction policy and weigher of a bounded cache, null when unbounded
+        private final EvictionPolicy policy;
+        private final EvictionPolicy.Weigher weigher;
+        // Reads not yet replayed into the policy
+        private final ReadBuffer readBuffer;
+        // Serializes policy updates and evictions
+        private final ReentrantLock evictionLock;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        // Store requests currently being served, used to pick the least-loaded replica
+        private final LongAdder inFlight = new LongAdder();
+        // Store requests routed to this node, and the count as of the start of the current
+        // load window and during the previous one, used to bound the load of the node
+        private final LongAdder requests = new LongAdder();
+        private volatile long windowStartRequests;
+        private volatile long previousWindowRequests;
+
+        public Cache() {
+            this(new HashMapStorageEngine());
+        }
+
+        public Cache(StorageEngine engine) {
+            this("cache-" + NEXT_ID.getAndIncrement(), engine);
+        }
+
+        public Cache(String name) {
+            this(name, new HashMapStorageEngine());
+        }
+
+        public Cache(String name, StorageEngine engine) {
+            this(name, engine, null, EvictionPolicy.Weigher.ENTRIES);
+        }
+
+        // Bounded cache whose entries are weighed by the weigher and evicted by the policy.
+        // Entries already held by the engine, e.g. after a restart, are fed to the policy.
+        public Cache(String name, StorageEngine engine, EvictionPolicy policy, EvictionPolicy.Weigher weigher) {
+            this.name = name;
+            this.engine = engine;
+            this.policy = policy;
+            this.weigher = weigher;
+            this.readBuffer = policy == null ? null : new ReadBuffer();
+            this.evictionLock = policy == null ? null : new ReentrantLock();
+            if (policy != null) {
+                List<Integer> victims = new ArrayList<>();
+                engine.forEach((key, value) -> policy.onWrite(key, weigher.weigh(key, value), victims::add));
+                for (int victim : victims) {
+                    engine.remove(victim);
+                }
+            }
+        }
+
+        // Store a key-value pair in the cache
+        public void put(Integer key, String value) {
+            if (policy == null) {
+                engine.put(key, value);
+                return;
+            }
+            evictionLock.lock();
+            try {
+                engine.put(key, value);
+                drainReadBuffer();
+                policy.onWrite(key, weigher.weigh(key, value), this::evict);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        // Store a key-value pair unless the key is already present, returning the existing value
+        public String putIfAbsent(Integer key, String value) {
+            if (policy == null) {
+                return engine.putIfAbsent(key, value);
+            }
+            evictionLock.lock();
+            try {
+                String existing = engine.putIfAbsent(key, value);
+                if (existing == null) {
+                    drainReadBuffer();
+                    policy.onWrite(key, weigher.weigh(key, value), this::evict);
+                }
+                return existing;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        // Store a key-value pair with the given version unless the cache holds a version of
+        // the key at least as new. Returns whether the value was stored.
+        public boolean putIfNewer(Integer key, String value, long version) {
+            if (policy == null) {
+                return engine.putIfNewer(key, value, version);
+            }
+            evictionLock.lock();
+            try {
+                boolean stored = engine.putIfNewer(key, value, version);
+                if (stored) {
+                    drainReadBuffer();
+                    policy.onWrite(key, weigher.weigh(key, value), this::evict);
+                }
+                return stored;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        // Retrieve a value from the cache by key
+        public String get(Integer key) {
+            String value = engine.get(key);
+            recordRead(key, value != null);
+            return value;
+        }
+
+        // Copy a value's UTF-8 bytes into target as StorageEngine.getBytes does. A read that
+        // did not fit is not counted, since the caller asks again.
+        public int getBytes(Integer key, ByteBuffer target) {
+            int room = target.remaining();
+            int length = engine.getBytes(key, target);
+            if (length <= room) {
+                recordRead(key, length >= 0);
+            }
+            return length;
+        }
+
+        // Retrieve a value and its version from the cache by key
+        public Versioned getVersioned(Integer key) {
+            Versioned versioned = engine.getVersioned(key);
+            recordRead(key, versioned != null);
+            return versioned;
+        }
+
+        private void recordRead(int key, boolean hit) {
+            if (!hit) {
+                misses.increment();
+                return;
+            }
+            hits.increment();
+            if (policy != null && readBuffer.record(key) && evictionLock.tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+        }
+
+        // Retrieve the values of the first count keys into values, null where absent, as
+        // one batch against the storage engine
+        public void getAll(int[] keys, String[] values, int count) {
+            engine.getAll(keys, values, count);
+            int found = 0;
+            boolean drain = false;
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null) {
+                    found++;
+                    if (policy != null) {
+                        drain |= readBuffer.record(keys[i]);
+                    }
+                }
+            }
+            hits.add(found);
+            misses.add(count - found);
+            if (drain && evictionLock.tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+        }
+
+        // Store the first count key-value pairs with the given version as one batch against
+        // the storage engine, skipping keys that hold a version at least as new
+        public void putAll(int[] keys, String[] values, long version, int count) {
+            if (policy == null) {
+                engine.putAll(keys, values, version, count);
+                return;
+            }
+            evictionLock.lock();
+            try {
+                // Keys skipped as older are still re-weighed, which only refreshes their weight
+                engine.putAll(keys, values, version, count);
+                drainReadBuffer();
+                for (int i = 0; i < count; i++) {
+                    policy.onWrite(keys[i], weigher.weigh(keys[i], values[i]), this::evict);
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        // Retrieve a value without counting it as a read, e.g. while moving the key
+        public String peek(Integer key) {
+            return engine.get(key);
+        }
+
+        // Retrieve a value and its version without counting it as a read
+        public Versioned peekVersioned(Integer key) {
+            return engine.getVersioned(key);
+        }
+
+        // Remove a key-value pair from the cache
+        public String remove(Integer key) {
+            if (policy == null) {
+                return engine.remove(key);
+            }
+            evictionLock.lock();
+            try {
+                String removed = engine.remove(key);
+                if (removed != null) {
+                    policy.onRemove(key);
+                }
+                return removed;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        // Number of reads that found their key
+        public long hitCount() {
+            return hits.sum();
+        }
+
+        // Number of reads that did not find their key
+        public long missCount() {
+            return misses.sum();
+        }
+
+        // Share of reads that found their key
+        public double hitRatio() {
+            long hitCount = hits.sum();
+            long requests = hitCount + misses.sum();
+            return requests == 0 ? 1.0 : (double) hitCount / requests;
+        }
+
+        // Number of entries evicted by the eviction policy
+        public long evictionCount() {
+            return evictions.sum();
+        }
+
+        // Number of store requests this node is serving right now
+        public long inFlight() {
+            return inFlight.sum();
+        }
+
+        // Number of store requests routed to this node so far
+        public long requestCount() {
+            return requests.sum();
+        }
+
+        private void drainReadBuffer() {
+            readBuffer.drain(policy::onAccess);
+        }
+
+        private void evict(int key) {
+            engine.remove(key);
+            evictions.increment();
+        }
+
+        // Number of entries in the cache
+        public int size() {
+            return engine.size();
+        }
+
+        // Visit every entry in the cache
+        public void forEach(StorageEngine.EntryConsumer action) {
+            engine.forEach(action);
+        }
+
+        // Visit every key in the cache without decoding the values
+        public void forEachKey(IntConsumer action) {
+            engine.forEachKey(action);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // Replica a read with a read quorum below the replica count goes to first
+    public enum ReadPreference {
+        // The key's primary owner on the ring
+        PRIMARY,
+        // The replica serving the fewest requests right now
+        LEAST_LOADED
+    }
+
+    // Acknowledgements of one write fanned out to its replicas. Completes once the write
+    // quorum acknowledged, or exceptionally once so many replicas failed that it never can.
+    private static final class WriteQuorum {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final AtomicInteger acks = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final int required;
+        final int replicas;
+
+        WriteQuorum(int required, int replicas) {
+            this.required = required;
+            this.replicas = replicas;
+        }
+
+        void ack() {
+            if (acks.incrementAndGet() == required) {
+                done.complete(null);
+            }
+        }
+
+        void fail(RuntimeException e) {
+            if (failures.incrementAndGet() == replicas - required + 1) {
+                done.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Keys of a batch grouped by the cache node that serves them
+    private static final class Batch {
+        // Distinct nodes touched by the batch
+        final Cache[] nodes;
+        // For each node, indexes into the caller's key array of the keys it serves
+        final int[][] positions;
+
+        Batch(Cache[] nodes, int[][] positions) {
+            this.nodes = nodes;
+            this.positions = positions;
+        }
+    }
+
+    // Hash ring that maps keys to cache nodes through their virtual nodes
+    private final ConsistentHashRing<Cache> cacheRing;
+    // Number of replicas for each key
+    private final int replicationFactor;
+    // Creates the storage engine of every cache node the store creates itself
+    private final Supplier<StorageEngine> storageEngineFactory;
+    // Creates the eviction policy of every cache node the store creates itself, null for
+    // unbounded nodes
+    private final Supplier<EvictionPolicy> evictionPolicyFactory;
+    // Moves keys between cache nodes after the ring changed
+    private final Rebalancer rebalancer;
+    // Writes to replicas that the writing thread does not wait for
+    private final ExecutorService replicationExecutor;
+    // Replicas a read consults and replicas that must acknowledge a write, out of the
+    // replicationFactor + 1 replicas of every key
+    private volatile int readQuorum = 1;
+    private volatile int writeQuorum;
+    private volatile ReadPreference readPreference = ReadPreference.PRIMARY;
+    // Share of reads that consult fewer than all replicas and additionally compare and
+    // repair all replicas in the background
+    private volatile double readRepairChance;
+    // Last version handed out to a write
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final LongAdder readRepairs = new LongAdder();
+    // Headroom of every node over the average load in bounded-load mode, negative when the
+    // mode is off, and how many nodes past a key's replicas may absorb its reads
+    private volatile double loadEpsilon = -1;
+    private volatile int spillNodes;
+    // Length of the sliding window that loads are measured over
+    private volatile long loadWindowNanos = TimeUnit.SECONDS.toNanos(1);
+    private final AtomicLong loadWindowStart = new AtomicLong(System.nanoTime());
+    private final LongAdder totalRequests = new LongAdder();
+    private volatile long windowStartTotal;
+    private volatile long previousWindowTotal;
+    private final LongAdder spilledReads = new LongAdder();
+    // Copies of hot keys' values served without a ring lookup, null when off
+    private volatile NearCache nearCache;
+    // Counters and histograms of the store, read when a snapshot is taken
+    private final Metrics metrics = new Metrics();
+    // One in this many gets and puts is timed into the latency histograms, because two
+    // clock reads cost more than the rest of the instrumentation together
+    private static final int LATENCY_SAMPLE_RATE = 64;
+    private final Metrics.Histogram getLatency = metrics.histogram("kv_get_duration_seconds",
+            "Duration of get, sampled 1 in " + LATENCY_SAMPLE_RATE);
+    private final Metrics.Histogram putLatency = metrics.histogram("kv_put_duration_seconds",
+            "Duration of put, sampled 1 in " + LATENCY_SAMPLE_RATE);
+
+    // Constructor to initialize the cache ring with a given replication factor
+    public ConsistentHashKVStore(int replicationFactor) {
+        this(replicationFactor, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    // Constructor to initialize the cache ring with a given replication factor and number
+    // of virtual nodes per cache node
+    public ConsistentHashKVStore(int replicationFactor, int virtualNodes) {
+        this(replicationFactor, virtualNodes, HashMapStorageEngine::new);
+    }
+
+    // Constructor to initialize the cache ring with a given replication factor, number of
+    // virtual nodes per cache node and storage engine for the initial cache nodes
+    public ConsistentHashKVStore(int replicationFactor, int virtualNodes,
+            Supplier<StorageEngine> storageEngineFactory) {
+        this(replicationFactor, virtualNodes, storageEngineFactory, null);
+    }
+
+    // Constructor that additionally bounds every cache node the store creates with an
+    // eviction policy from the given factory, counting entries
+    public ConsistentHashKVStore(int replicationFactor, int virtualNodes,
+            Supplier<StorageEngine> storageEngineFactory, Supplier<EvictionPolicy> evictionPolicyFactory) {
+        if (replicationFactor < 0) {
+            throw new IllegalArgumentException("Replication factor cannot be negative");
+        }
+        this.cacheRing = new ConsistentHashRing<>(virtualNodes);
+        this.replicationFactor = replicationFactor;
+        this.storageEngineFactory = storageEngineFactory;
+        this.evictionPolicyFactory = evictionPolicyFactory;
+        this.rebalancer = new Rebalancer(cacheRing, replicationFactor + 1, 0);
+        this.writeQuorum = replicationFactor + 1;
+        this.replicationExecutor = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread thread = new Thread(r, "replication");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        registerMetrics();
+
+        // The initial nodes hold no keys yet, so they go on the ring without a migration,
+        // and not through addCache or newCache, which a subclass may override
+        for (int i = 0; i <= replicationFactor; i++) {
+            Cache cache = createCache();
+            cacheRing.addNode(cache.name, cache);
+        }
+    }
+
+    private void registerMetrics() {
+        metrics.gauge("kv_nodes", "Cache nodes on the ring", cacheRing::size);
+        perNode("kv_node_requests_total", "Store requests routed to the node", Metrics.Type.COUNTER,
+                Cache::requestCount);
+        perNode("kv_node_hits_total", "Reads that found their key", Metrics.Type.COUNTER, Cache::hitCount);
+        perNode("kv_node_misses_total", "Reads that did not find their key", Metrics.Type.COUNTER,
+                Cache::missCount);
+        perNode("kv_node_evictions_total", "Entries evicted by the eviction policy", Metrics.Type.COUNTER,
+                Cache::evictionCount);
+        perNode("kv_node_keys", "Entries held by the node", Metrics.Type.GAUGE, Cache::size);
+        perNode("kv_node_in_flight", "Store requests the node is serving right now", Metrics.Type.GAUGE,
+                Cache::inFlight);
+        metrics.register("kv_read_repairs_total", "Stale or missing replicas repaired by reads",
+                Metrics.Type.COUNTER, samples -> samples.add("", readRepairs.sum()));
+        metrics.register("kv_spilled_reads_total", "Reads served past the replicas in bounded-load mode",
+                Metrics.Type.COUNTER, samples -> samples.add("", spilledReads.sum()));
+        metrics.register("kv_near_cache_hits_total", "Reads of hot keys served from the near-cache",
+                Metrics.Type.COUNTER, samples -> samples.add("", hitCount(nearCache)));
+        metrics.gauge("kv_hot_keys", "Keys the hot-key detector reports as hot",
+                () -> nearCache == null ? 0 : nearCache.hotKeyCount());
+        metrics.gauge("kv_rebalance_pending", "Membership changes whose keys are still moving",
+                rebalancer::pendingMigrations);
+        metrics.register("kv_rebalance_keys_moved_total", "Key copies made by the rebalancer",
+                Metrics.Type.COUNTER, samples -> samples.add("", rebalancer.keysMoved()));
+        metrics.register("kv_rebalance_bytes_moved_total", "Bytes copied by the rebalancer",
+                Metrics.Type.COUNTER, samples -> samples.add("", rebalancer.bytesMoved()));
+        metrics.register("kv_rebalance_failures_total", "Chunks of keys the rebalancer failed to move and retried",
+                Metrics.Type.COUNTER, samples -> samples.add("", rebalancer.failures()));
+        metrics.register("kv_rebalance_duration_seconds", "Time taken to move the keys of one membership change",
+                Metrics.Type.HISTOGRAM, samples -> samples.add("", rebalancer.durations()));
+    }
+
+    // Register a family with one sample per cache node on the ring at snapshot time
+    private void perNode(String name, String help, Metrics.Type type, ToLongFunction<Cache> value) {
+        metrics.register(name, help, type, samples -> {
+            for (Cache cache : cacheRing.nodes()) {
+                samples.add(Metrics.label("node", cache.name), value.applyAsLong(cache));
+            }
+        });
+    }
+
+    // Metrics of the store and its nodes, e.g. for metrics().toPrometheus()
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    // Add a new cache node to the cache ring. The node takes over its ranges immediately,
+    // and the keys it now owns are copied to it in the background.
+    public synchronized void addCache(Cache cache) {
+        ConsistentHashRing<Cache> previous = cacheRing.copy();
+        cacheRing.addNode(cache.name, cache);
+
+        // Only keys whose replica set now includes the new node are copied to it, and nodes
+        // that dropped out of a key's replica set give it up. Only those keys are scanned,
+        // on the nodes that may hold them.
+        if (!previous.isEmpty()) {
+            rebalancer.submit("adding " + cache, previous, displacedBy(cache, previous),
+                    cacheRing.rangesReaching(cache, replicationFactor + 1));
+        }
+    }
+
+    // Nodes that may hold keys a joining node takes over: for each of its virtual nodes,
+    // the first replicationFactor + 1 distinct nodes clockwise from it on the ring before
+    // the join. A key whose replicas now include the new node had all of its replicas past
+    // that virtual node among these, including the one it pushed out, so scanning them
+    // finds every key to move without scanning the rest of the ring.
+    private List<Cache> displacedBy(Cache cache, ConsistentHashRing<Cache> previous) {
+        Cache[] successors = new Cache[replicationFactor + 1];
+        Set<Cache> sources = new LinkedHashSet<>();
+        for (long position : cacheRing.positionsOf(cache)) {
+            int found = previous.successors(position, successors);
+            for (int i = 0; i < found; i++) {
+                sources.add(successors[i]);
+            }
+            if (sources.size() == previous.size()) {
+                break;
+            }
+        }
+        return new ArrayList<>(sources);
+    }
+
+    // Create a cache node backed by this store's storage engine and eviction policy
+    public Cache newCache() {
+        return createCache();
+    }
+
+    private Cache createCache() {
+        if (evictionPolicyFactory == null) {
+            return new Cache(storageEngineFactory.get());
+        }
+        return new Cache("cache-" + Cache.NEXT_ID.getAndIncrement(), storageEngineFactory.get(),
+                evictionPolicyFactory.get(), EvictionPolicy.Weigher.ENTRIES);
+    }
+
+    // Store a key-value pair in the appropriate cache nodes under a new version. Returns
+    // once the write quorum acknowledged; the remaining replicas are written in the
+    // background.
+    public void put(Integer key, String value) {
+        if (!sampleLatency()) {
+            store(key, value);
+        } else {
+            long start = System.nanoTime();
+            store(key, value);
+            putLatency.record(System.nanoTime() - start);
+        }
+        NearCache near = nearCache;
+        if (near != null) {
+            near.invalidate(key);
+        }
+    }
+
+    private void store(Integer key, String value) {
+        long version = nextVersion();
+        if (spillNodes == 0) {
+            write(key, value, version, getCacheNodes(key));
+            return;
+        }
+        Cache[] candidates = new Cache[replicationFactor + 1 + spillNodes];
+        int found = cacheRing.successors(computeKeyHash(key), candidates);
+        int replicas = Math.min(found, replicationFactor + 1);
+        Cache[] cacheNodes = Arrays.copyOf(candidates, replicas);
+        write(key, value, version, cacheNodes);
+        // Keep copies that spilled reads left on the nodes past the replicas up to date
+        for (int i = replicas; i < found; i++) {
+            if (candidates[i].peekVersioned(key) != null) {
+                candidates[i].putIfNewer(key, value, version);
+            }
+        }
+    }
+
+    private static boolean sampleLatency() {
+        return ThreadLocalRandom.current().nextInt(LATENCY_SAMPLE_RATE) == 0;
+    }
+
+    private void write(int key, String value, long version, Cache[] replicas) {
+        int required = Math.min(writeQuorum, replicas.length);
+        if (required == replicas.length) {
+            // Nothing to gain from handing writes to other threads if all must finish
+            for (Cache replica : replicas) {
+                writeReplica(replica, key, value, version);
+            }
+            return;
+        }
+        WriteQuorum quorum = new WriteQuorum(required, replicas.length);
+        for (int i = 1; i < replicas.length; i++) {
+            Cache replica = replicas[i];
+            replicationExecutor.execute(() -> writeReplica(replica, key, value, version, quorum));
+        }
+        writeReplica(replicas[0], key, value, version, quorum);
+        try {
+            quorum.done.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Write quorum of " + required + " not reached for key " + key,
+                    e.getCause());
+        }
+    }
+
+    private void writeReplica(Cache replica, int key, String value, long version, WriteQuorum quorum) {
+        try {
+            writeReplica(replica, key, value, version);
+            quorum.ack();
+        } catch (RuntimeException e) {
+            quorum.fail(e);
+        }
+    }
+
+    private void writeReplica(Cache replica, int key, String value, long version) {
+        countRequest(replica);
+        replica.inFlight.increment();
+        try {
+            replica.putIfNewer(key, value, version);
+        } finally {
+            replica.inFlight.decrement();
+        }
+    }
+
+    // Version for a new write: the current time in milliseconds shifted left by 16 bits,
+    // bumped past the previous version so versions are unique and increasing even when
+    // many writes share a millisecond or the clock steps back
+    private long nextVersion() {
+        long now = System.currentTimeMillis() << 16;
+        while (true) {
+            long last = lastVersion.get();
+            long next = Math.max(now, last + 1);
+            if (lastVersion.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    // Read from readQuorum replicas and wait for writeQuorum replicas to acknowledge every
+    // write, out of the replicationFactor + 1 replicas of every key. Reads and writes are
+    // guaranteed to overlap when readQuorum + writeQuorum exceeds the number of replicas.
+    public void setConsistency(int readQuorum, int writeQuorum) {
+        int replicas = replicationFactor + 1;
+        if (readQuorum < 1 || readQuorum > replicas) {
+            throw new IllegalArgumentException("Read quorum must be between 1 and " + replicas);
+        }
+        if (writeQuorum < 1 || writeQuorum > replicas) {
+            throw new IllegalArgumentException("Write quorum must be between 1 and " + replicas);
+        }
+        this.readQuorum = readQuorum;
+        this.writeQuorum = writeQuorum;
+    }
+
+    public int getReadQuorum() {
+        return readQuorum;
+    }
+
+    public int getWriteQuorum() {
+        return writeQuorum;
+    }
+
+    // Choose the replicas reads go to first
+    public void setReadPreference(ReadPreference readPreference) {
+        this.readPreference = readPreference;
+    }
+
+    // Share of reads, between 0 and 1, that compare all replicas in the background and
+    // repair stale ones even though the read quorum does not require consulting them
+    public void setReadRepairChance(double readRepairChance) {
+        if (readRepairChance < 0 || readRepairChance > 1) {
+            throw new IllegalArgumentException("Read repair chance must be between 0 and 1");
+        }
+        this.readRepairChance = readRepairChance;
+    }
+
+    // Number of stale or missing replicas that reads repaired
+    public long readRepairCount() {
+        return readRepairs.sum();
+    }
+
+    // Determine which cache nodes should store a given key: the first replicationFactor + 1
+    // distinct nodes clockwise from the key's position on the ring
+    public Cache[] getCacheNodes(Integer key) {
+        Cache[] cacheNodes = new Cache[replicationFactor + 1];
+        int found = cacheRing.successors(computeKeyHash(key), cacheNodes);
+        return found == cacheNodes.length ? cacheNodes : Arrays.copyOf(cacheNodes, found);
+    }
+
+    // Retrieve a value from the cache using a key. The read consults readQuorum replicas,
+    // starting with the preferred one, and more if none of them has the key. It returns the
+    // newest value found and repairs the consulted replicas that were stale. While the key
+    // may still be on its way to a new owner, a miss falls through to the owner it had
+    // before.
+    public String get(Integer key) {
+        if (!sampleLatency()) {
+            return read(key);
+        }
+        long start = System.nanoTime();
+        String value = read(key);
+        getLatency.record(System.nanoTime() - start);
+        return value;
+    }
+
+    // Copy the UTF-8 bytes of a value into target and return their length, or -1 if the key
+    // is absent. If the value does not fit into target.remaining(), nothing is copied and the
+    // length is returned all the same. Reads from the primary owner copy the bytes straight
+    // from its storage engine into target; other read modes go through get.
+    public int getBytes(Integer key, ByteBuffer target) {
+        if (readQuorum != 1 || readPreference != ReadPreference.PRIMARY || readRepairChance != 0
+                || loadEpsilon >= 0 || nearCache != null) {
+            return putUtf8(get(key), target);
+        }
+        if (!sampleLatency()) {
+            return readBytes(key, target);
+        }
+        long start = System.nanoTime();
+        int length = readBytes(key, target);
+        getLatency.record(System.nanoTime() - start);
+        return length;
+    }
+
+    private int readBytes(Integer key, ByteBuffer target) {
+        long hash = computeKeyHash(key);
+        Cache cache = cacheRing.primary(hash);
+        if (cache == null) {
+            return -1;
+        }
+        int room = target.remaining();
+        int length = cache.getBytes(key, target);
+        if (length <= room) {
+            countRequest(cache);
+        }
+        if (length < 0 && rebalancer.pendingMigrations() > 0) {
+            return putUtf8(rebalancer.readThrough(key, hash, cache), target);
+        }
+        return length;
+    }
+
+    private static int putUtf8(String value, ByteBuffer target) {
+        if (value == null) {
+            return -1;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= target.remaining()) {
+            target.put(bytes);
+        }
+        return bytes.length;
+    }
+
+    private String read(Integer key) {
+        NearCache near = nearCache;
+        if (near == null) {
+            return readRing(key);
+        }
+        String value = near.get(key);
+        if (value != null) {
+            return value;
+        }
+        long stamp = near.stamp(key);
+        value = readRing(key);
+        if (value != null) {
+            near.offer(key, value, stamp);
+        }
+        return value;
+    }
+
+    private String readRing(Integer key) {
+        long hash = computeKeyHash(key);
+        int quorum = readQuorum;
+        if (quorum == 1 && loadEpsilon >= 0) {
+            return getBounded(key, hash);
+        }
+        if (quorum == 1 && readPreference == ReadPreference.PRIMARY && readRepairChance == 0) {
+            Cache cache = cacheRing.primary(hash);
+            if (cache == null) {
+                return null;
+            }
+            countRequest(cache);
+            String value = cache.get(key);
+            if (value == null && rebalancer.pendingMigrations() > 0) {
+                value = rebalancer.readThrough(key, hash, cache);
+            }
+            return value;
+        }
+
+        Cache[] replicas = new Cache[replicationFactor + 1];
+        int found = cacheRing.successors(hash, replicas);
+        if (found == 0) {
+            return null;
+        }
+        if (readPreference == ReadPreference.LEAST_LOADED) {
+            sortByLoad(replicas, found);
+        }
+        quorum = Math.min(quorum, found);
+        // A miss on every consulted replica moves on to the remaining ones
+        Versioned[] versions = new Versioned[found];
+        Versioned newest = null;
+        int consulted = 0;
+        for (int i = 0; i < found && (i < quorum || newest == null); i++, consulted++) {
+            Cache replica = replicas[i];
+            countRequest(replica);
+            replica.inFlight.increment();
+            try {
+                versions[i] = replica.getVersioned(key);
+            } finally {
+                replica.inFlight.decrement();
+            }
+            if (versions[i] != null && (newest == null || versions[i].version > newest.version)) {
+                newest = versions[i];
+            }
+        }
+        if (newest != null) {
+            for (int i = 0; i < consulted; i++) {
+                if (versions[i] == null || versions[i].version < newest.version) {
+                    repair(replicas[i], key, newest);
+                }
+            }
+            if (consulted < found && readRepairChance > 0
+                    && ThreadLocalRandom.current().nextDouble() < readRepairChance) {
+                Cache[] unread = Arrays.copyOfRange(replicas, consulted, found);
+                Versioned value = newest;
+                replicationExecutor.execute(() -> repairAll(key, value, unread));
+            }
+            return newest.value;
+        }
+        return rebalancer.pendingMigrations() > 0 ? rebalancer.readThrough(key, hash, replicas[0]) : null;
+    }
+
+    // Read in bounded-load mode: served by the first of the key's replicas and spill nodes
+    // whose load is below capacity. A spill node that does not hold the key yet copies it
+    // from the replicas, and writes keep such copies up to date.
+    private String getBounded(int key, long hash) {
+        Cache[] candidates = new Cache[replicationFactor + 1 + spillNodes];
+        int found = cacheRing.successors(hash, candidates);
+        if (found == 0) {
+            return null;
+        }
+        int replicas = Math.min(found, replicationFactor + 1);
+        int target = boundedTarget(candidates, found);
+        Cache cache = candidates[target];
+        countRequest(cache);
+        if (target > 0) {
+            spilledReads.increment();
+        }
+        if (target < replicas) {
+            String value = cache.get(key);
+            if (value == null && rebalancer.pendingMigrations() > 0) {
+                value = rebalancer.readThrough(key, hash, cache);
+            }
+            return value;
+        }
+
+        Versioned copy = cache.getVersioned(key);
+        if (copy != null) {
+            return copy.value;
+        }
+        Versioned newest = candidates[0].peekVersioned(key);
+        // A write that reached the replica after we read it may have missed our copy, so
+        // repeat until the replica holds nothing newer than what we copied
+        while (newest != null) {
+            cache.putIfNewer(key, newest.value, newest.version);
+            Versioned current = candidates[0].peekVersioned(key);
+            if (current == null || current.version <= newest.version) {
+                break;
+            }
+            newest = current;
+        }
+        if (newest == null && rebalancer.pendingMigrations() > 0) {
+            return rebalancer.readThrough(key, hash, candidates[0]);
+        }
+        return newest == null ? null : newest.value;
+    }
+
+    // Index of the first candidate whose load is below the bounded-load capacity of
+    // ceil((1 + epsilon) * average load), or of the least loaded one if all are full
+    private int boundedTarget(Cache[] candidates, int found) {
+        long now = System.nanoTime();
+        long start = loadWindowStart.get();
+        long window = loadWindowNanos;
+        if (now - start >= window && loadWindowStart.compareAndSet(start, now)) {
+            rollLoadWindow();
+            start = now;
+        }
+        // Sliding window estimate: the current window plus the unexpired share of the last
+        double remaining = Math.max(0, 1 - (double) (now - start) / window);
+        long total = totalRequests.sum() - windowStartTotal + (long) (previousWindowTotal * remaining);
+        double capacity = Math.ceil((1 + loadEpsilon) * (total + 1) / Math.max(1, cacheRing.size()));
+        int leastLoaded = 0;
+        long minLoad = Long.MAX_VALUE;
+        for (int i = 0; i < found; i++) {
+            Cache candidate = candidates[i];
+            long load = candidate.requests.sum() - candidate.windowStartRequests
+                    + (long) (candidate.previousWindowRequests * remaining);
+            if (load < capacity) {
+                return i;
+            }
+            if (load < minLoad) {
+                minLoad = load;
+                leastLoaded = i;
+            }
+        }
+        return leastLoaded;
+    }
+
+    // Start a new load window, remembering the requests of the one that ended
+    private void rollLoadWindow() {
+        long total = totalRequests.sum();
+        previousWindowTotal = total - windowStartTotal;
+        windowStartTotal = total;
+        for (Cache cache : cacheRing.nodes()) {
+            long requests = cache.requests.sum();
+            cache.previousWindowRequests = requests - cache.windowStartRequests;
+            cache.windowStartRequests = requests;
+        }
+    }
+
+    private void countRequest(Cache cache) {
+        cache.requests.increment();
+        totalRequests.increment();
+    }
+
+    // Cap the load of every node at (1 + epsilon) times the average load: a read whose
+    // primary owner is at capacity goes to the next of its replicas, and then to up to
+    // spillNodes further nodes clockwise, that is below capacity. Loads are request counts
+    // over a sliding window. Reads with a read quorum above 1 are not affected.
+    public void setBoundedLoad(double epsilon, int spillNodes) {
+        if (epsilon < 0) {
+            throw new IllegalArgumentException("Epsilon cannot be negative");
+        }
+        if (spillNodes < 0) {
+            throw new IllegalArgumentException("Spill nodes cannot be negative");
+        }
+        this.spillNodes = spillNodes;
+        this.loadEpsilon = epsilon;
+    }
+
+    // Route every read to the key's primary owner again. Writes keep refreshing copies on
+    // spill nodes, so the mode can be turned back on without serving stale values.
+    public void disableBoundedLoad() {
+        this.loadEpsilon = -1;
+    }
+
+    // Length of the sliding window that bounded-load mode measures loads over
+    public void setLoadWindow(long window, TimeUnit unit) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Load window must be positive");
+        }
+        this.loadWindowNanos = unit.toNanos(window);
+    }
+
+    // Number of reads that bounded-load mode served from a node other than the primary owner
+    public long spilledReadCount() {
+        return spilledReads.sum();
+    }
+
+    // Serve reads of hot keys from copies kept next to the caller. One read in sampleRate
+    // feeds a Space-Saving summary, and every refresh the keys that each make up at least
+    // minShare of the reads, at most maxHotKeys of them, become hot. Writes through put and
+    // putAll invalidate the copies; batched reads with getAll always go to the ring.
+    public void enableNearCache(int maxHotKeys, double minShare, int sampleRate) {
+        this.nearCache = new NearCache(maxHotKeys, minShare, sampleRate);
+    }
+
+    public void disableNearCache() {
+        this.nearCache = null;
+    }
+
+    // Keys the near-cache currently treats as hot, hottest first, empty when it is off
+    public int[] hotKeys() {
+        NearCache near = nearCache;
+        return near == null ? new int[0] : near.hotKeys();
+    }
+
+    // Estimated share of the reads of each key returned by hotKeys, in the same order
+    public double[] hotKeyShares() {
+        NearCache near = nearCache;
+        return near == null ? new double[0] : near.hotKeyShares();
+    }
+
+    // Number of reads served from the near-cache
+    public long nearCacheHitCount() {
+        return hitCount(nearCache);
+    }
+
+    private static long hitCount(NearCache near) {
+        return near == null ? 0 : near.hitCount();
+    }
+
+    // Bring a stale replica up to date in the background
+    private void repair(Cache replica, int key, Versioned newest) {
+        readRepairs.increment();
+        replicationExecutor.execute(() -> replica.putIfNewer(key, newest.value, newest.version));
+    }
+
+    // Compare replicas the read did not consult with the value it returned and repair them
+    private void repairAll(int key, Versioned newest, Cache[] replicas) {
+        for (Cache replica : replicas) {
+            Versioned current = replica.peekVersioned(key);
+            if ((current == null || current.version < newest.version)
+                    && replica.putIfNewer(key, newest.value, newest.version)) {
+                readRepairs.increment();
+            }
+        }
+    }
+
+    // Order replicas by the requests they are serving, keeping ring order between equals
+    private static void sortByLoad(Cache[] replicas, int count) {
+        long[] loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            loads[i] = replicas[i].inFlight();
+        }
+        for (int i = 1; i < count; i++) {
+            for (int j = i; j > 0 && loads[j - 1] > loads[j]; j--) {
+                long load = loads[j];
+                loads[j] = loads[j - 1];
+                loads[j - 1] = load;
+                Cache replica = replicas[j];
+                replicas[j] = replicas[j - 1];
+                replicas[j - 1] = replica;
+            }
+        }
+    }
+
+    // Retrieve the values of many keys, in the same order as keys and null where absent.
+    // Keys are grouped by owning node in a single pass over the ring and every node serves
+    // its group as one batch. Batches read the primary owner of every key only.
+    public String[] getAll(int[] keys) {
+        return getAll(keys, null);
+    }
+
+    // Like getAll(keys), but fans the per-node batches out in parallel on executor
+    public String[] getAll(int[] keys, Executor executor) {
+        String[] values = new String[keys.length];
+        Batch batch = group(keys, 1);
+        execute(batch, executor, g -> {
+            int[] positions = batch.positions[g];
+            int[] groupKeys = new int[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                groupKeys[i] = keys[positions[i]];
+            }
+            String[] groupValues = new String[positions.length];
+            batch.nodes[g].getAll(groupKeys, groupValues, groupKeys.length);
+            boolean migrating = rebalancer.pendingMigrations() > 0;
+            for (int i = 0; i < positions.length; i++) {
+                String value = groupValues[i];
+                if (value == null && migrating) {
+                    value = rebalancer.readThrough(groupKeys[i], computeKeyHash(groupKeys[i]), batch.nodes[g]);
+                }
+                values[positions[i]] = value;
+            }
+        });
+        return values;
+    }
+
+    // Store many key-value pairs on all of their replicas under one new version, each node
+    // writing its share as one batch. Batches do not use the write quorum: they return once
+    // every replica was written. If a key occurs more than once, which of its values is kept
+    // is unspecified.
+    public void putAll(int[] keys, String[] values) {
+        putAll(keys, values, null);
+    }
+
+    // Like putAll(keys, values), but fans the per-node batches out in parallel on executor
+    public void putAll(int[] keys, String[] values, Executor executor) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Got " + keys.length + " keys but " + values.length + " values");
+        }
+        long version = nextVersion();
+        Batch batch = group(keys, replicationFactor + 1);
+        execute(batch, executor, g -> {
+            int[] positions = batch.positions[g];
+            int[] groupKeys = new int[positions.length];
+            String[] groupValues = new String[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                groupKeys[i] = keys[positions[i]];
+                groupValues[i] = values[positions[i]];
+            }
+            batch.nodes[g].putAll(groupKeys, groupValues, version, groupKeys.length);
+        });
+        int spill = spillNodes;
+        if (spill > 0) {
+            refreshSpillCopies(keys, spill);
+        }
+        NearCache near = nearCache;
+        if (near != null) {
+            for (int key : keys) {
+                near.invalidate(key);
+            }
+        }
+    }
+
+    // Bring the copies that spilled reads left on the nodes past the replicas up to date with
+    // the first replica, as store does for single writes. Copying from the replica rather
+    // than from values keeps spill copies of a key that occurs twice equal to the replicas.
+    private void refreshSpillCopies(int[] keys, int spill) {
+        Cache[] candidates = new Cache[replicationFactor + 1 + spill];
+        for (int key : keys) {
+            int found = cacheRing.successors(computeKeyHash(key), candidates);
+            int replicas = Math.min(found, replicationFactor + 1);
+            Versioned newest = null;
+            for (int i = replicas; i < found; i++) {
+                if (candidates[i].peekVersioned(key) == null) {
+                    continue;
+                }
+                if (newest == null) {
+                    newest = candidates[0].peekVersioned(key);
+                    if (newest == null) {
+                        break;
+                    }
+                }
+                candidates[i].putIfNewer(key, newest.value, newest.version);
+            }
+        }
+    }
+
+    // Sort keys by ring position, resolve the first replicas nodes of every key against a
+    // single ring snapshot and group the keys by node
+    private Batch group(int[] keys, int replicas) {
+        int count = keys.length;
+        long[] hashes = new long[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = computeKeyHash(keys[i]);
+            order[i] = i;
+        }
+        sortByHash(hashes, order, 0, count - 1);
+        Cache[] owners = new Cache[count * replicas];
+        int found = cacheRing.successors(hashes, count, replicas, owners);
+
+        // Number the distinct nodes and count the keys each one serves
+        IdentityHashMap<Cache, Integer> groups = new IdentityHashMap<>();
+        List<Cache> nodes = new ArrayList<>();
+        int[] groupOf = new int[count * found];
+        int[] sizes = new int[8];
+        for (int i = 0; i < count; i++) {
+            for (int r = 0; r < found; r++) {
+                Cache node = owners[i * replicas + r];
+                Integer g = groups.get(node);
+                if (g == null) {
+                    g = nodes.size();
+                    groups.put(node, g);
+                    nodes.add(node);
+                    if (g == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, g * 2);
+                    }
+                }
+                groupOf[i * found + r] = g;
+                sizes[g]++;
+            }
+        }
+
+        int[][] positions = new int[nodes.size()][];
+        for (int g = 0; g < positions.length; g++) {
+            positions[g] = new int[sizes[g]];
+        }
+        int[] filled = new int[positions.length];
+        for (int i = 0; i < count; i++) {
+            for (int r = 0; r < found; r++) {
+                int g = groupOf[i * found + r];
+                positions[g][filled[g]++] = order[i];
+            }
+        }
+        return new Batch(nodes.toArray(new Cache[0]), positions);
+    }
+
+    // Run task for every node of the batch, in parallel on executor when one is given. The
+    // calling thread serves the first node itself.
+    private static void execute(Batch batch, Executor executor, IntConsumer task) {
+        int groups = batch.nodes.length;
+        if (executor == null || groups < 2) {
+            for (int g = 0; g < groups; g++) {
+                task.accept(g);
+            }
+            return;
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[groups - 1];
+        for (int g = 1; g < groups; g++) {
+            int group = g;
+            futures[g - 1] = CompletableFuture.runAsync(() -> task.accept(group), executor);
+        }
+        task.accept(0);
+        CompletableFuture.allOf(futures).join();
+    }
+
+    // Sort hashes ascending, applying the same permutation to order
+    private static void sortByHash(long[] hashes, int[] order, int from, int to) {
+        while (to - from > 16) {
+            long pivot = hashes[(from + to) >>> 1];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (hashes[i] < pivot) {
+                    i++;
+                }
+                while (hashes[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(hashes, order, i++, j--);
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth
+            if (j - from < to - i) {
+                sortByHash(hashes, order, from, j);
+                from = i;
+            } else {
+                sortByHash(hashes, order, i, to);
+                to = j;
+            }
+        }
+        for (int i = from + 1; i <= to; i++) {
+            for (int j = i; j > from && hashes[j - 1] > hashes[j]; j--) {
+                swap(hashes, order, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(long[] hashes, int[] order, int i, int j) {
+        long hash = hashes[i];
+        hashes[i] = hashes[j];
+        hashes[j] = hash;
+        int index = order[i];
+        order[i] = order[j];
+        order[j] = index;
+    }
+
+    // Cache nodes in the order they were added
+    public List<Cache> getCaches() {
+        return cacheRing.nodes();
+    }
+
+    // Background rebalancer, exposing migration progress and bytes moved
+    public Rebalancer getRebalancer() {
+        return rebalancer;
+    }
+
+    // Limit the rate at which keys are moved between nodes, in bytes per second; zero or
+    // less removes the limit
+    public void setRebalanceRateLimit(long bytesPerSecond) {
+        rebalancer.setRateLimit(bytesPerSecond);
+    }
+
+    // Wait until keys moved by earlier addCache and removeCache calls reached their new
+    // owners; returns false on timeout
+    public boolean awaitRebalance(long timeout, TimeUnit unit) throws InterruptedException {
+        return rebalancer.awaitIdle(timeout, unit);
+    }
+
+    // Compute the hash for a key to determine its position in the cache ring
+    private long computeKeyHash(Integer key) {
+        return ConsistentHashRing.hash(key);
+    }
+
+    // Remove the most recently added cache node from the cache ring
+    public synchronized void removeCache() {
+        if (cacheRing.isEmpty()) {
+            throw new IllegalArgumentException("Cache ring is empty, No more caches can be removed");
+        }
+        List<Cache> nodes = cacheRing.nodes();
+        removeCache(nodes.get(nodes.size() - 1));
+    }
+
+    // Remove a cache node from the cache ring. The node stops owning its ranges immediately
+    // and hands its keys off to the nodes that take them over in the background.
+    public synchronized void removeCache(Cache cache) {
+        if (cacheRing.isEmpty()) {
+            throw new IllegalArgumentException("Cache ring is empty, No more caches can be removed");
+        }
+        ConsistentHashRing<Cache> previous = cacheRing.copy();
+        if (!cacheRing.removeNode(cache)) {
+            throw new IllegalArgumentException("Cache is not part of the cache ring: " + cache);
+        }
+        if (!cacheRing.isEmpty()) {
+            rebalancer.submit("removing " + cache, previous, List.of(cache));
+        }
+    }
+
+    // Main method to demonstrate the functionality of the ConsistentHashKVStore
+    public static void main(String[] args) throws InterruptedException {
+        ConsistentHashKVStore kvStore = new ConsistentHashKVStore(2);
+
+        // Add key-value pairs to the store
+        for (int i = 0; i < 10; i++) {
+            kvStore.put(i, "value" + i);
+        }
+
+        // Remove a cache node and print the values to demonstrate rebalancing
+        kvStore.removeCache();
+        kvStore.awaitRebalance(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++) {
+            System.out.println(kvStore.get(i));
+        }
+
+        // Add more cache nodes and print the values to demonstrate rebalancing
+        kvStore.addCache(kvStore.newCache());
+        kvStore.addCache(kvStore.newCache());
+        kvStore.addCache(kvStore.newCache());
+        kvStore.awaitRebalance(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++) {
+            System.out.println(kvStore.get(i));
+        }
+
+        // Joins only scan the keys they take over, and still leave every key on exactly
+        // its replicas
+        ConsistentHashKVStore checked = new ConsistentHashKVStore(2);
+        for (int i = 0; i < 10; i++) {
+            checked.addCache(checked.newCache());
+        }
+        int keys = 10_000;
+        for (int i = 0; i < keys; i++) {
+            checked.put(i, "value" + i);
+        }
+        checked.awaitRebalance(10, TimeUnit.SECONDS);
+        long scannedBefore = checked.rebalancer.keysScanned();
+        for (int i = 0; i < 3; i++) {
+            checked.addCache(checked.newCache());
+        }
+        checked.awaitRebalance(10, TimeUnit.SECONDS);
+        long held = 0;
+        for (Cache cache : checked.getCaches()) {
+            held += cache.size();
+        }
+        for (int i = 0; i < keys; i++) {
+            for (Cache replica : checked.getCacheNodes(i)) {
+                if (replica.peek(i) == null) {
+                    throw new IllegalStateException("Key " + i + " is missing on its replica " + replica);
+                }
+            }
+        }
+        if (held != 3L * keys) {
+            throw new IllegalStateException(held + " copies held for " + keys + " keys with 3 replicas");
+        }
+        System.out.printf("%nThree joins to 13 nodes scanned %d of %d key copies per join%n",
+                (checked.rebalancer.keysScanned() - scannedBefore) / 3, 3L * keys);
+
+        // Dump the metrics as a Prometheus scrape would see them
+        System.out.println();
+        System.out.print(kvStore.metrics().toPrometheus());
+    }
+}
@@ -0,0 +1,380 @@
+package kvstore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Consistent hash ring over a 64-bit hash space. Every physical node is placed at a
+// configurable number of virtual node positions so that keys spread evenly and a
+// join or leave only moves roughly 1/N of the keys.
+//
+// Lookups never lock: they read an immutable snapshot holding the sorted virtual node
+// positions as a primitive long[] and binary search it. Membership changes are serialized,
+// build a new snapshot and publish it with a single volatile write.
+public class ConsistentHashRing<N> {
+
+    // Default number of virtual nodes per physical node
+    public static final int DEFAULT_VIRTUAL_NODES = 1024;
+
+    // Immutable view of the ring published on every membership change
+    private static final class Snapshot {
+        // Sorted virtual node positions
+        final long[] positions;
+        // Index into nodes of the physical node owning each position
+        final int[] owners;
+        // Physical nodes in the order they were added
+        final Object[] nodes;
+        // Ring positions occupied by each physical node
+        final long[][] nodePositions;
+
+        Snapshot(long[] positions, int[] owners, Object[] nodes, long[][] nodePositions) {
+            this.positions = positions;
+            this.owners = owners;
+            this.nodes = nodes;
+            this.nodePositions = nodePositions;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new long[0], new int[0], new Object[0], new long[0][]);
+
+    // Number of positions each physical node occupies on the ring
+    private final int virtualNodes;
+    // Current ring, replaced wholesale on every membership change
+    private volatile Snapshot snapshot;
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Virtual nodes per node must be at least 1");
+        }
+        this.virtualNodes = virtualNodes;
+        this.snapshot = EMPTY;
+    }
+
+    private ConsistentHashRing(int virtualNodes, Snapshot snapshot) {
+        this.virtualNodes = virtualNodes;
+        this.snapshot = snapshot;
+    }
+
+    // Independent ring with the same membership; cheap because snapshots are immutable
+    public ConsistentHashRing<N> copy() {
+        return new ConsistentHashRing<>(virtualNodes, snapshot);
+    }
+
+    // Hash a key onto the ring
+    public static long hash(int key) {
+        return MurmurHash3.hash64(key);
+    }
+
+    // Ring position of the given virtual node of a physical node
+    static long virtualNodePosition(String nodeId, int replica) {
+        return MurmurHash3.hash64(nodeId + "#" + replica);
+    }
+
+    // Place a physical node on the ring at all of its virtual node positions
+    public synchronized void addNode(String nodeId, N node) {
+        Snapshot current = snapshot;
+        if (indexOf(current, node) >= 0) {
+            throw new IllegalArgumentException("Node is already part of the ring: " + nodeId);
+        }
+
+        long[] added = new long[virtualNodes];
+        for (int i = 0; i < virtualNodes; i++) {
+            added[i] = virtualNodePosition(nodeId, i);
+        }
+        Arrays.sort(added);
+        // A 64-bit collision is practically impossible, but never let a new node steal a
+        // position that already belongs to another one; bumping keeps the array sorted
+        for (int i = 0; i < added.length; i++) {
+            while (Arrays.binarySearch(current.positions, added[i]) >= 0 || (i > 0 && added[i] <= added[i - 1])) {
+                added[i]++;
+            }
+        }
+
+        // Merge the new positions into the sorted ring
+        int ownerIndex = current.nodes.length;
+        long[] positions = new long[current.positions.length + added.length];
+        int[] owners = new int[positions.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < positions.length; k++) {
+            if (j == added.length || (i < current.positions.length && current.positions[i] < added[j])) {
+                positions[k] = current.positions[i];
+                owners[k] = current.owners[i++];
+            } else {
+                positions[k] = added[j++];
+                owners[k] = ownerIndex;
+            }
+        }
+
+        Object[] nodes = Arrays.copyOf(current.nodes, ownerIndex + 1);
+        nodes[ownerIndex] = node;
+        long[][] nodePositions = Arrays.copyOf(current.nodePositions, ownerIndex + 1);
+        nodePositions[ownerIndex] = added;
+        snapshot = new Snapshot(positions, owners, nodes, nodePositions);
+    }
+
+    // Remove a physical node and all of its virtual nodes from the ring
+    public synchronized boolean removeNode(N node) {
+        Snapshot current = snapshot;
+        int removed = indexOf(current, node);
+        if (removed < 0) {
+            return false;
+        }
+
+        long[] positions = new long[current.positions.length - current.nodePositions[removed].length];
+        int[] owners = new int[positions.length];
+        int k = 0;
+        for (int i = 0; i < current.positions.length; i++) {
+            int owner = current.owners[i];
+            if (owner != removed) {
+                positions[k] = current.positions[i];
+                owners[k++] = owner > removed ? owner - 1 : owner;
+            }
+        }
+
+        Object[] nodes = new Object[current.nodes.length - 1];
+        long[][] nodePositions = new long[nodes.length][];
+        for (int i = 0, n = 0; i < current.nodes.length; i++) {
+            if (i != removed) {
+                nodes[n] = current.nodes[i];
+                nodePositions[n++] = current.nodePositions[i];
+            }
+        }
+        snapshot = new Snapshot(positions, owners, nodes, nodePositions);
+        return true;
+    }
+
+    // Node that owns the given hash: the first virtual node clockwise from it
+    @SuppressWarnings("unchecked")
+    public N primary(long hash) {
+        Snapshot current = snapshot;
+        if (current.positions.length == 0) {
+            return null;
+        }
+        return (N) current.nodes[current.owners[ceilingIndex(current.positions, hash)]];
+    }
+
+    // Fill out with up to out.length distinct physical nodes, walking clockwise from the
+    // given hash, and return how many were found. Does not allocate.
+    @SuppressWarnings("unchecked")
+    public int successors(long hash, N[] out) {
+        Snapshot current = snapshot;
+        int limit = Math.min(out.length, current.nodes.length);
+        if (limit == 0) {
+            return 0;
+        }
+        int found = 0;
+        int index = ceilingIndex(current.positions, hash);
+        for (int step = 0; step < current.positions.length && found < limit; step++) {
+            N node = (N) current.nodes[current.owners[index]];
+            boolean seen = false;
+            for (int i = 0; i < found; i++) {
+                if (out[i] == node) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) {
+                out[found++] = node;
+            }
+            // Wrap around to the beginning of the ring
+            if (++index == current.positions.length) {
+                index = 0;
+            }
+        }
+        return found;
+    }
+
+    // Batch form of successors for many hashes sorted in ascending order: fills
+    // out[i * replicas .. i * replicas + found) with the distinct nodes for hashes[i] and
+    // returns found, which is the same for every hash. All hashes are resolved against the
+    // same snapshot, and since they are sorted each binary search starts where the previous
+    // one ended, so the batch costs a single pass over the ring. Hashes that land between
+    // the same two virtual nodes share their successors without walking the ring again.
+    @SuppressWarnings("unchecked")
+    public int successors(long[] hashes, int count, int replicas, N[] out) {
+        Snapshot current = snapshot;
+        long[] positions = current.positions;
+        int found = Math.min(replicas, current.nodes.length);
+        if (found == 0) {
+            return 0;
+        }
+        int from = 0;
+        int previous = -1;
+        for (int h = 0; h < count; h++) {
+            int index = Arrays.binarySearch(positions, from, positions.length, hashes[h]);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            from = index;
+            if (index == positions.length) {
+                index = 0;
+            }
+            int base = h * replicas;
+            if (index == previous) {
+                System.arraycopy(out, base - replicas, out, base, found);
+                continue;
+            }
+            previous = index;
+            int filled = 0;
+            for (int step = 0; step < positions.length && filled < found; step++) {
+                N node = (N) current.nodes[current.owners[index]];
+                boolean seen = false;
+                for (int i = 0; i < filled; i++) {
+                    if (out[base + i] == node) {
+                        seen = true;
+                        break;
+                    }
+                }
+                if (!seen) {
+                    out[base + filled++] = node;
+                }
+                if (++index == positions.length) {
+                    index = 0;
+                }
+            }
+        }
+        return found;
+    }
+
+    // Up to count distinct physical nodes, walking clockwise from the given hash
+    @SuppressWarnings("unchecked")
+    public List<N> successors(long hash, int count) {
+        N[] out = (N[]) new Object[count];
+        int found = successors(hash, out);
+        List<N> result = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            result.add(out[i]);
+        }
+        return result;
+    }
+
+    public boolean contains(N node) {
+        return indexOf(snapshot, node) >= 0;
+    }
+
+    // Sorted ring positions of the given node's virtual nodes, empty if it is not on the ring
+    public long[] positionsOf(N node) {
+        Snapshot current = snapshot;
+        int index = indexOf(current, node);
+        return index < 0 ? new long[0] : current.nodePositions[index].clone();
+    }
+
+    // Hashes whose first replicas distinct successors include the given node, as sorted,
+    // disjoint pairs of inclusive start and end positions; a range that wraps around the
+    // ring is split in two. Walking counterclockwise from each of the node's virtual nodes,
+    // its range starts after the replicas-th other node met, or after another virtual node
+    // of its own, whose range takes over from there.
+    public long[] rangesReaching(N node, int replicas) {
+        Snapshot current = snapshot;
+        int owner = indexOf(current, node);
+        if (owner < 0) {
+            return new long[0];
+        }
+        if (current.nodes.length <= replicas) {
+            return new long[] { Long.MIN_VALUE, Long.MAX_VALUE };
+        }
+        long[] positions = current.positions;
+        List<long[]> ranges = new ArrayList<>();
+        int[] seen = new int[replicas];
+        for (long end : current.nodePositions[owner]) {
+            int index = Arrays.binarySearch(positions, end);
+            int found = 0;
+            while (true) {
+                index = index == 0 ? positions.length - 1 : index - 1;
+                int other = current.owners[index];
+                if (other == owner) {
+                    break;
+                }
+                boolean known = false;
+                for (int i = 0; i < found; i++) {
+                    if (seen[i] == other) {
+                        known = true;
+                        break;
+                    }
+                }
+                if (!known) {
+                    seen[found++] = other;
+                    if (found == replicas) {
+                        break;
+                    }
+                }
+            }
+            long start = positions[index] + 1;
+            if (start <= end) {
+                ranges.add(new long[] { start, end });
+            } else {
+                ranges.add(new long[] { start, Long.MAX_VALUE });
+                ranges.add(new long[] { Long.MIN_VALUE, end });
+            }
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] result = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            result[2 * i] = ranges.get(i)[0];
+            result[2 * i + 1] = ranges.get(i)[1];
+        }
+        return result;
+    }
+
+    // Whether hash lies in one of the ranges returned by rangesReaching
+    public static boolean inRanges(long[] ranges, long hash) {
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[2 * mid] > hash) {
+                high = mid - 1;
+            } else if (ranges[2 * mid + 1] < hash) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Physical nodes in the order they were added
+    @SuppressWarnings("unchecked")
+    public List<N> nodes() {
+        List<N> result = new ArrayList<>();
+        for (Object node : snapshot.nodes) {
+            result.add((N) node);
+        }
+        return result;
+    }
+
+    // Number of physical nodes
+    public int size() {
+        return snapshot.nodes.length;
+    }
+
+    public boolean isEmpty() {
+        return snapshot.nodes.length == 0;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    // Index of the first position at or after hash, wrapping to 0 past the end of the ring
+    private static int ceilingIndex(long[] positions, long hash) {
+        int index = Arrays.binarySearch(positions, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index == positions.length ? 0 : index;
+    }
+
+    private static int indexOf(Snapshot snapshot, Object node) {
+        for (int i = 0; i < snapshot.nodes.length; i++) {
+            if (snapshot.nodes[i].equals(node)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,74 @@
+package kvstore;
+import java.util.Random;
+import java.util.function.LongFunction;
+
+// Replays synthetic access traces against bounded caches with each eviction policy and
+// reports hit ratio, evictions and throughput. A miss loads the key into the cache, as a
+// read-through cache in front of an origin would.
+//
+// Traces:
+//   zipf    requests over 100,000 keys drawn from a Zipf distribution
+//   scan    the same Zipf traffic, interleaved with sequential scans over keys that are
+//           never requested again (half of all requests)
+//
+// Usage: java EvictionBenchmark [requests] [zipfExponent]
+public class EvictionBenchmark {
+
+    private static final int KEY_SPACE = 100_000;
+
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        double exponent = args.length > 1 ? Double.parseDouble(args[1]) : 0.99;
+
+        int[] zipf = zipfTrace(requests, exponent, 1);
+        int[] scan = scanTrace(requests, exponent, 2);
+
+        System.out.printf("%-6s %8s %-10s %9s %11s %12s%n",
+                "trace", "size", "policy", "hit ratio", "evictions", "ops/sec");
+        for (int size : new int[] { KEY_SPACE / 100, KEY_SPACE / 10 }) {
+            replay("zipf", zipf, size, "lru", LruEvictionPolicy::new);
+            replay("zipf", zipf, size, "w-tinylfu", WTinyLfuEvictionPolicy::new);
+            replay("scan", scan, size, "lru", LruEvictionPolicy::new);
+            replay("scan", scan, size, "w-tinylfu", WTinyLfuEvictionPolicy::new);
+        }
+    }
+
+    private static void replay(String traceName, int[] trace, int size, String policyName,
+            LongFunction<EvictionPolicy> policyFactory) {
+        ConsistentHashKVStore.Cache cache = new ConsistentHashKVStore.Cache(policyName,
+                new HashMapStorageEngine(), policyFactory.apply(size), EvictionPolicy.Weigher.ENTRIES);
+        long start = System.nanoTime();
+        for (int key : trace) {
+            if (cache.get(key) == null) {
+                cache.put(key, "value");
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-6s %8d %-10s %9.4f %11d %12.0f%n", traceName, size, policyName,
+                cache.hitRatio(), cache.evictionCount(), trace.length * 1e9 / elapsed);
+    }
+
+    private static int[] zipfTrace(int requests, double exponent, long seed) {
+        ZipfDistribution zipf = new ZipfDistribution(KEY_SPACE, exponent);
+        Random random = new Random(seed);
+        int[] trace = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            trace[i] = zipf.sample(random);
+        }
+        return trace;
+    }
+
+    // Alternate bursts of Zipf requests with scans over fresh keys
+    private static int[] scanTrace(int requests, double exponent, long seed) {
+        ZipfDistribution zipf = new ZipfDistribution(KEY_SPACE, exponent);
+        Random random = new Random(seed);
+        int burst = KEY_SPACE / 20;
+        int nextScanKey = KEY_SPACE;
+        int[] trace = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            boolean scanning = (i / burst) % 2 == 1;
+            trace[i] = scanning ? nextScanKey++ : zipf.sample(random);
+        }
+        return trace;
+    }
+}
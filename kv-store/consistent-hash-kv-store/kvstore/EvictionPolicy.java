@@ -0,0 +1,47 @@
+package kvstore;
+import java.util.function.IntConsumer;
+
+// Decides which entries a bounded cache node evicts once its total weight exceeds the
+// maximum. Calls are serialized by the owning cache, so implementations need not be
+// thread-safe.
+public interface EvictionPolicy {
+
+    // Weight of an entry, counted against the policy's maximum weight
+    @FunctionalInterface
+    interface Weigher {
+        // Every entry weighs 1, so the maximum weight is an entry count
+        Weigher ENTRIES = (key, value) -> 1;
+        // Approximate heap-independent size of an entry: the key plus its UTF-8 value
+        Weigher BYTES = (key, value) -> Integer.BYTES + utf8Length(value);
+
+        int weigh(int key, String value);
+
+        private static int utf8Length(String value) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c)) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+    }
+
+    // Record a read of a key; keys that are not resident are ignored
+    void onAccess(int key);
+
+    // Record an insert or update of a key with the given weight and report every key that
+    // has to be evicted to get back under the maximum, possibly including key itself
+    void onWrite(int key, int weight, IntConsumer evict);
+
+    // Record that a key was removed from the cache
+    void onRemove(int key);
+}
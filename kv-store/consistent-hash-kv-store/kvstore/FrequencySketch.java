@@ -0,0 +1,82 @@
+package kvstore;
+
+// Count-min sketch of 4-bit counters estimating how often each key was seen recently.
+// Every key maps to four counters, one in each of four longs, and its frequency is the
+// smallest of them. Once the number of increments reaches ten times the table size all
+// counters are halved, so the estimates follow changes in popularity.
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(long expectedEntries) {
+        int size = (int) Math.min(1 << 30, Long.highestOneBit(Math.max(16, expectedEntries) - 1) << 1);
+        this.table = new long[size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    // Estimated number of recent occurrences of key, at most 15
+    int frequency(int key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    // Count an occurrence of key
+    void increment(int key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    // Increment the counter at the given position of a long unless it is saturated
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long counterMask = 0xfL << offset;
+        if ((table[index] & counterMask) != counterMask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    // Halve every counter
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int spread(int key) {
+        int h = key * 0x9e3779bb;
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    }
+}
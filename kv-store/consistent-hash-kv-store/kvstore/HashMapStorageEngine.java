@@ -0,0 +1,61 @@
+package kvstore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+// Storage engine backed by a ConcurrentHashMap of boxed keys and versioned String values
+public class HashMapStorageEngine implements StorageEngine {
+
+    private final ConcurrentHashMap<Integer, Versioned> map = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(int key, String value) {
+        map.put(key, new Versioned(value, Versioned.UNVERSIONED));
+    }
+
+    @Override
+    public boolean putIfNewer(int key, String value, long version) {
+        Versioned written = new Versioned(value, version);
+        return map.merge(key, written, (current, update) -> current.version < update.version ? update : current)
+                == written;
+    }
+
+    @Override
+    public String putIfAbsent(int key, String value) {
+        Versioned existing = map.putIfAbsent(key, new Versioned(value, Versioned.UNVERSIONED));
+        return existing == null ? null : existing.value;
+    }
+
+    @Override
+    public String get(int key) {
+        Versioned versioned = map.get(key);
+        return versioned == null ? null : versioned.value;
+    }
+
+    @Override
+    public Versioned getVersioned(int key) {
+        return map.get(key);
+    }
+
+    @Override
+    public String remove(int key) {
+        Versioned removed = map.remove(key);
+        return removed == null ? null : removed.value;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        map.forEach((key, versioned) -> action.accept(key, versioned.value));
+    }
+
+    @Override
+    public void forEachKey(IntConsumer action) {
+        for (Integer key : map.keySet()) {
+            action.accept(key);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package kvstore;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Streaming heavy-hitters detector for the keys of reads. One read in sampleRate is
+// recorded into a lossy ReadBuffer, and whoever fills a stripe drains the buffer into a
+// Space-Saving summary (Metwally, Agrawal and El Abbadi) if no one else is doing so. The
+// summary monitors a fixed number of keys; an unmonitored key takes over the slot of the
+// least counted one and inherits its count as its possible overestimate. Counts, errors
+// and the number of samples are halved periodically, so the summary follows changes in
+// popularity.
+//
+// Every refresh the keys whose guaranteed count (count minus overestimate) makes up at least
+// minShare of the samples are published as an immutable snapshot, at most maxHotKeys of
+// them, hottest first. Readers only ever look at the snapshot.
+final class HotKeyDetector {
+
+    // Samples drained between refreshes of the hot set
+    private static final int REFRESH_SAMPLES = 1024;
+    // Monitored keys per hot key that may be reported, which keeps overestimates small
+    private static final int COUNTERS_PER_HOT_KEY = 8;
+
+    // Bits of the filter in front of the sorted hot keys
+    private static final int FILTER_BITS = 1 << 12;
+
+    // Hot keys of one refresh: hottest first, and sorted for lookups behind a one-hash
+    // bitmap that turns away almost every key that is not hot with a single load
+    private static final class Snapshot {
+        final int[] keys;
+        final double[] shares;
+        final int[] sorted;
+        final long[] filter = new long[FILTER_BITS / 64];
+
+        Snapshot(int[] keys, double[] shares) {
+            this.keys = keys;
+            this.shares = shares;
+            this.sorted = keys.clone();
+            Arrays.sort(sorted);
+            for (int key : keys) {
+                int bit = filterBit(key);
+                filter[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        boolean contains(int key) {
+            int bit = filterBit(key);
+            return (filter[bit >>> 6] & (1L << bit)) != 0 && Arrays.binarySearch(sorted, key) >= 0;
+        }
+
+        private static int filterBit(int key) {
+            int h = key * 0x9e3779bb;
+            return (h ^ (h >>> 16)) & (FILTER_BITS - 1);
+        }
+    }
+
+    private final int sampleRate;
+    private final int maxHotKeys;
+    private final double minShare;
+    private final ReadBuffer buffer = new ReadBuffer();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Snapshot snapshot = new Snapshot(new int[0], new double[0]);
+
+    // Space-Saving summary, only touched under the lock. Monitored keys form a min-heap on
+    // their counts, and index maps a key to its heap position.
+    private final int[] heapKeys;
+    private final long[] counts;
+    private final long[] errors;
+    private int size;
+    private final IntIndex index;
+    private long samples;
+    private long sinceRefresh;
+    private final long decayPeriod;
+
+    // Report at most maxHotKeys keys that each make up at least minShare of the reads,
+    // sampling one read in sampleRate
+    HotKeyDetector(int maxHotKeys, double minShare, int sampleRate) {
+        if (maxHotKeys < 1) {
+            throw new IllegalArgumentException("At least one hot key must be reported");
+        }
+        if (minShare <= 0 || minShare > 1) {
+            throw new IllegalArgumentException("Minimum share must be in (0, 1]");
+        }
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        this.sampleRate = sampleRate;
+        this.maxHotKeys = maxHotKeys;
+        this.minShare = minShare;
+        int capacity = maxHotKeys * COUNTERS_PER_HOT_KEY;
+        this.heapKeys = new int[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.index = new IntIndex(capacity);
+        this.decayPeriod = 16L * Math.max(capacity, REFRESH_SAMPLES);
+    }
+
+    // Sample a read of key and return whether the hot set was refreshed by this call
+    boolean record(int key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return false;
+        }
+        if (!buffer.record(key) || !lock.tryLock()) {
+            return false;
+        }
+        try {
+            buffer.drain(this::add);
+            if (sinceRefresh < REFRESH_SAMPLES) {
+                return false;
+            }
+            sinceRefresh = 0;
+            publish();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether key was hot at the last refresh
+    boolean isHot(int key) {
+        return snapshot.contains(key);
+    }
+
+    // Keys that were hot at the last refresh, hottest first
+    int[] hotKeys() {
+        return snapshot.keys.clone();
+    }
+
+    // Estimated share of the reads of each key returned by hotKeys, in the same order
+    double[] hotKeyShares() {
+        return snapshot.shares.clone();
+    }
+
+    int hotKeyCount() {
+        return snapshot.keys.length;
+    }
+
+    // Space-Saving update for one sampled read
+    private void add(int key) {
+        samples++;
+        sinceRefresh++;
+        int position = index.get(key);
+        if (position >= 0) {
+            counts[position]++;
+            siftDown(position);
+        } else if (size < heapKeys.length) {
+            heapKeys[size] = key;
+            counts[size] = 1;
+            errors[size] = 0;
+            index.put(key, size);
+            siftUp(size++);
+        } else {
+            // Replace the least counted key, which may have been seen up to its count times
+            index.remove(heapKeys[0]);
+            heapKeys[0] = key;
+            errors[0] = counts[0];
+            counts[0]++;
+            index.put(key, 0);
+            siftDown(0);
+        }
+        if (samples >= decayPeriod) {
+            decay();
+        }
+    }
+
+    // Halve all counts, which keeps the heap order
+    private void decay() {
+        for (int i = 0; i < size; i++) {
+            counts[i] >>>= 1;
+            errors[i] >>>= 1;
+        }
+        samples >>>= 1;
+    }
+
+    private void publish() {
+        long threshold = (long) Math.ceil(minShare * samples);
+        Integer[] order = new Integer[size];
+        int hot = 0;
+        for (int i = 0; i < size; i++) {
+            if (counts[i] - errors[i] >= threshold) {
+                order[hot++] = i;
+            }
+        }
+        Arrays.sort(order, 0, hot, (a, b) -> Long.compare(counts[b], counts[a]));
+        hot = Math.min(hot, maxHotKeys);
+        int[] keys = new int[hot];
+        double[] shares = new double[hot];
+        for (int i = 0; i < hot; i++) {
+            keys[i] = heapKeys[order[i]];
+            shares[i] = (double) counts[order[i]] / samples;
+        }
+        snapshot = new Snapshot(keys, shares);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[parent] <= counts[position]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (left + 1 < size && counts[left + 1] < counts[smallest]) {
+                smallest = left + 1;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int key = heapKeys[i];
+        heapKeys[i] = heapKeys[j];
+        heapKeys[j] = key;
+        long count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        long error = errors[i];
+        errors[i] = errors[j];
+        errors[j] = error;
+        index.put(heapKeys[i], i);
+        index.put(heapKeys[j], j);
+    }
+
+    // Open-addressing map from int keys to non-negative int values with linear probing and
+    // backward-shift deletion, at most half full
+    private static final class IntIndex {
+        private static final int EMPTY = -1;
+
+        private final int[] keys;
+        private final int[] values;
+        private final int mask;
+
+        IntIndex(int capacity) {
+            int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+            this.keys = new int[slots];
+            this.values = new int[slots];
+            this.mask = slots - 1;
+            Arrays.fill(values, EMPTY);
+        }
+
+        int get(int key) {
+            for (int slot = slot(key); values[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return EMPTY;
+        }
+
+        void put(int key, int value) {
+            int slot = slot(key);
+            while (values[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        void remove(int key) {
+            int slot = slot(key);
+            while (values[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == EMPTY) {
+                return;
+            }
+            // Shift later entries of the probe run back into the hole
+            int hole = slot;
+            for (int next = (hole + 1) & mask; values[next] != EMPTY; next = (next + 1) & mask) {
+                int home = slot(keys[next]);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+            values[hole] = EMPTY;
+        }
+
+        private int slot(int key) {
+            int h = key * 0x9e3779bb;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
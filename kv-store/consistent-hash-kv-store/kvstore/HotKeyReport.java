@@ -0,0 +1,137 @@
+package kvstore;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+// Skewed reads with and without the near-cache for hot keys. Replays a Zipf trace, prints
+// the hot keys the detector found next to their true share of the reads, and reports how
+// evenly the reads spread over the nodes for reads only and for a 90% get / 10% put mix:
+// max/mean requests per node, since the node that owns the hottest key is the one that
+// saturates first. HotKeyBenchmark in the jmh source set measures the throughput.
+//
+// Usage: java kvstore.HotKeyReport [zipfExponent] [maxHotKeys] [sampleRate]
+public class HotKeyReport {
+
+    static final int KEYS = 100_000;
+    static final int NODES = 10;
+    static final int REPLICATION_FACTOR = 2;
+    static final int TRACE_LENGTH = 1 << 20;
+    static final double MIN_SHARE = 0.001;
+
+    public static void main(String[] args) {
+        double exponent = args.length > 0 ? Double.parseDouble(args[0]) : 1.2;
+        int maxHotKeys = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int sampleRate = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        ZipfDistribution zipf = new ZipfDistribution(KEYS, exponent);
+        int[] trace = trace(zipf);
+
+        PrintStream out = System.out;
+        out.printf("Keys: %d, nodes: %d, zipf exponent: %.2f, hot keys: up to %d above %.1f%% of reads, "
+                + "sampling 1 in %d%n", KEYS, NODES, exponent, maxHotKeys, MIN_SHARE * 100, sampleRate);
+
+        ConsistentHashKVStore store = createStore();
+        store.enableNearCache(maxHotKeys, MIN_SHARE, sampleRate);
+        for (int key : trace) {
+            store.get(key);
+        }
+        reportHotKeys(out, store, zipf, maxHotKeys);
+
+        out.println();
+        out.printf("%-9s %-10s %10s%n", "workload", "nearcache", "max/mean");
+        for (int putsPerTen : new int[] { 0, 1 }) {
+            for (boolean near : new boolean[] { false, true }) {
+                ConsistentHashKVStore measured = createStore();
+                if (near) {
+                    measured.enableNearCache(maxHotKeys, MIN_SHARE, sampleRate);
+                }
+                long[] before = requestCounts(measured);
+                Random random = new Random(11);
+                for (int key : trace) {
+                    if (random.nextInt(10) < putsPerTen) {
+                        measured.put(key, "value" + key);
+                    } else {
+                        measured.get(key);
+                    }
+                }
+                out.printf("%-9s %-10s %10.2f%n", putsPerTen == 0 ? "get" : "get/put", near ? "on" : "off",
+                        maxOverMean(measured, before));
+            }
+        }
+    }
+
+    // TRACE_LENGTH keys drawn from zipf; keys are Zipf ranks, so key 0 is the hottest
+    static int[] trace(ZipfDistribution zipf) {
+        int[] trace = new int[TRACE_LENGTH];
+        Random random = new Random(7);
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = zipf.sample(random);
+        }
+        return trace;
+    }
+
+    // Detected hot keys against the true top keys of the distribution
+    private static void reportHotKeys(PrintStream out, ConsistentHashKVStore store, ZipfDistribution zipf,
+            int maxHotKeys) {
+        int[] hot = store.hotKeys();
+        double[] shares = store.hotKeyShares();
+        out.printf("Hot keys after one pass over the trace: %d%n", hot.length);
+        out.printf("%5s %8s %12s %11s%n", "rank", "key", "estimated", "true");
+        for (int i = 0; i < Math.min(10, hot.length); i++) {
+            out.printf("%5d %8d %11.2f%% %10.2f%%%n", i + 1, hot[i], shares[i] * 100, zipf.probability(hot[i]) * 100);
+        }
+        // Keys of the trace are Zipf ranks, so the true top keys are 0, 1, 2, ...
+        int expected = 0;
+        while (expected < Math.min(maxHotKeys, KEYS) && zipf.probability(expected) >= MIN_SHARE) {
+            expected++;
+        }
+        int found = 0;
+        double covered = 0;
+        for (int key : hot) {
+            if (key < expected) {
+                found++;
+            }
+            covered += zipf.probability(key);
+        }
+        out.printf("Found %d of the %d keys above %.1f%% of reads; the hot set covers %.1f%% of reads%n", found,
+                expected, MIN_SHARE * 100, covered * 100);
+    }
+
+    private static long[] requestCounts(ConsistentHashKVStore store) {
+        List<ConsistentHashKVStore.Cache> caches = store.getCaches();
+        long[] counts = new long[caches.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = caches.get(i).requestCount();
+        }
+        return counts;
+    }
+
+    // Most requests any node served since before, over the mean
+    private static double maxOverMean(ConsistentHashKVStore store, long[] before) {
+        long[] after = requestCounts(store);
+        long max = 0;
+        long total = 0;
+        for (int i = 0; i < after.length; i++) {
+            long served = after[i] - before[i];
+            max = Math.max(max, served);
+            total += served;
+        }
+        return total == 0 ? 0 : (double) max * after.length / total;
+    }
+
+    static ConsistentHashKVStore createStore() {
+        ConsistentHashKVStore store = new ConsistentHashKVStore(REPLICATION_FACTOR,
+                ConsistentHashRing.DEFAULT_VIRTUAL_NODES, PrimitiveStorageEngine::new);
+        for (int i = REPLICATION_FACTOR + 1; i < NODES; i++) {
+            store.addCache(store.newCache());
+        }
+        int[] keys = new int[KEYS];
+        String[] values = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = i;
+            values[i] = "value" + i;
+        }
+        store.putAll(keys, values);
+        return store;
+    }
+}
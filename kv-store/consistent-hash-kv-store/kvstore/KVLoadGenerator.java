@@ -0,0 +1,244 @@
+package kvstore;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import metrics.Metrics;
+
+// Load generator for KVServer, or anything else that speaks GET and SET over RESP. Each
+// connection runs on its own thread and sends pipelines of requests for random keys, a
+// share of them GETs and the rest SETs, timing each pipeline from the first byte sent to
+// the last reply received. Every request counts with the round trip of its pipeline, so
+// deeper pipelines trade latency for throughput. Keys are written once before the run so
+// that GETs hit.
+//
+// Without an address the generator starts a KVServer in-process and talks to it over
+// loopback, which sizes the server without any other service running.
+//
+// Usage: java KVLoadGenerator [host:port|embedded] [connections] [pipeline] [seconds]
+//                             [getRatio] [keys] [valueSize]
+public class KVLoadGenerator {
+
+    private static final long WARMUP_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "embedded";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int pipeline = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 5;
+        double getRatio = args.length > 4 ? Double.parseDouble(args[4]) : 0.9;
+        int keys = args.length > 5 ? Integer.parseInt(args[5]) : 100_000;
+        int valueSize = args.length > 6 ? Integer.parseInt(args[6]) : 100;
+
+        KVServer embedded = null;
+        InetSocketAddress address;
+        if (target.equals("embedded")) {
+            ConsistentHashKVStore store = new ConsistentHashKVStore(0, ConsistentHashRing.DEFAULT_VIRTUAL_NODES,
+                    PrimitiveStorageEngine::new);
+            for (int i = 1; i < 10; i++) {
+                store.addCache(store.newCache());
+            }
+            embedded = new KVServer(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            embedded.start();
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), embedded.getPort());
+        } else {
+            int colon = target.lastIndexOf(':');
+            address = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        }
+
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        try {
+            preload(address, keys, value);
+            System.out.printf("Target: %s, connections: %d, pipeline: %d, GETs: %.0f%%, keys: %d, value: %d bytes%n",
+                    address, connections, pipeline, getRatio * 100, keys, valueSize);
+
+            long[] requests = new long[connections];
+            long[] errors = new long[connections];
+            Metrics.Histogram latency = new Metrics.Histogram();
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            Thread[] threads = new Thread[connections];
+            for (int c = 0; c < connections; c++) {
+                int index = c;
+                threads[c] = Thread.ofPlatform().name("load-" + c).start(() -> {
+                    try {
+                        run(address, index, pipeline, getRatio, keys, value, start, end, requests, errors,
+                                latency);
+                    } catch (IOException e) {
+                        System.err.println("Connection " + index + " failed: " + e);
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            long totalRequests = 0;
+            long totalErrors = 0;
+            for (int c = 0; c < connections; c++) {
+                totalRequests += requests[c];
+                totalErrors += errors[c];
+            }
+            System.out.printf("%12s %10s %10s %10s %10s %8s%n", "ops/s", "p50 us", "p99 us", "p99.9 us",
+                    "max us", "errors");
+            System.out.printf("%12.0f %10.1f %10.1f %10.1f %10.1f %8d%n", totalRequests * 1e9 / (end - start),
+                    latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, latency.percentile(0.999) / 1e3,
+                    latency.percentile(1.0) / 1e3, totalErrors);
+        } finally {
+            if (embedded != null) {
+                embedded.close();
+            }
+        }
+    }
+
+    // Write every key once, in pipelines of 1000
+    private static void preload(InetSocketAddress address, int keys, byte[] value) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+            ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+            for (int from = 0; from < keys; from += 1000) {
+                int to = Math.min(keys, from + 1000);
+                out.clear();
+                for (int key = from; key < to; key++) {
+                    set(out, key, value);
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                if (readReplies(channel, in, to - from) > 0) {
+                    throw new IOException("Preloading failed");
+                }
+            }
+        }
+    }
+
+    private static void run(InetSocketAddress address, int index, int pipeline, double getRatio, int keys,
+            byte[] value, long start, long end, long[] requests, long[] errors, Metrics.Histogram latency)
+            throws IOException {
+        SplittableRandom random = new SplittableRandom(index * 0x9e3779b97f4a7c15L);
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer out = ByteBuffer.allocateDirect(pipeline * (64 + value.length));
+            ByteBuffer in = ByteBuffer.allocateDirect(Math.max(1 << 16, pipeline * (32 + value.length)));
+            long now = System.nanoTime();
+            while (now < end) {
+                out.clear();
+                for (int i = 0; i < pipeline; i++) {
+                    int key = random.nextInt(keys);
+                    if (random.nextDouble() < getRatio) {
+                        get(out, key);
+                    } else {
+                        set(out, key, value);
+                    }
+                }
+                out.flip();
+                long sent = System.nanoTime();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                long failed = readReplies(channel, in, pipeline);
+                now = System.nanoTime();
+                if (sent >= start) {
+                    for (int i = 0; i < pipeline; i++) {
+                        latency.record(now - sent);
+                    }
+                    requests[index] += pipeline;
+                    errors[index] += failed;
+                }
+            }
+        }
+    }
+
+    private static void get(ByteBuffer out, int key) {
+        out.put("*2\r\n$3\r\nGET\r\n".getBytes(StandardCharsets.US_ASCII));
+        bulk(out, Integer.toString(key).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void set(ByteBuffer out, int key, byte[] value) {
+        out.put("*3\r\n$3\r\nSET\r\n".getBytes(StandardCharsets.US_ASCII));
+        bulk(out, Integer.toString(key).getBytes(StandardCharsets.US_ASCII));
+        bulk(out, value);
+    }
+
+    private static void bulk(ByteBuffer out, byte[] bytes) {
+        out.put(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.put(bytes);
+        out.put((byte) '\r').put((byte) '\n');
+    }
+
+    // Read until count complete replies arrived and return how many were errors
+    private static long readReplies(SocketChannel channel, ByteBuffer in, int count) throws IOException {
+        in.clear();
+        int position = 0;
+        long failed = 0;
+        while (count > 0) {
+            if (channel.read(in) < 0) {
+                throw new IOException("Server closed the connection");
+            }
+            while (count > 0) {
+                int next = skipReply(in, position);
+                if (next < 0) {
+                    break;
+                }
+                if (in.get(position) == '-') {
+                    failed++;
+                }
+                position = next;
+                count--;
+            }
+            if (count > 0 && !in.hasRemaining()) {
+                // Make room by dropping the replies already counted
+                in.flip().position(position);
+                in.compact();
+                position = 0;
+            }
+        }
+        return failed;
+    }
+
+    // Position after the reply starting at position, or -1 if it has not fully arrived
+    private static int skipReply(ByteBuffer in, int position) {
+        int limit = in.position();
+        int lineEnd = lineEnd(in, position, limit);
+        if (lineEnd < 0) {
+            return -1;
+        }
+        byte type = in.get(position);
+        if (type != '$' && type != '*') {
+            return lineEnd;
+        }
+        long length = 0;
+        boolean negative = in.get(position + 1) == '-';
+        for (int i = position + (negative ? 2 : 1); i < lineEnd - 2; i++) {
+            length = length * 10 + (in.get(i) - '0');
+        }
+        if (negative) {
+            return lineEnd;
+        }
+        if (type == '$') {
+            return lineEnd + length + 2 <= limit ? (int) (lineEnd + length + 2) : -1;
+        }
+        int next = lineEnd;
+        for (long i = 0; i < length && next >= 0; i++) {
+            next = skipReply(in, next);
+        }
+        return next;
+    }
+
+    private static int lineEnd(ByteBuffer in, int position, int limit) {
+        for (int i = position; i + 1 < limit; i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+}
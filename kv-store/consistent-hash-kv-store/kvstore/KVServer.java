@@ -0,0 +1,503 @@
+package kvstore;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import metrics.Metrics;
+
+// Network front end for a ConsistentHashKVStore speaking a subset of the Redis protocol
+// (RESP2), so redis-cli and redis-benchmark can talk to it as well as KVLoadGenerator:
+//
+//   PING [message]       +PONG, or the message as a bulk string
+//   GET key              the value as a bulk string, or a null bulk string if absent
+//   SET key value        +OK
+//   MGET key [key ...]   an array of bulk strings
+//   INFO                 the store's metrics in the Prometheus text format
+//   QUIT                 +OK, then the connection is closed
+//   COMMAND, CONFIG      an empty array, for clients that probe the server on connect
+//
+// Keys are decimal integers, since the store is keyed by int.
+//
+// Every connection is served by its own virtual thread doing blocking reads and writes on
+// a SocketChannel through direct buffers. Requests are pipelined: the thread executes every
+// complete command it has read and writes all of their replies at once, so a client that
+// sends many commands together pays one round trip and one system call each way. GET
+// copies the value from the storage engine straight into the direct output buffer, without
+// decoding it into a String, and the kernel reads it from there.
+public class KVServer implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Largest command or reply handled; a connection sending a longer command is closed
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+    // Longest header of a reply: type, ten digits and CRLF
+    private static final int MAX_HEADER = 13;
+
+    private static final byte[] OK = bytes("+OK\r\n");
+    private static final byte[] PONG = bytes("+PONG\r\n");
+    private static final byte[] NULL_BULK = bytes("$-1\r\n");
+    private static final byte[] EMPTY_ARRAY = bytes("*0\r\n");
+    private static final byte[] CRLF = bytes("\r\n");
+
+    // Malformed input; the connection is answered with an error and closed
+    private static final class ProtocolException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // A well-formed command that cannot be executed; answered with an error
+    private static final class CommandException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CommandException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final ConsistentHashKVStore store;
+    private final InetSocketAddress address;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private final Metrics.Counter commands;
+    private volatile ServerSocketChannel server;
+    private Thread acceptor;
+
+    // Serve store on the given address; port 0 picks a free port, see getPort
+    public KVServer(ConsistentHashKVStore store, InetSocketAddress address) {
+        this.store = store;
+        this.address = address;
+        this.commands = store.metrics().counter("kv_server_commands_total", "Commands executed by the server");
+        store.metrics().gauge("kv_server_connections", "Open client connections", connections::size);
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        acceptor = Thread.ofPlatform().name("kv-server").daemon().start(this::accept);
+    }
+
+    // Port the server listens on, once started
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ServerSocketChannel current = server;
+        if (current != null) {
+            current.close();
+        }
+        for (SocketChannel connection : connections) {
+            connection.close();
+        }
+        workers.shutdownNow();
+    }
+
+    // Wait until the server is closed
+    public void awaitTermination() throws InterruptedException {
+        acceptor.join();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.add(channel);
+                workers.execute(new Connection(channel));
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    // One client connection and its buffers, used by a single virtual thread
+    private final class Connection implements Runnable {
+        private final SocketChannel channel;
+        private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // Arguments of the current command as positions and lengths in the input buffer
+        private int[] argumentStart = new int[8];
+        private int[] argumentLength = new int[8];
+        private int arguments;
+        // Position after the line ended by the last number read
+        private int lineEnd;
+        // Length of the last bulk string header written, the best guess for the next one
+        private int headerGuess = 3;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try (channel) {
+                while (channel.read(in) >= 0) {
+                    in.flip();
+                    try {
+                        while (parse()) {
+                            if (!execute()) {
+                                flush();
+                                return;
+                            }
+                        }
+                    } catch (ProtocolException e) {
+                        error("Protocol error: " + e.getMessage());
+                        flush();
+                        return;
+                    }
+                    in.compact();
+                    if (!in.hasRemaining()) {
+                        // A command longer than the buffer
+                        if (in.capacity() >= MAX_MESSAGE_SIZE) {
+                            error("Protocol error: command too long");
+                            flush();
+                            return;
+                        }
+                        ByteBuffer larger = ByteBuffer.allocateDirect(Math.min(MAX_MESSAGE_SIZE, in.capacity() * 2));
+                        larger.put(in.flip());
+                        in = larger;
+                    }
+                    flush();
+                }
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                connections.remove(channel);
+            }
+        }
+
+        // Parse the command at the input buffer's position into the argument arrays and move
+        // past it. Returns false, leaving the position alone, if it has not fully arrived.
+        private boolean parse() {
+            int position = in.position();
+            int limit = in.limit();
+            if (position >= limit) {
+                return false;
+            }
+            if (in.get(position) != '*') {
+                throw new ProtocolException("expected '*', got '" + (char) in.get(position) + "'");
+            }
+            long count = number(position + 1);
+            if (count < 0) {
+                return false;
+            }
+            if (count < 1 || count > MAX_ARGUMENTS) {
+                throw new ProtocolException("invalid argument count " + count);
+            }
+            if (count > argumentStart.length) {
+                argumentStart = new int[(int) count];
+                argumentLength = new int[(int) count];
+            }
+            position = lineEnd;
+            for (int i = 0; i < count; i++) {
+                if (position >= limit) {
+                    return false;
+                }
+                if (in.get(position) != '$') {
+                    throw new ProtocolException("expected '$', got '" + (char) in.get(position) + "'");
+                }
+                long length = number(position + 1);
+                if (length < 0) {
+                    return false;
+                }
+                if (length > MAX_MESSAGE_SIZE) {
+                    throw new ProtocolException("invalid bulk length " + length);
+                }
+                position = lineEnd;
+                if (limit - position < length + 2) {
+                    return false;
+                }
+                argumentStart[i] = position;
+                argumentLength[i] = (int) length;
+                position += (int) length + 2;
+            }
+            arguments = (int) count;
+            in.position(position);
+            return true;
+        }
+
+        // Non-negative decimal number from position to the end of its line, or -1 if the
+        // line has not fully arrived. Sets lineEnd.
+        private long number(int position) {
+            int limit = in.limit();
+            long value = 0;
+            int digits = 0;
+            while (position < limit) {
+                byte b = in.get(position++);
+                if (b == '\r') {
+                    if (position >= limit) {
+                        return -1;
+                    }
+                    if (digits == 0 || in.get(position) != '\n') {
+                        throw new ProtocolException("invalid number");
+                    }
+                    lineEnd = position + 1;
+                    return value;
+                }
+                if (b < '0' || b > '9' || ++digits > 18) {
+                    throw new ProtocolException("invalid number");
+                }
+                value = value * 10 + (b - '0');
+            }
+            return -1;
+        }
+
+        // Execute the parsed command and buffer its reply. Returns false to close the connection.
+        private boolean execute() throws IOException {
+            commands.increment();
+            try {
+                if (is(0, "GET")) {
+                    expectArguments(2);
+                    value(key(1));
+                } else if (is(0, "SET")) {
+                    expectArguments(3);
+                    int key = key(1);
+                    byte[] value = new byte[argumentLength[2]];
+                    in.get(argumentStart[2], value);
+                    store.put(key, new String(value, StandardCharsets.UTF_8));
+                    write(OK);
+                } else if (is(0, "MGET")) {
+                    if (arguments < 2) {
+                        throw wrongArguments();
+                    }
+                    // Check every key before the reply starts
+                    int[] keys = new int[arguments - 1];
+                    for (int i = 1; i < arguments; i++) {
+                        keys[i - 1] = key(i);
+                    }
+                    header('*', keys.length);
+                    for (int key : keys) {
+                        value(key);
+                    }
+                } else if (is(0, "PING")) {
+                    if (arguments == 1) {
+                        write(PONG);
+                    } else {
+                        expectArguments(2);
+                        bulk(argument(1).getBytes(StandardCharsets.UTF_8));
+                    }
+                } else if (is(0, "INFO")) {
+                    bulk(store.metrics().toPrometheus().getBytes(StandardCharsets.UTF_8));
+                } else if (is(0, "QUIT")) {
+                    write(OK);
+                    return false;
+                } else if (is(0, "COMMAND") || is(0, "CONFIG")) {
+                    write(EMPTY_ARRAY);
+                } else {
+                    throw new CommandException("unknown command '" + argument(0) + "'");
+                }
+            } catch (CommandException e) {
+                error(e.getMessage());
+            } catch (RuntimeException e) {
+                error(String.valueOf(e.getMessage()));
+            }
+            return true;
+        }
+
+        // Whether argument i is the given command name, ignoring ASCII case
+        private boolean is(int i, String name) {
+            if (argumentLength[i] != name.length()) {
+                return false;
+            }
+            int start = argumentStart[i];
+            for (int j = 0; j < name.length(); j++) {
+                if ((in.get(start + j) & ~0x20) != name.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String argument(int i) {
+            byte[] bytes = new byte[argumentLength[i]];
+            in.get(argumentStart[i], bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void expectArguments(int count) {
+            if (arguments != count) {
+                throw wrongArguments();
+            }
+        }
+
+        private CommandException wrongArguments() {
+            return new CommandException("wrong number of arguments for '" + argument(0).toLowerCase(Locale.ROOT) + "' command");
+        }
+
+        // Argument i as an int key, parsed from the input buffer
+        private int key(int i) {
+            int start = argumentStart[i];
+            int length = argumentLength[i];
+            boolean negative = length > 1 && in.get(start) == '-';
+            int digits = negative ? length - 1 : length;
+            if (digits < 1 || digits > 10) {
+                throw new CommandException("key is not an integer or out of range");
+            }
+            long value = 0;
+            for (int j = length - digits; j < length; j++) {
+                byte b = in.get(start + j);
+                if (b < '0' || b > '9') {
+                    throw new CommandException("key is not an integer or out of range");
+                }
+                value = value * 10 + (b - '0');
+            }
+            value = negative ? -value : value;
+            if (value != (int) value) {
+                throw new CommandException("key is not an integer or out of range");
+            }
+            return (int) value;
+        }
+
+        // Reply with the value of key as a bulk string copied straight from the store. The
+        // header goes before the value but its length depends on the value's, so room for
+        // the header is guessed from the previous reply and the value moved if the guess
+        // was wrong, which for values of similar size is rare.
+        private void value(int key) throws IOException {
+            while (true) {
+                // Room for the guessed header, some value bytes, a header longer than
+                // guessed and the trailing CRLF
+                ensure(MAX_HEADER + 64);
+                int start = out.position();
+                out.position(start + headerGuess);
+                out.limit(out.capacity() - (MAX_HEADER - headerGuess) - 2);
+                int room = out.remaining();
+                int length;
+                try {
+                    length = store.getBytes(key, out);
+                } catch (RuntimeException e) {
+                    // Drop anything the store wrote, so the error reply does not follow a
+                    // partial value
+                    out.position(start);
+                    throw e;
+                } finally {
+                    out.limit(out.capacity());
+                }
+                if (length < 0) {
+                    out.position(start);
+                    write(NULL_BULK);
+                    return;
+                }
+                if (length > room) {
+                    // Did not fit: send what is buffered, make room and ask again
+                    out.position(start);
+                    flush();
+                    if (length + MAX_HEADER + 2 > out.capacity()) {
+                        if (length > MAX_MESSAGE_SIZE) {
+                            throw new CommandException("value too long");
+                        }
+                        out = ByteBuffer.allocateDirect(length + MAX_HEADER + 2);
+                    }
+                    continue;
+                }
+                int header = 1 + digits(length) + 2;
+                if (header != headerGuess) {
+                    byte[] value = new byte[length];
+                    out.get(start + headerGuess, value);
+                    out.put(start + header, value);
+                    headerGuess = header;
+                }
+                out.position(start);
+                header('$', length);
+                out.position(start + header + length);
+                out.put(CRLF);
+                return;
+            }
+        }
+
+        private void bulk(byte[] value) throws IOException {
+            header('$', value.length);
+            write(value);
+            write(CRLF);
+        }
+
+        private void error(String message) throws IOException {
+            write(("-ERR " + message.replace('\r', ' ').replace('\n', ' ') + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Write a type byte, a non-negative number and CRLF without allocating
+        private void header(char type, int value) throws IOException {
+            ensure(MAX_HEADER);
+            out.put((byte) type);
+            int end = out.position() + digits(value);
+            for (int position = end - 1; position >= out.position(); position--) {
+                out.put(position, (byte) ('0' + value % 10));
+                value /= 10;
+            }
+            out.position(end);
+            out.put(CRLF);
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            if (bytes.length > out.remaining()) {
+                flush();
+                if (bytes.length > out.capacity()) {
+                    // Too large to buffer, e.g. a long INFO reply
+                    ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+                    while (wrapped.hasRemaining()) {
+                        channel.write(wrapped);
+                    }
+                    return;
+                }
+            }
+            out.put(bytes);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (out.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Serve a store of the given number of nodes on the given port until killed.
+    // Usage: java KVServer [port] [nodes]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6380;
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        ConsistentHashKVStore store = new ConsistentHashKVStore(0, ConsistentHashRing.DEFAULT_VIRTUAL_NODES,
+                PrimitiveStorageEngine::new);
+        for (int i = 1; i < nodes; i++) {
+            store.addCache(store.newCache());
+        }
+        KVServer server = new KVServer(store, new InetSocketAddress(port));
+        server.start();
+        System.out.println("Serving " + nodes + " nodes on port " + server.getPort());
+        server.awaitTermination();
+    }
+}
@@ -0,0 +1,47 @@
+package kvstore;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// Evicts the least recently used entries
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final long maximumWeight;
+    // Resident keys and their weights, least recently used first
+    private final LinkedHashMap<Integer, Integer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    public LruEvictionPolicy(long maximumWeight) {
+        if (maximumWeight < 1) {
+            throw new IllegalArgumentException("Maximum weight must be positive");
+        }
+        this.maximumWeight = maximumWeight;
+    }
+
+    @Override
+    public void onAccess(int key) {
+        entries.get(key);
+    }
+
+    @Override
+    public void onWrite(int key, int weight, IntConsumer evict) {
+        Integer previous = entries.put(key, weight);
+        this.weight += weight - (previous == null ? 0 : previous);
+        Iterator<Map.Entry<Integer, Integer>> eldest = entries.entrySet().iterator();
+        while (this.weight > maximumWeight) {
+            Map.Entry<Integer, Integer> victim = eldest.next();
+            this.weight -= victim.getValue();
+            eldest.remove();
+            evict.accept(victim.getKey());
+        }
+    }
+
+    @Override
+    public void onRemove(int key) {
+        Integer previous = entries.remove(key);
+        if (previous != null) {
+            weight -= previous;
+        }
+    }
+}
@@ -0,0 +1,1050 @@
+package kvstore;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+// Persistent storage engine for a cache node. Values are appended to a log made of
+// memory-mapped segment files, and an open-addressing hash index from key to log address
+// lives in a memory-mapped index file.
+//
+// Log record:  [int crc32][int key][int length, -1 for a removal][long version][UTF-8 bytes]
+// Index slot:  [int key][int state][long address = segment id << 32 | offset]
+//
+// A clean close records the log tail and per-segment statistics, so the next start only
+// maps the existing files. After a crash the index is rebuilt by scanning the log, which
+// stops at the first record whose checksum does not match. A background task compacts
+// sealed segments whose share of dead records passes a threshold by re-appending their
+// live records and deleting the segment.
+public class MappedStorageEngine implements StorageEngine {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 30_000;
+    // Share of dead bytes in a sealed segment that makes it eligible for compaction
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final String INDEX_FILE = "index.dat";
+    private static final String STATS_FILE = "segments.dat";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final long INDEX_MAGIC = 0x4b56494e44455831L;
+    private static final int INDEX_VERSION = 2;
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 16;
+    private static final int MAX_INDEX_CAPACITY = 1 << 27;
+
+    // Index header layout
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 8;
+    private static final int HEADER_CLEAN = 12;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_SIZE_FIELD = 20;
+    private static final int HEADER_USED_SLOTS = 24;
+    private static final int HEADER_ACTIVE_SEGMENT = 28;
+    private static final int HEADER_WRITE_POSITION = 32;
+
+    // Index slot layout
+    private static final int SLOT_SIZE = 16;
+    private static final int SLOT_STATE = 4;
+    private static final int SLOT_ADDRESS = 8;
+    private static final int EMPTY = 0;
+    private static final int LIVE = 1;
+    private static final int DELETED = 2;
+
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final int RECORD_VERSION = 12;
+    private static final int TOMBSTONE = -1;
+    // Records compacted per write lock acquisition
+    private static final int COMPACTION_BATCH = 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final double compactionThreshold;
+    private final StampedLock lock = new StampedLock();
+    // Serializes compaction runs
+    private final Object compactionMonitor = new Object();
+    private final ScheduledExecutorService compactor;
+
+    // Mapped log segments by id, null once compacted away
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    // Bytes written to each segment
+    private int[] segmentEnds = new int[0];
+    // Bytes of each segment still referenced by the index
+    private long[] segmentLive = new long[0];
+    private int activeSegment = -1;
+    private int writePosition;
+
+    private MappedByteBuffer index;
+    private int capacity;
+    private int size;
+    private int usedSlots;
+    private boolean closed;
+    // Whether the last open had to rebuild the index from the log
+    private final boolean recovered;
+
+    public MappedStorageEngine(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_INTERVAL_MILLIS, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    // A compaction interval of zero or less disables background compaction
+    public MappedStorageEngine(Path directory, int segmentSize, long compactionIntervalMillis,
+            double compactionThreshold) {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 1024 bytes");
+        }
+        if (compactionThreshold <= 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("Compaction threshold must be in (0, 1]");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        try {
+            Files.createDirectories(directory);
+            TreeMap<Integer, Path> files = listSegments();
+            this.recovered = !openClean(files);
+            if (recovered) {
+                recover(files);
+            }
+            if (activeSegment < 0) {
+                rollSegment();
+            }
+            // Anything from here on is unclean until close() says otherwise
+            index.putInt(HEADER_CLEAN, 0);
+            index.force(0, HEADER_SIZE);
+            Files.deleteIfExists(directory.resolve(STATS_FILE));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open storage in " + directory, e);
+        }
+
+        if (compactionIntervalMillis > 0) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "compactor-" + directory.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compactSegments();
+                } catch (RuntimeException e) {
+                    System.err.println("Compaction of " + directory + " failed: " + e);
+                }
+            }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    @Override
+    public void put(int key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        checkRecordSize(bytes.length);
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            long address = append(key, bytes, Versioned.UNVERSIONED);
+            upsert(key, address, RECORD_HEADER_SIZE + bytes.length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean putIfNewer(int key, String value, long version) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        checkRecordSize(bytes.length);
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            return appendIfNewer(key, bytes, version);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String putIfAbsent(int key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        checkRecordSize(bytes.length);
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                return new String(readValue(segments, index.getLong(slotPosition(slot) + SLOT_ADDRESS)),
+                        StandardCharsets.UTF_8);
+            }
+            long address = append(key, bytes, Versioned.UNVERSIONED);
+            upsert(key, address, RECORD_HEADER_SIZE + bytes.length);
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String get(int key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            byte[] value;
+            try {
+                value = read(key, index, capacity, segments);
+            } catch (RuntimeException e) {
+                // A concurrent writer left us a torn view; validation below will fail
+                value = null;
+            }
+            if (lock.validate(stamp)) {
+                return value == null ? null : new String(value, StandardCharsets.UTF_8);
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            byte[] value = read(key, index, capacity, segments);
+            return value == null ? null : new String(value, StandardCharsets.UTF_8);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int getBytes(int key, ByteBuffer target) {
+        int start = target.position();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            int length;
+            try {
+                length = copy(key, index, capacity, segments, target);
+            } catch (RuntimeException e) {
+                // A concurrent writer left us a torn view; validation below will fail
+                length = -1;
+            }
+            if (lock.validate(stamp)) {
+                return length;
+            }
+            target.position(start);
+        }
+        stamp = lock.readLock();
+        try {
+            return copy(key, index, capacity, segments, target);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Versioned getVersioned(int key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            Versioned versioned;
+            try {
+                versioned = readVersioned(key, index, capacity, segments);
+            } catch (RuntimeException e) {
+                versioned = null;
+            }
+            if (lock.validate(stamp)) {
+                return versioned;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return readVersioned(key, index, capacity, segments);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void getAll(int[] keys, String[] values, int count) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] value = read(keys[i], index, capacity, segments);
+                values[i] = value == null ? null : new String(value, StandardCharsets.UTF_8);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void putAll(int[] keys, String[] values, long version, int count) {
+        byte[][] encoded = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+            checkRecordSize(encoded[i].length);
+        }
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            for (int i = 0; i < count; i++) {
+                appendIfNewer(keys[i], encoded[i], version);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String remove(int key) {
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            int slot = findSlot(key);
+            if (slot < 0) {
+                return null;
+            }
+            long address = index.getLong(slotPosition(slot) + SLOT_ADDRESS);
+            String previous = new String(readValue(segments, address), StandardCharsets.UTF_8);
+            append(key, null, Versioned.UNVERSIONED);
+            delete(slot);
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int result = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = slotPosition(slot);
+                if (index.getInt(position + SLOT_STATE) == LIVE) {
+                    byte[] value = readValue(segments, index.getLong(position + SLOT_ADDRESS));
+                    action.accept(index.getInt(position), new String(value, StandardCharsets.UTF_8));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEachKey(IntConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = slotPosition(slot);
+                if (index.getInt(position + SLOT_STATE) == LIVE) {
+                    action.accept(index.getInt(position));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Flush every mapped file to disk
+    public void sync() {
+        long stamp = lock.readLock();
+        try {
+            for (MappedByteBuffer segment : segments) {
+                if (segment != null) {
+                    segment.force();
+                }
+            }
+            index.force();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Whether opening this engine had to rebuild the index from the log
+    public boolean isRecovered() {
+        return recovered;
+    }
+
+    // Number of segment files on disk
+    public int segmentCount() {
+        long stamp = lock.readLock();
+        try {
+            int count = 0;
+            for (MappedByteBuffer segment : segments) {
+                if (segment != null) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Flush everything and record a clean shutdown so the next open can map the files as is
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        synchronized (compactionMonitor) {
+            long stamp = lock.writeLock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                segmentEnds[activeSegment] = writePosition;
+                for (MappedByteBuffer segment : segments) {
+                    if (segment != null) {
+                        segment.force();
+                    }
+                }
+                writeStats();
+                index.putInt(HEADER_SIZE_FIELD, size);
+                index.putInt(HEADER_USED_SLOTS, usedSlots);
+                index.putInt(HEADER_ACTIVE_SEGMENT, activeSegment);
+                index.putInt(HEADER_WRITE_POSITION, writePosition);
+                index.force();
+                index.putInt(HEADER_CLEAN, 1);
+                index.force(0, HEADER_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot close storage in " + directory, e);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    // Compact every sealed segment whose share of dead bytes reached the threshold
+    public void compact() {
+        compactSegments();
+    }
+
+    // Body of compact for the compactor thread, which the constructor starts and which
+    // therefore must not call methods a subclass can override
+    private void compactSegments() {
+        synchronized (compactionMonitor) {
+            List<Integer> candidates = new ArrayList<>();
+            long stamp = lock.readLock();
+            try {
+                if (closed) {
+                    return;
+                }
+                for (int id = 0; id < activeSegment; id++) {
+                    if (segments[id] != null
+                            && segmentEnds[id] - segmentLive[id] >= compactionThreshold * segmentEnds[id]) {
+                        candidates.add(id);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int id : candidates) {
+                compactSegment(id);
+            }
+        }
+    }
+
+    // Re-append the live records of a sealed segment and delete it
+    private void compactSegment(int id) {
+        MappedByteBuffer source;
+        int end;
+        int firstTarget;
+        long stamp = lock.readLock();
+        try {
+            source = segments[id];
+            end = segmentEnds[id];
+            firstTarget = activeSegment;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        byte[] buffer = new byte[256];
+        int position = 0;
+        while (position < end) {
+            stamp = lock.writeLock();
+            try {
+                if (closed) {
+                    return;
+                }
+                for (int n = 0; n < COMPACTION_BATCH && position < end; n++) {
+                    int key = source.getInt(position + 4);
+                    int length = source.getInt(position + 8);
+                    int recordSize = RECORD_HEADER_SIZE + Math.max(length, 0);
+                    int slot = findSlot(key);
+                    if (length == TOMBSTONE) {
+                        // A removal still matters while an older segment may hold the key
+                        if (slot < 0 && hasSegmentBefore(id)) {
+                            append(key, null, Versioned.UNVERSIONED);
+                        }
+                    } else if (slot >= 0
+                            && index.getLong(slotPosition(slot) + SLOT_ADDRESS) == address(id, position)) {
+                        if (buffer.length < recordSize) {
+                            buffer = new byte[Math.max(recordSize, buffer.length * 2)];
+                        }
+                        source.get(position, buffer, 0, recordSize);
+                        long address = appendRaw(buffer, recordSize);
+                        index.putLong(slotPosition(slot) + SLOT_ADDRESS, address);
+                        segmentLive[id] -= recordSize;
+                        segmentLive[segmentId(address)] += recordSize;
+                    }
+                    position += recordSize;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // The copies must be on disk before the only other copy goes away
+        stamp = lock.writeLock();
+        try {
+            if (closed) {
+                return;
+            }
+            for (int target = firstTarget; target <= activeSegment; target++) {
+                if (segments[target] != null) {
+                    segments[target].force();
+                }
+            }
+            segments[id] = null;
+            segmentEnds[id] = 0;
+            segmentLive[id] = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        try {
+            Files.deleteIfExists(segmentPath(id));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot delete compacted segment " + id, e);
+        }
+    }
+
+    private boolean hasSegmentBefore(int id) {
+        for (int i = 0; i < id; i++) {
+            if (segments[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Map the files as they are if the last shutdown was clean
+    private boolean openClean(TreeMap<Integer, Path> files) throws IOException {
+        Path indexPath = directory.resolve(INDEX_FILE);
+        Path statsPath = directory.resolve(STATS_FILE);
+        if (!Files.exists(indexPath) || !Files.exists(statsPath) || files.isEmpty()) {
+            return false;
+        }
+        long indexSize = Files.size(indexPath);
+        if (indexSize < HEADER_SIZE || indexSize > Integer.MAX_VALUE) {
+            return false;
+        }
+        MappedByteBuffer mapped = map(indexPath, indexSize);
+        if (mapped.getLong(HEADER_MAGIC) != INDEX_MAGIC || mapped.getInt(HEADER_VERSION) != INDEX_VERSION
+                || mapped.getInt(HEADER_CLEAN) != 1
+                || HEADER_SIZE + (long) mapped.getInt(HEADER_CAPACITY) * SLOT_SIZE != indexSize) {
+            return false;
+        }
+
+        Map<Integer, long[]> stats = new TreeMap<>();
+        try (InputStream in = Files.newInputStream(statsPath);
+                DataInputStream data = new DataInputStream(in)) {
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                stats.put(data.readInt(), new long[] { data.readInt(), data.readLong() });
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        int active = mapped.getInt(HEADER_ACTIVE_SEGMENT);
+        if (!stats.keySet().equals(files.keySet()) || active != files.lastKey()
+                || stats.get(active)[0] != mapped.getInt(HEADER_WRITE_POSITION)) {
+            return false;
+        }
+
+        for (Map.Entry<Integer, Path> file : files.entrySet()) {
+            int id = file.getKey();
+            ensureSegmentId(id);
+            segments[id] = map(file.getValue(), Files.size(file.getValue()));
+            segmentEnds[id] = (int) stats.get(id)[0];
+            segmentLive[id] = stats.get(id)[1];
+        }
+        index = mapped;
+        capacity = mapped.getInt(HEADER_CAPACITY);
+        size = mapped.getInt(HEADER_SIZE_FIELD);
+        usedSlots = mapped.getInt(HEADER_USED_SLOTS);
+        activeSegment = active;
+        writePosition = mapped.getInt(HEADER_WRITE_POSITION);
+        return true;
+    }
+
+    // Rebuild the index by replaying every segment in order
+    private void recover(TreeMap<Integer, Path> files) throws IOException {
+        Path indexPath = directory.resolve(INDEX_FILE);
+        Files.deleteIfExists(indexPath);
+        index = createIndex(indexPath, INITIAL_INDEX_CAPACITY);
+        capacity = INITIAL_INDEX_CAPACITY;
+        size = 0;
+        usedSlots = 0;
+
+        CRC32 crc = new CRC32();
+        for (Map.Entry<Integer, Path> file : files.entrySet()) {
+            int id = file.getKey();
+            MappedByteBuffer segment = map(file.getValue(), Files.size(file.getValue()));
+            ensureSegmentId(id);
+            segments[id] = segment;
+
+            int position = 0;
+            int recordSize;
+            while ((recordSize = validRecordSize(segment, position, crc)) > 0) {
+                int key = segment.getInt(position + 4);
+                int length = segment.getInt(position + 8);
+                if (length == TOMBSTONE) {
+                    int slot = findSlot(key);
+                    if (slot >= 0) {
+                        delete(slot);
+                    }
+                } else {
+                    upsert(key, address(id, position), recordSize);
+                }
+                position += recordSize;
+            }
+            segmentEnds[id] = position;
+
+            // Wipe a torn tail so that a later scan cannot resurrect stale records behind it
+            boolean dirty = false;
+            for (int i = position; i < segment.capacity() && !dirty; i++) {
+                dirty = segment.get(i) != 0;
+            }
+            if (dirty) {
+                for (int i = position; i < segment.capacity(); i++) {
+                    segment.put(i, (byte) 0);
+                }
+                segment.force();
+            }
+            activeSegment = id;
+            writePosition = position;
+        }
+        index.force();
+    }
+
+    // Size of the valid record at position, or -1 if it is missing or corrupt
+    private static int validRecordSize(MappedByteBuffer segment, int position, CRC32 crc) {
+        if (position > segment.capacity() - RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        int length = segment.getInt(position + 8);
+        if (length < TOMBSTONE || (length > 0 && length > segment.capacity() - position - RECORD_HEADER_SIZE)) {
+            return -1;
+        }
+        int recordSize = RECORD_HEADER_SIZE + Math.max(length, 0);
+        crc.reset();
+        crc.update(segment.slice(position + 4, recordSize - 4));
+        return (int) crc.getValue() == segment.getInt(position) ? recordSize : -1;
+    }
+
+    // Append a record for key unless the index holds a version at least as new
+    private boolean appendIfNewer(int key, byte[] bytes, long version) {
+        int slot = findSlot(key);
+        if (slot >= 0 && readVersion(segments, index.getLong(slotPosition(slot) + SLOT_ADDRESS)) >= version) {
+            return false;
+        }
+        long address = append(key, bytes, version);
+        upsert(key, address, RECORD_HEADER_SIZE + bytes.length);
+        return true;
+    }
+
+    // Append a record for key, with null bytes marking a removal, and return its address
+    private long append(int key, byte[] bytes, long version) {
+        int length = bytes == null ? TOMBSTONE : bytes.length;
+        int recordSize = RECORD_HEADER_SIZE + Math.max(length, 0);
+        reserve(recordSize);
+        MappedByteBuffer segment = segments[activeSegment];
+        int position = writePosition;
+        segment.putInt(position + 4, key);
+        segment.putInt(position + 8, length);
+        segment.putLong(position + RECORD_VERSION, version);
+        if (bytes != null) {
+            segment.put(position + RECORD_HEADER_SIZE, bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(segment.slice(position + 4, recordSize - 4));
+        segment.putInt(position, (int) crc.getValue());
+        writePosition += recordSize;
+        segmentEnds[activeSegment] = writePosition;
+        return address(activeSegment, position);
+    }
+
+    // Append an already encoded record and return its address
+    private long appendRaw(byte[] record, int recordSize) {
+        reserve(recordSize);
+        int position = writePosition;
+        segments[activeSegment].put(position, record, 0, recordSize);
+        writePosition += recordSize;
+        segmentEnds[activeSegment] = writePosition;
+        return address(activeSegment, position);
+    }
+
+    // Roll over to a new segment if the record does not fit into the active one
+    private void reserve(int recordSize) {
+        if (writePosition + recordSize > segments[activeSegment].capacity()) {
+            rollSegment();
+        }
+    }
+
+    private void rollSegment() {
+        int id = activeSegment + 1;
+        ensureSegmentId(id);
+        try {
+            segments[id] = map(segmentPath(id), segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create segment " + id, e);
+        }
+        segmentEnds[id] = 0;
+        segmentLive[id] = 0;
+        activeSegment = id;
+        writePosition = 0;
+    }
+
+    // Point key at a new record, accounting the previous record as dead
+    private void upsert(int key, long address, int recordSize) {
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            int position = slotPosition(slot);
+            release(index.getLong(position + SLOT_ADDRESS));
+            index.putLong(position + SLOT_ADDRESS, address);
+        } else {
+            slot = -slot - 1;
+            int position = slotPosition(slot);
+            if (index.getInt(position + SLOT_STATE) == EMPTY) {
+                usedSlots++;
+            }
+            index.putInt(position, key);
+            index.putLong(position + SLOT_ADDRESS, address);
+            index.putInt(position + SLOT_STATE, LIVE);
+            size++;
+        }
+        segmentLive[segmentId(address)] += recordSize;
+        // Keep at most 3/4 of the slots in use so probe sequences stay short
+        if (usedSlots > capacity / 4 * 3) {
+            resizeIndex(size * 2 > capacity / 4 * 3 ? capacity * 2 : capacity);
+        }
+    }
+
+    private void delete(int slot) {
+        int position = slotPosition(slot);
+        release(index.getLong(position + SLOT_ADDRESS));
+        index.putInt(position + SLOT_STATE, DELETED);
+        size--;
+    }
+
+    // Account the record at address as dead
+    private void release(long address) {
+        int id = segmentId(address);
+        segmentLive[id] -= RECORD_HEADER_SIZE + segments[id].getInt(offset(address) + 8);
+    }
+
+    // Rehash into a new index file and atomically swap it in
+    private void resizeIndex(int newCapacity) {
+        if (newCapacity > MAX_INDEX_CAPACITY) {
+            throw new IllegalStateException("Index is full");
+        }
+        Path indexPath = directory.resolve(INDEX_FILE);
+        Path tmpPath = directory.resolve(INDEX_FILE + ".tmp");
+        try {
+            Files.deleteIfExists(tmpPath);
+            MappedByteBuffer resized = createIndex(tmpPath, newCapacity);
+            int mask = newCapacity - 1;
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = slotPosition(slot);
+                if (index.getInt(position + SLOT_STATE) == LIVE) {
+                    int key = index.getInt(position);
+                    int target = mix(key) & mask;
+                    while (resized.getInt(slotPosition(target) + SLOT_STATE) != EMPTY) {
+                        target = (target + 1) & mask;
+                    }
+                    int targetPosition = slotPosition(target);
+                    resized.putInt(targetPosition, key);
+                    resized.putLong(targetPosition + SLOT_ADDRESS, index.getLong(position + SLOT_ADDRESS));
+                    resized.putInt(targetPosition + SLOT_STATE, LIVE);
+                }
+            }
+            resized.force();
+            Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index = resized;
+            capacity = newCapacity;
+            usedSlots = size;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot resize index", e);
+        }
+    }
+
+    private static MappedByteBuffer createIndex(Path path, int capacity) throws IOException {
+        MappedByteBuffer created = map(path, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        created.putLong(HEADER_MAGIC, INDEX_MAGIC);
+        created.putInt(HEADER_VERSION, INDEX_VERSION);
+        created.putInt(HEADER_CLEAN, 0);
+        created.putInt(HEADER_CAPACITY, capacity);
+        return created;
+    }
+
+    // Slot holding key, or -(slot to insert it into) - 1 if it is absent
+    private int findSlot(int key) {
+        int mask = capacity - 1;
+        int slot = mix(key) & mask;
+        int firstDeleted = -1;
+        while (true) {
+            int position = slotPosition(slot);
+            int state = index.getInt(position + SLOT_STATE);
+            if (state == EMPTY) {
+                return -(firstDeleted >= 0 ? firstDeleted : slot) - 1;
+            }
+            if (state == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = slot;
+                }
+            } else if (index.getInt(position) == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static byte[] read(int key, MappedByteBuffer index, int capacity, MappedByteBuffer[] segments) {
+        long address = lookup(key, index, capacity);
+        return address < 0 ? null : readValue(segments, address);
+    }
+
+    private static Versioned readVersioned(int key, MappedByteBuffer index, int capacity,
+            MappedByteBuffer[] segments) {
+        long address = lookup(key, index, capacity);
+        if (address < 0) {
+            return null;
+        }
+        return new Versioned(new String(readValue(segments, address), StandardCharsets.UTF_8),
+                readVersion(segments, address));
+    }
+
+    // Probe for key in the given view and return its log address, or -1 if it is absent.
+    // Bounded by the capacity so that a torn optimistic view can never loop forever.
+    private static long lookup(int key, MappedByteBuffer index, int capacity) {
+        int mask = capacity - 1;
+        int slot = mix(key) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int position = slotPosition(slot);
+            int state = index.getInt(position + SLOT_STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == LIVE && index.getInt(position) == key) {
+                return index.getLong(position + SLOT_ADDRESS);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Copy the value bytes of key from its mapped segment into target if they fit, without
+    // going through the heap
+    private static int copy(int key, MappedByteBuffer index, int capacity, MappedByteBuffer[] segments,
+            ByteBuffer target) {
+        long address = lookup(key, index, capacity);
+        if (address < 0) {
+            return -1;
+        }
+        MappedByteBuffer segment = segments[segmentId(address)];
+        int position = offset(address);
+        int length = segment.getInt(position + 8);
+        if (length < 0 || length > segment.capacity() - position - RECORD_HEADER_SIZE) {
+            throw new IllegalStateException("Corrupt record at " + Long.toHexString(address));
+        }
+        if (length <= target.remaining()) {
+            target.put(target.position(), segment, position + RECORD_HEADER_SIZE, length);
+            target.position(target.position() + length);
+        }
+        return length;
+    }
+
+    private static long readVersion(MappedByteBuffer[] segments, long address) {
+        return segments[segmentId(address)].getLong(offset(address) + RECORD_VERSION);
+    }
+
+    private static byte[] readValue(MappedByteBuffer[] segments, long address) {
+        MappedByteBuffer segment = segments[segmentId(address)];
+        int position = offset(address);
+        int length = segment.getInt(position + 8);
+        if (length < 0 || length > segment.capacity() - position - RECORD_HEADER_SIZE) {
+            throw new IllegalStateException("Corrupt record at " + Long.toHexString(address));
+        }
+        byte[] value = new byte[length];
+        segment.get(position + RECORD_HEADER_SIZE, value);
+        return value;
+    }
+
+    private void writeStats() throws IOException {
+        Path tmpPath = directory.resolve(STATS_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpPath);
+                DataOutputStream data = new DataOutputStream(out)) {
+            List<Integer> ids = new ArrayList<>();
+            for (int id = 0; id < segments.length; id++) {
+                if (segments[id] != null) {
+                    ids.add(id);
+                }
+            }
+            data.writeInt(ids.size());
+            for (int id : ids) {
+                data.writeInt(id);
+                data.writeInt(segmentEnds[id]);
+                data.writeLong(segmentLive[id]);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmpPath, directory.resolve(STATS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private TreeMap<Integer, Path> listSegments() throws IOException {
+        TreeMap<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())), path);
+            }
+        }
+        return files;
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private void ensureSegmentId(int id) {
+        if (id >= segments.length) {
+            int length = Math.max(id + 1, segments.length * 2);
+            segments = Arrays.copyOf(segments, length);
+            segmentEnds = Arrays.copyOf(segmentEnds, length);
+            segmentLive = Arrays.copyOf(segmentLive, length);
+        }
+    }
+
+    private void checkRecordSize(int length) {
+        if (RECORD_HEADER_SIZE + length > segmentSize) {
+            throw new IllegalArgumentException("Value does not fit into a segment: " + length + " bytes");
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Storage engine is closed");
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long address(int segmentId, int offset) {
+        return (long) segmentId << 32 | offset;
+    }
+
+    private static int segmentId(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    // MurmurHash3 32-bit finalizer, so that sequential keys do not cluster in the index
+    private static int mix(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // Demonstrates a clean restart, crash recovery and compaction
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path directory = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("mapped-engine");
+        String padding = "x".repeat(100);
+
+        MappedStorageEngine engine = new MappedStorageEngine(directory, DEFAULT_SEGMENT_SIZE, 0,
+                DEFAULT_COMPACTION_THRESHOLD);
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            engine.put(i, "value" + i + padding);
+        }
+        // Overwrite half of the keys so that the older segments are mostly dead
+        for (int i = 0; i < entries; i += 2) {
+            engine.put(i, "updated" + i + padding);
+        }
+        System.out.printf("Wrote %d records in %d ms across %d segments%n", entries + entries / 2,
+                (System.nanoTime() - start) / 1_000_000, engine.segmentCount());
+        engine.close();
+
+        start = System.nanoTime();
+        engine = new MappedStorageEngine(directory, DEFAULT_SEGMENT_SIZE, 0, DEFAULT_COMPACTION_THRESHOLD);
+        System.out.printf("Clean restart: %d ms, recovered=%b, size=%d, get(2)=%s%n",
+                (System.nanoTime() - start) / 1_000_000, engine.isRecovered(), engine.size(),
+                engine.get(2).substring(0, 8));
+
+        engine.remove(1);
+        engine.put(3, "after-restart");
+        // Simulate a crash by abandoning the engine without closing it
+        start = System.nanoTime();
+        MappedStorageEngine crashed = new MappedStorageEngine(directory, DEFAULT_SEGMENT_SIZE, 0,
+                DEFAULT_COMPACTION_THRESHOLD);
+        System.out.printf("Crash recovery: %d ms, recovered=%b, size=%d, get(1)=%s, get(3)=%s%n",
+                (System.nanoTime() - start) / 1_000_000, crashed.isRecovered(), crashed.size(),
+                crashed.get(1), crashed.get(3));
+
+        start = System.nanoTime();
+        int before = crashed.segmentCount();
+        crashed.compact();
+        System.out.printf("Compaction: %d -> %d segments in %d ms, size=%d%n", before, crashed.segmentCount(),
+                (System.nanoTime() - start) / 1_000_000, crashed.size());
+        crashed.close();
+    }
+}
@@ -0,0 +1,139 @@
+package kvstore;
+import java.nio.charset.StandardCharsets;
+
+// 64-bit variant of MurmurHash3 (the first half of murmur3_x64_128), used to place both
+// virtual nodes and keys on the hash ring
+public final class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    // Hash a single int key; equivalent to hash64 over its 4 little-endian bytes with seed 0,
+    // but without allocating a byte array on the lookup path
+    public static long hash64(int key) {
+        long h1 = 0;
+        long h2 = 0;
+
+        long k1 = key & 0xffffffffL;
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+
+        return finish(h1, h2, 4);
+    }
+
+    // Hash a string using its UTF-8 bytes
+    public static long hash64(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        return hash64(data, 0, data.length, 0);
+    }
+
+    // Hash a byte range with the given seed. The tail switch falls through on purpose, as
+    // in the reference implementation: each case adds one byte and runs the cases below it.
+    @SuppressWarnings("fallthrough")
+    public static long hash64(byte[] data, int offset, int length, int seed) {
+        long h1 = seed & 0xffffffffL;
+        long h2 = seed & 0xffffffffL;
+
+        // Body: process 16-byte blocks
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            int p = offset + (i << 4);
+            long k1 = getLong(data, p);
+            long k2 = getLong(data, p + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail: up to 15 remaining bytes
+        int tail = offset + (blocks << 4);
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= data[tail + 8] & 0xff;
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= data[tail] & 0xff;
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+            default:
+                break;
+        }
+
+        return finish(h1, h2, length);
+    }
+
+    private static long finish(long h1, long h2, int length) {
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        return h1;
+    }
+
+    // Final avalanche mix so that every input bit affects every output bit
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLong(byte[] data, int p) {
+        return (data[p] & 0xffL)
+                | (data[p + 1] & 0xffL) << 8
+                | (data[p + 2] & 0xffL) << 16
+                | (data[p + 3] & 0xffL) << 24
+                | (data[p + 4] & 0xffL) << 32
+                | (data[p + 5] & 0xffL) << 40
+                | (data[p + 6] & 0xffL) << 48
+                | (data[p + 7] & 0xffL) << 56;
+    }
+}
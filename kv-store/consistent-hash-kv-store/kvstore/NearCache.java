@@ -0,0 +1,86 @@
+package kvstore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Client-side copies of the values of hot keys, so that their reads never reach a node.
+// Only keys the HotKeyDetector reports as hot are admitted, and keys that cool down are
+// dropped at the next refresh, so the cache never holds more than the hot set.
+//
+// Every write bumps the stamp of the key's stripe and then drops the key. A read takes the
+// stamp before it goes to the nodes and checks it again after admitting what it loaded,
+// dropping its copy if a write came in between, so no value older than a write that
+// completed through this cache survives it. Writes that bypass this cache, e.g. from other
+// clients, are not seen.
+final class NearCache {
+
+    private static final int STRIPES = 64;
+
+    private final HotKeyDetector detector;
+    private final ConcurrentHashMap<Integer, String> values = new ConcurrentHashMap<>();
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+
+    NearCache(int maxHotKeys, double minShare, int sampleRate) {
+        this.detector = new HotKeyDetector(maxHotKeys, minShare, sampleRate);
+    }
+
+    // Sample a read of key and return its cached value, or null if the read has to go to
+    // the nodes
+    String get(int key) {
+        if (detector.record(key)) {
+            values.keySet().removeIf(k -> !detector.isHot(k));
+        }
+        if (!detector.isHot(key)) {
+            return null;
+        }
+        String value = values.get(key);
+        if (value != null) {
+            hits.increment();
+        }
+        return value;
+    }
+
+    // Stamp to pass to offer for a value about to be loaded
+    long stamp(int key) {
+        return stamps.get(stripe(key));
+    }
+
+    // Admit a value loaded from the nodes after stamp(key) returned stamp
+    void offer(int key, String value, long stamp) {
+        if (!detector.isHot(key)) {
+            return;
+        }
+        values.put(key, value);
+        if (stamps.get(stripe(key)) != stamp) {
+            values.remove(key, value);
+        }
+    }
+
+    // Drop the copy of a key whose value was just written
+    void invalidate(int key) {
+        stamps.incrementAndGet(stripe(key));
+        values.remove(key);
+    }
+
+    int[] hotKeys() {
+        return detector.hotKeys();
+    }
+
+    double[] hotKeyShares() {
+        return detector.hotKeyShares();
+    }
+
+    int hotKeyCount() {
+        return detector.hotKeyCount();
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    private static int stripe(int key) {
+        int h = key * 0x9e3779bb;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
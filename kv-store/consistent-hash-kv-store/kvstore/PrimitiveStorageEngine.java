@@ -0,0 +1,525 @@
+package kvstore;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+
+// Storage engine built on an open-addressing int -> value map. Keys live unboxed in an
+// int[], and values are UTF-8 encoded into a single byte arena as length-prefixed records
+// followed by their version, so an entry costs two array slots plus its encoded bytes
+// instead of a HashMap node, a boxed Integer and a String.
+//
+// Arena record: [varint length][long version][UTF-8 bytes]
+//
+// Writers are serialized by a StampedLock. Readers take an optimistic stamp and only fall
+// back to the read lock when a writer got in the way. Arena records are only ever appended
+// and resizes/compactions build new arrays, so a torn optimistic read at worst decodes a
+// stale record, which validation then discards.
+public class PrimitiveStorageEngine implements StorageEngine {
+
+    private static final int DEFAULT_EXPECTED_ENTRIES = 16;
+    private static final int MAX_ARENA_SIZE = Integer.MAX_VALUE - 8;
+    // Values of refs that do not point to a record
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final int VERSION_SIZE = Long.BYTES;
+
+    private final StampedLock lock = new StampedLock();
+
+    // Keys of the hash table, valid where refs holds a record reference
+    private int[] keys;
+    // Arena offset + 1 of each slot's value record, or EMPTY / DELETED
+    private int[] refs;
+    // Length-prefixed, versioned UTF-8 value records
+    private byte[] arena;
+    // Bytes of the arena in use
+    private int arenaSize;
+    // Bytes of the arena held by overwritten or removed records
+    private int garbage;
+    // Number of live entries
+    private int size;
+    // Number of live plus deleted slots, which both lengthen probe sequences
+    private int usedSlots;
+
+    public PrimitiveStorageEngine() {
+        this(DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    public PrimitiveStorageEngine(int expectedEntries) {
+        if (expectedEntries < 0) {
+            throw new IllegalArgumentException("Expected entries cannot be negative");
+        }
+        int capacity = tableSizeFor(expectedEntries * 4 / 3 + 1);
+        this.keys = new int[capacity];
+        this.refs = new int[capacity];
+        this.arena = new byte[(int) Math.min(MAX_ARENA_SIZE, Math.max(256L, expectedEntries * 16L))];
+    }
+
+    @Override
+    public void put(int key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            store(findSlot(key), key, bytes, Versioned.UNVERSIONED);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean putIfNewer(int key, String value, long version) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            return storeIfNewer(key, bytes, version);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String putIfAbsent(int key, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                return decode(arena, refs[slot] - 1);
+            }
+            store(slot, key, bytes, Versioned.UNVERSIONED);
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String get(int key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            String value;
+            try {
+                value = read(key, keys, refs, arena);
+            } catch (RuntimeException e) {
+                // A concurrent writer left us a torn view; validation below will fail
+                value = null;
+            }
+            if (lock.validate(stamp)) {
+                return value;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return read(key, keys, refs, arena);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int getBytes(int key, ByteBuffer target) {
+        int start = target.position();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            int length;
+            try {
+                length = copy(key, keys, refs, arena, target);
+            } catch (RuntimeException e) {
+                // A concurrent writer left us a torn view; validation below will fail
+                length = -1;
+            }
+            if (lock.validate(stamp)) {
+                return length;
+            }
+            target.position(start);
+        }
+        stamp = lock.readLock();
+        try {
+            return copy(key, keys, refs, arena, target);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Versioned getVersioned(int key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            Versioned versioned;
+            try {
+                versioned = readVersioned(key, keys, refs, arena);
+            } catch (RuntimeException e) {
+                versioned = null;
+            }
+            if (lock.validate(stamp)) {
+                return versioned;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return readVersioned(key, keys, refs, arena);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void getAll(int[] keys, String[] values, int count) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < count; i++) {
+                values[i] = read(keys[i], this.keys, refs, arena);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void putAll(int[] keys, String[] values, long version, int count) {
+        // Encode outside the lock so that writers hold it only for the table updates
+        byte[][] encoded = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+        }
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < count; i++) {
+                storeIfNewer(keys[i], encoded[i], version);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String remove(int key) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(key);
+            if (slot < 0) {
+                return null;
+            }
+            int offset = refs[slot] - 1;
+            String previous = decode(arena, offset);
+            garbage += recordSize(arena, offset);
+            refs[slot] = DELETED;
+            size--;
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int result = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < refs.length; slot++) {
+                int ref = refs[slot];
+                if (ref != EMPTY && ref != DELETED) {
+                    action.accept(keys[slot], decode(arena, ref - 1));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void forEachKey(IntConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < refs.length; slot++) {
+                int ref = refs[slot];
+                if (ref != EMPTY && ref != DELETED) {
+                    action.accept(keys[slot]);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Store bytes with version unless key holds a version at least as new
+    private boolean storeIfNewer(int key, byte[] bytes, long version) {
+        int slot = findSlot(key);
+        if (slot >= 0 && decodeVersion(arena, refs[slot] - 1) >= version) {
+            return false;
+        }
+        store(slot, key, bytes, version);
+        return true;
+    }
+
+    // Write a record into the slot found by findSlot, replacing or inserting
+    private void store(int slot, int key, byte[] bytes, long version) {
+        // Reserving may compact or grow the arena, but never the table, so slot stays valid
+        reserve(bytes.length);
+        int ref = append(bytes, version) + 1;
+        if (slot >= 0) {
+            garbage += recordSize(arena, refs[slot] - 1);
+            refs[slot] = ref;
+        } else {
+            insert(-slot - 1, key, ref);
+        }
+    }
+
+    private static String read(int key, int[] keys, int[] refs, byte[] arena) {
+        int ref = lookup(key, keys, refs);
+        return ref == EMPTY ? null : decode(arena, ref - 1);
+    }
+
+    private static Versioned readVersioned(int key, int[] keys, int[] refs, byte[] arena) {
+        int ref = lookup(key, keys, refs);
+        return ref == EMPTY ? null : new Versioned(decode(arena, ref - 1), decodeVersion(arena, ref - 1));
+    }
+
+    // Copy the value bytes of key from the arena into target if they fit
+    private static int copy(int key, int[] keys, int[] refs, byte[] arena, ByteBuffer target) {
+        int ref = lookup(key, keys, refs);
+        if (ref == EMPTY) {
+            return -1;
+        }
+        int length = 0;
+        int position = ref - 1;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IllegalStateException("Corrupt record length at " + (ref - 1));
+            }
+            byte b = arena[position++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > arena.length - position - VERSION_SIZE) {
+            throw new IllegalStateException("Corrupt record length at " + (ref - 1));
+        }
+        if (length <= target.remaining()) {
+            target.put(arena, position + VERSION_SIZE, length);
+        }
+        return length;
+    }
+
+    // Probe for key in the given arrays and return its record reference, or EMPTY. Bounded
+    // by the table length so that a torn optimistic view can never loop forever.
+    private static int lookup(int key, int[] keys, int[] refs) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            int ref = refs[slot];
+            if (ref == EMPTY) {
+                return EMPTY;
+            }
+            if (ref != DELETED && keys[slot] == key) {
+                return ref;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    // Slot holding key, or -(slot to insert it into) - 1 if it is absent
+    private int findSlot(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        int firstDeleted = -1;
+        while (true) {
+            int ref = refs[slot];
+            if (ref == EMPTY) {
+                return -(firstDeleted >= 0 ? firstDeleted : slot) - 1;
+            }
+            if (ref == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = slot;
+                }
+            } else if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insert(int slot, int key, int ref) {
+        if (refs[slot] == EMPTY) {
+            usedSlots++;
+        }
+        keys[slot] = key;
+        refs[slot] = ref;
+        size++;
+        // Keep at most 3/4 of the slots in use so probe sequences stay short
+        if (usedSlots > keys.length / 4 * 3) {
+            rehash(size * 2 > keys.length / 4 * 3 ? keys.length * 2 : keys.length);
+        }
+    }
+
+    // Rebuild the table into new arrays, dropping deleted slots
+    private void rehash(int capacity) {
+        int[] newKeys = new int[capacity];
+        int[] newRefs = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < refs.length; i++) {
+            int ref = refs[i];
+            if (ref != EMPTY && ref != DELETED) {
+                int slot = mix(keys[i]) & mask;
+                while (newRefs[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = keys[i];
+                newRefs[slot] = ref;
+            }
+        }
+        keys = newKeys;
+        refs = newRefs;
+        usedSlots = size;
+    }
+
+    // Make room for a record of the given length, compacting away garbage when it
+    // accounts for at least half of the arena and growing it otherwise
+    private void reserve(int length) {
+        int needed = varintSize(length) + VERSION_SIZE + length;
+        if ((long) arenaSize + needed <= arena.length) {
+            return;
+        }
+        long live = (long) arenaSize - garbage;
+        if ((garbage > 0 && garbage >= arenaSize / 2) || (long) arenaSize + needed > MAX_ARENA_SIZE) {
+            long target = Math.min(MAX_ARENA_SIZE, Math.max((live + needed) * 3 / 2, arena.length));
+            if (live + needed > target) {
+                throw new IllegalStateException("Storage arena is full");
+            }
+            compact((int) target);
+        } else {
+            long target = Math.min(MAX_ARENA_SIZE, Math.max(arena.length + (long) arena.length / 2, (long) arenaSize + needed));
+            byte[] grown = new byte[(int) target];
+            System.arraycopy(arena, 0, grown, 0, arenaSize);
+            arena = grown;
+        }
+    }
+
+    // Copy the live records into a new arena and point the table at them
+    private void compact(int capacity) {
+        byte[] compacted = new byte[capacity];
+        int[] newRefs = refs.clone();
+        int position = 0;
+        for (int slot = 0; slot < newRefs.length; slot++) {
+            int ref = newRefs[slot];
+            if (ref != EMPTY && ref != DELETED) {
+                int length = recordSize(arena, ref - 1);
+                System.arraycopy(arena, ref - 1, compacted, position, length);
+                newRefs[slot] = position + 1;
+                position += length;
+            }
+        }
+        arena = compacted;
+        refs = newRefs;
+        arenaSize = position;
+        garbage = 0;
+    }
+
+    // Append a length-prefixed, versioned record and return its offset
+    private int append(byte[] bytes, long version) {
+        int offset = arenaSize;
+        int position = offset;
+        int length = bytes.length;
+        while ((length & ~0x7f) != 0) {
+            arena[position++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        arena[position++] = (byte) length;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            arena[position++] = (byte) (version >>> shift);
+        }
+        System.arraycopy(bytes, 0, arena, position, bytes.length);
+        arenaSize = position + bytes.length;
+        return offset;
+    }
+
+    private static String decode(byte[] arena, int offset) {
+        int length = 0;
+        int position = offset;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IllegalStateException("Corrupt record length at " + offset);
+            }
+            byte b = arena[position++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > arena.length - position - VERSION_SIZE) {
+            throw new IllegalStateException("Corrupt record length at " + offset);
+        }
+        return new String(arena, position + VERSION_SIZE, length, StandardCharsets.UTF_8);
+    }
+
+    // Version of the record at offset
+    private static long decodeVersion(byte[] arena, int offset) {
+        int position = offset;
+        while (arena[position] < 0) {
+            position++;
+        }
+        long version = 0;
+        for (int i = 1; i <= VERSION_SIZE; i++) {
+            version = (version << 8) | (arena[position + i] & 0xff);
+        }
+        return version;
+    }
+
+    // Total size of the record at offset, including its length prefix and version
+    private static int recordSize(byte[] arena, int offset) {
+        int length = 0;
+        int position = offset;
+        for (int shift = 0; ; shift += 7) {
+            byte b = arena[position++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        return position - offset + VERSION_SIZE + length;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // MurmurHash3 32-bit finalizer, so that sequential keys do not cluster in the table
+    private static int mix(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+        if (size < 0) {
+            throw new IllegalArgumentException("Too many expected entries");
+        }
+        return size;
+    }
+}
@@ -0,0 +1,72 @@
+package kvstore;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+// Lossy, striped buffer of key reads that a bounded cache replays into its eviction policy
+// in batches. Readers claim a slot with a single CAS on their stripe and never block; when
+// a stripe is full or contended the read is simply not recorded, which only makes the
+// policy's picture of popularity slightly less precise.
+final class ReadBuffer {
+
+    // Slots per stripe
+    static final int STRIPE_SIZE = 16;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+    // Marks a published slot, so that key 0 is distinguishable from an empty slot
+    private static final long PRESENT = 1L << 32;
+
+    private final int stripes;
+    // Total reads claimed per stripe
+    private final AtomicLongArray tails;
+    // Total reads drained per stripe
+    private final AtomicLongArray heads;
+    private final AtomicLongArray slots;
+
+    ReadBuffer() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.stripes = Integer.highestOneBit(Math.max(1, processors) * 2 - 1) << 1;
+        this.tails = new AtomicLongArray(stripes);
+        this.heads = new AtomicLongArray(stripes);
+        this.slots = new AtomicLongArray(stripes * STRIPE_SIZE);
+    }
+
+    // Record a read and return whether the caller's stripe is now full and worth draining
+    boolean record(int key) {
+        int stripe = spread(System.identityHashCode(Thread.currentThread())) & (stripes - 1);
+        long tail = tails.get(stripe);
+        long size = tail - heads.get(stripe);
+        if (size >= STRIPE_SIZE) {
+            return true;
+        }
+        if (tails.compareAndSet(stripe, tail, tail + 1)) {
+            slots.lazySet(stripe * STRIPE_SIZE + (int) (tail & STRIPE_MASK), PRESENT | (key & 0xffffffffL));
+            return size + 1 >= STRIPE_SIZE;
+        }
+        return false;
+    }
+
+    // Hand every published read to the consumer. Must not be called concurrently.
+    void drain(IntConsumer consumer) {
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            long head = heads.get(stripe);
+            long tail = tails.get(stripe);
+            for (; head < tail; head++) {
+                int index = stripe * STRIPE_SIZE + (int) (head & STRIPE_MASK);
+                long value = slots.get(index);
+                if (value == 0) {
+                    // Claimed but not yet published; pick it up on the next drain
+                    break;
+                }
+                slots.lazySet(index, 0);
+                consumer.accept((int) value);
+            }
+            heads.lazySet(stripe, head);
+        }
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h;
+    }
+}
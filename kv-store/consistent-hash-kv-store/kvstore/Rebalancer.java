@@ -0,0 +1,301 @@
+package kvstore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import metrics.Metrics;
+
+// Moves keys to their new owners in the background after the ring changed. Each membership
+// change becomes a migration that scans the affected source nodes in chunks, copies every
+// key to the replicas that lack it or hold an older version and drops it from sources that
+// no longer own it. The copying is throttled by a bytes-per-second limit so that it does
+// not starve foreground traffic.
+//
+// While a migration is in flight, the ring as it was before the change stays available, so
+// a read that misses on the new owner falls through to the previous one. A chunk that
+// throws is retried with backoff until it succeeds, and the migration stays pending in the
+// meantime, so a failing node delays the move instead of losing keys.
+public class Rebalancer {
+
+    // Keys copied per chunk between rate limiter checks
+    static final int CHUNK_SIZE = 1024;
+    // Wait before retrying a failed chunk, doubled after every failure up to the maximum
+    static final long RETRY_DELAY_MILLIS = 10;
+    static final long MAX_RETRY_DELAY_MILLIS = 1_000;
+
+    // A pending membership change
+    private static final class Migration {
+        final String description;
+        // Ring before the change, used to fall through to previous owners
+        final ConsistentHashRing<ConsistentHashKVStore.Cache> previous;
+        // Nodes whose keys may have to move
+        final List<ConsistentHashKVStore.Cache> sources;
+        // Hash ranges of the keys that may have to move, as ConsistentHashRing.rangesReaching
+        // returns them, or null for all keys of the sources
+        final long[] ranges;
+
+        Migration(String description, ConsistentHashRing<ConsistentHashKVStore.Cache> previous,
+                List<ConsistentHashKVStore.Cache> sources, long[] ranges) {
+            this.description = description;
+            this.previous = previous;
+            this.sources = sources;
+            this.ranges = ranges;
+        }
+    }
+
+    private final ConsistentHashRing<ConsistentHashKVStore.Cache> ring;
+    private final int replicas;
+    private final ExecutorService worker;
+    private final Object idleMonitor = new Object();
+    // Migrations submitted and not yet finished, oldest first
+    private volatile Migration[] pending = new Migration[0];
+    private volatile long bytesPerSecond;
+    // Earliest time the rate limiter lets the next chunk through
+    private long nextChunkNanos;
+
+    private final AtomicLong keysScanned = new AtomicLong();
+    private final AtomicLong keysToScan = new AtomicLong();
+    private final AtomicLong keysMoved = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+    private final AtomicLong migrationsCompleted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Metrics.Histogram durations = new Metrics.Histogram();
+
+    // Rebalance the given ring, keeping each key on its first replicas distinct nodes. A rate
+    // limit of zero or less moves keys as fast as possible.
+    public Rebalancer(ConsistentHashRing<ConsistentHashKVStore.Cache> ring, int replicas, long bytesPerSecond) {
+        this.ring = ring;
+        this.replicas = replicas;
+        this.bytesPerSecond = bytesPerSecond;
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Queue a migration after the ring changed. previous is the ring as it was before the
+    // change and sources are the nodes whose keys may have to move.
+    public void submit(String description, ConsistentHashRing<ConsistentHashKVStore.Cache> previous,
+            List<ConsistentHashKVStore.Cache> sources) {
+        submit(description, previous, sources, null);
+    }
+
+    // Queue a migration that only moves the keys of sources whose hashes lie in ranges
+    public void submit(String description, ConsistentHashRing<ConsistentHashKVStore.Cache> previous,
+            List<ConsistentHashKVStore.Cache> sources, long[] ranges) {
+        Migration migration = new Migration(description, previous, sources, ranges);
+        synchronized (idleMonitor) {
+            Migration[] current = pending;
+            Migration[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = migration;
+            pending = updated;
+        }
+        worker.execute(() -> run(migration));
+    }
+
+    // Look key up on the owners it had before each in-flight change, newest first
+    public String readThrough(int key, long hash, ConsistentHashKVStore.Cache currentOwner) {
+        Migration[] migrations = pending;
+        for (int i = migrations.length - 1; i >= 0; i--) {
+            ConsistentHashKVStore.Cache owner = migrations[i].previous.primary(hash);
+            if (owner != null && owner != currentOwner) {
+                String value = owner.peek(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Change the rate limit while migrations are running
+    public void setRateLimit(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getRateLimit() {
+        return bytesPerSecond;
+    }
+
+    // Number of migrations submitted and not yet finished
+    public int pendingMigrations() {
+        return pending.length;
+    }
+
+    public long migrationsCompleted() {
+        return migrationsCompleted.get();
+    }
+
+    public long keysScanned() {
+        return keysScanned.get();
+    }
+
+    public long keysMoved() {
+        return keysMoved.get();
+    }
+
+    public long bytesMoved() {
+        return bytesMoved.get();
+    }
+
+    // Attempts to list or move a chunk of keys that threw and were retried
+    public long failures() {
+        return failures.get();
+    }
+
+    // Time taken by each finished migration
+    public Metrics.Histogram durations() {
+        return durations;
+    }
+
+    // Share of the keys of all submitted migrations that has been scanned so far
+    public double progress() {
+        long total = keysToScan.get();
+        return total == 0 ? 1.0 : Math.min(1.0, (double) keysScanned.get() / total);
+    }
+
+    // Wait until every submitted migration finished; returns false on timeout
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (idleMonitor) {
+            while (pending.length > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(idleMonitor, remaining);
+            }
+            return true;
+        }
+    }
+
+    private void run(Migration migration) {
+        long start = System.nanoTime();
+        try {
+            List<int[]> sourceKeys = new ArrayList<>();
+            long total = 0;
+            for (ConsistentHashKVStore.Cache source : migration.sources) {
+                int[] keys = withRetries(() -> keysOf(source, migration.ranges));
+                sourceKeys.add(keys);
+                total += keys.length;
+            }
+            keysToScan.addAndGet(total);
+            ConsistentHashKVStore.Cache[] owners = new ConsistentHashKVStore.Cache[replicas];
+            for (int s = 0; s < sourceKeys.size(); s++) {
+                ConsistentHashKVStore.Cache source = migration.sources.get(s);
+                int[] keys = sourceKeys.get(s);
+                for (int from = 0; from < keys.length; from += CHUNK_SIZE) {
+                    int first = from;
+                    int to = Math.min(keys.length, from + CHUNK_SIZE);
+                    // Moving a key again is harmless: putIfNewer skips owners that already
+                    // hold its version, and a key the source already gave up is skipped
+                    long bytes = withRetries(() -> {
+                        long moved = 0;
+                        for (int i = first; i < to; i++) {
+                            moved += moveKey(source, keys[i], owners);
+                        }
+                        return moved;
+                    });
+                    keysScanned.addAndGet(to - from);
+                    throttle(bytes);
+                }
+            }
+            durations.record(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            // Shut down; the keys not moved yet stay on their previous owners
+            Thread.currentThread().interrupt();
+        } finally {
+            migrationsCompleted.incrementAndGet();
+            synchronized (idleMonitor) {
+                Migration[] current = pending;
+                Migration[] updated = new Migration[current.length - 1];
+                for (int i = 0, j = 0; i < current.length; i++) {
+                    if (current[i] != migration) {
+                        updated[j++] = current[i];
+                    }
+                }
+                pending = updated;
+                idleMonitor.notifyAll();
+            }
+        }
+    }
+
+    // Copy key to the current owners that hold an older version or none and drop it from
+    // source if source no longer owns it. Returns the number of bytes copied, counting the
+    // value in UTF-8 as it is sent and stored.
+    private long moveKey(ConsistentHashKVStore.Cache source, int key, ConsistentHashKVStore.Cache[] owners) {
+        Versioned versioned = source.peekVersioned(key);
+        if (versioned == null) {
+            // Evicted or already moved by a later migration
+            return 0;
+        }
+        int found = ring.successors(ConsistentHashRing.hash(key), owners);
+        boolean keep = false;
+        long bytes = 0;
+        for (int i = 0; i < found; i++) {
+            if (owners[i] == source) {
+                keep = true;
+            } else if (owners[i].putIfNewer(key, versioned.value, versioned.version)) {
+                keysMoved.incrementAndGet();
+                // Key and UTF-8 value as the BYTES weigher counts them, plus the version
+                bytes += Long.BYTES + EvictionPolicy.Weigher.BYTES.weigh(key, versioned.value);
+            }
+        }
+        if (!keep) {
+            source.remove(key);
+        }
+        bytesMoved.addAndGet(bytes);
+        return bytes;
+    }
+
+    // Run step until it does not throw, counting every failure and backing off between
+    // attempts
+    private <T> T withRetries(Supplier<T> step) throws InterruptedException {
+        long delay = RETRY_DELAY_MILLIS;
+        while (true) {
+            try {
+                return step.get();
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                TimeUnit.MILLISECONDS.sleep(delay);
+                delay = Math.min(MAX_RETRY_DELAY_MILLIS, delay * 2);
+            }
+        }
+    }
+
+    // Sleep long enough that the bytes copied so far stay within the rate limit
+    private void throttle(long bytes) throws InterruptedException {
+        long limit = bytesPerSecond;
+        if (limit <= 0 || bytes == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        // Do not bank unused allowance from idle periods
+        nextChunkNanos = Math.max(nextChunkNanos, now) + bytes * 1_000_000_000L / limit;
+        long wait = nextChunkNanos - now;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    // Keys of cache whose hashes lie in ranges, or all of its keys if ranges is null
+    private static int[] keysOf(ConsistentHashKVStore.Cache cache, long[] ranges) {
+        int[][] keys = { new int[Math.max(16, cache.size())] };
+        int[] count = { 0 };
+        cache.forEachKey(key -> {
+            if (ranges != null && !ConsistentHashRing.inRanges(ranges, ConsistentHashRing.hash(key))) {
+                return;
+            }
+            if (count[0] == keys[0].length) {
+                keys[0] = Arrays.copyOf(keys[0], keys[0].length * 2);
+            }
+            keys[0][count[0]++] = key;
+        });
+        return Arrays.copyOf(keys[0], count[0]);
+    }
+}
@@ -0,0 +1,261 @@
+package kvstore;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// A cache node running as a KVServer in another process, as seen by ClusterClient.
+//
+// Requests go into one queue per node and are sent by a small pool of connections, each
+// served by a virtual thread. A connection takes whatever has queued up, up to
+// MAX_BATCH requests, writes them as one pipeline and then reads their replies in order,
+// so under load many callers share one write and one round trip. Concurrent GETs of the
+// same key are coalesced as well: while one is in flight, later ones wait for its reply
+// instead of queueing their own. A SET of the key ends coalescing with GETs sent before it,
+// both when it is queued and when its reply arrives, since those GETs may be answered with
+// the old value on another connection; a GET that starts after the SET completed always
+// sees its value.
+//
+// A connection that fails fails the requests of its batch and is reopened for the next
+// one; ClusterClient retries reads on the key's other replicas.
+public class RemoteNode implements AutoCloseable {
+
+    // Most requests sent as one pipeline
+    static final int MAX_BATCH = 256;
+    static final int REPLY_TIMEOUT_MILLIS = 5000;
+
+    private enum Command {
+        GET, SET
+    }
+
+    private static final class Request {
+        final Command command;
+        final int key;
+        final String value;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Request(Command command, int key, String value) {
+            this.command = command;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    public final String name;
+    private final InetSocketAddress address;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    // GETs in flight by key, joined by concurrent GETs of the same key
+    private final ConcurrentHashMap<Integer, CompletableFuture<String>> pendingGets = new ConcurrentHashMap<>();
+    private final Thread[] connections;
+    private volatile boolean closed;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder coalescedGets = new LongAdder();
+    final LongAdder batches = new LongAdder();
+    final LongAdder failures = new LongAdder();
+
+    public RemoteNode(InetSocketAddress address, int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("A node needs at least one connection");
+        }
+        this.address = address;
+        this.name = address.getHostString() + ":" + address.getPort();
+        this.connections = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = Thread.ofVirtual().name("node-" + name + "-" + i).start(this::serve);
+        }
+    }
+
+    public CompletableFuture<String> get(int key) {
+        CompletableFuture<String> pending = pendingGets.get(key);
+        if (pending != null) {
+            coalescedGets.increment();
+            return pending;
+        }
+        Request request = new Request(Command.GET, key, null);
+        pending = pendingGets.putIfAbsent(key, request.result);
+        if (pending != null) {
+            coalescedGets.increment();
+            return pending;
+        }
+        request.result.whenComplete((value, failure) -> pendingGets.remove(key, request.result));
+        return submit(request);
+    }
+
+    public CompletableFuture<String> set(int key, String value) {
+        pendingGets.remove(key);
+        return submit(new Request(Command.SET, key, value));
+    }
+
+    // Requests waiting for a connection
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    // Stop the connections and fail whatever has not been answered
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread connection : connections) {
+            // Interrupting a virtual thread closes the socket it is blocked on
+            connection.interrupt();
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(new IOException("Node " + name + " is closed"));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private CompletableFuture<String> submit(Request request) {
+        if (closed) {
+            request.result.completeExceptionally(new IOException("Node " + name + " is closed"));
+            return request.result;
+        }
+        requests.increment();
+        queue.add(request);
+        return request.result;
+    }
+
+    // Connection loop: take a batch, send it, read its replies
+    private void serve() {
+        List<Request> batch = new ArrayList<>(MAX_BATCH);
+        Socket socket = null;
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            while (true) {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                int replied = 0;
+                try {
+                    if (socket == null) {
+                        socket = new Socket();
+                        socket.setTcpNoDelay(true);
+                        socket.connect(address, 1000);
+                        // A node that stops answering fails the batch instead of hanging it
+                        socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+                        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    }
+                    for (Request request : batch) {
+                        write(out, request);
+                    }
+                    out.flush();
+                    batches.increment();
+                    for (; replied < batch.size(); replied++) {
+                        complete(batch.get(replied), in);
+                    }
+                } catch (IOException e) {
+                    failures.increment();
+                    for (int i = replied; i < batch.size(); i++) {
+                        batch.get(i).result.completeExceptionally(e);
+                    }
+                    closeQuietly(socket);
+                    socket = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void write(OutputStream out, Request request) throws IOException {
+        byte[] key = Integer.toString(request.key).getBytes(StandardCharsets.US_ASCII);
+        if (request.command == Command.GET) {
+            out.write("*2\r\n$3\r\nGET\r\n".getBytes(StandardCharsets.US_ASCII));
+            bulk(out, key);
+        } else {
+            out.write("*3\r\n$3\r\nSET\r\n".getBytes(StandardCharsets.US_ASCII));
+            bulk(out, key);
+            bulk(out, request.value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void bulk(OutputStream out, byte[] bytes) throws IOException {
+        out.write(('$' + Integer.toString(bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+        out.write('\r');
+        out.write('\n');
+    }
+
+    // Read one reply and complete the request with it. Error replies fail only the request.
+    // The reply to a SET also drops the GET of its key in flight, before the caller learns
+    // that the SET completed.
+    private void complete(Request request, InputStream in) throws IOException {
+        int type = in.read();
+        String line = readLine(in);
+        if (request.command == Command.SET) {
+            pendingGets.remove(request.key);
+        }
+        switch (type) {
+            case '+':
+            case ':':
+                request.result.complete(line);
+                break;
+            case '-':
+                request.result.completeExceptionally(new IllegalStateException(line));
+                break;
+            case '$':
+                int length = Integer.parseInt(line);
+                if (length < 0) {
+                    request.result.complete(null);
+                    break;
+                }
+                byte[] value = in.readNBytes(length);
+                if (value.length < length || in.read() != '\r' || in.read() != '\n') {
+                    throw new EOFException("Truncated reply");
+                }
+                request.result.complete(new String(value, StandardCharsets.UTF_8));
+                break;
+            case -1:
+                throw new EOFException("Node closed the connection");
+            default:
+                throw new IOException("Unexpected reply type " + (char) type);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Node closed the connection");
+            }
+            if (b == '\r') {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package kvstore;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Reports how evenly ConsistentHashRing spreads synthetic key sets across nodes and how many
+// keys move when a node joins or leaves.
+//
+// Usage: java RingDistributionReport [keys] [nodeCounts] [virtualNodeCounts]
+// e.g.   java RingDistributionReport 1000000 10,100,200 1,16,160,1024
+public class RingDistributionReport {
+
+    public static void main(String[] args) {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int[] nodeCounts = args.length > 1 ? parseList(args[1]) : new int[] { 10, 100, 200 };
+        int[] virtualNodeCounts = args.length > 2 ? parseList(args[2]) : new int[] { 1, 16, 160, 1024 };
+
+        Map<String, int[]> keySets = new LinkedHashMap<>();
+        keySets.put("sequential", sequentialKeys(keyCount));
+        keySets.put("random", randomKeys(keyCount, 42));
+        keySets.put("strided", stridedKeys(keyCount, 1024));
+
+        System.out.println("Key distribution (" + keyCount + " keys)");
+        System.out.printf("%-10s %6s %6s %10s %9s %9s %8s%n",
+                "keys", "nodes", "vnodes", "mean", "max/mean", "min/mean", "stddev%");
+        for (Map.Entry<String, int[]> keySet : keySets.entrySet()) {
+            for (int nodes : nodeCounts) {
+                for (int virtualNodes : virtualNodeCounts) {
+                    ConsistentHashRing<Integer> ring = buildRing(nodes, virtualNodes);
+                    long[] load = new long[nodes];
+                    for (int key : keySet.getValue()) {
+                        load[ring.primary(ConsistentHashRing.hash(key))]++;
+                    }
+                    printLoad(keySet.getKey(), nodes, virtualNodes, load);
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("Keys moved on membership change (random keys, "
+                + ConsistentHashRing.DEFAULT_VIRTUAL_NODES + " vnodes)");
+        System.out.printf("%-8s %6s %10s %10s%n", "change", "nodes", "moved%", "ideal%");
+        int[] keys = keySets.get("random");
+        for (int nodes : nodeCounts) {
+            ConsistentHashRing<Integer> ring = buildRing(nodes, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+            int[] before = owners(ring, keys);
+
+            ring.addNode("node-" + nodes, nodes);
+            int[] afterAdd = owners(ring, keys);
+            System.out.printf("%-8s %6d %10.3f %10.3f%n", "add", nodes,
+                    100.0 * moved(before, afterAdd) / keys.length, 100.0 / (nodes + 1));
+
+            ring.removeNode(nodes);
+            ring.removeNode(0);
+            int[] afterRemove = owners(ring, keys);
+            System.out.printf("%-8s %6d %10.3f %10.3f%n", "remove", nodes,
+                    100.0 * moved(before, afterRemove) / keys.length, 100.0 / nodes);
+        }
+    }
+
+    private static ConsistentHashRing<Integer> buildRing(int nodes, int virtualNodes) {
+        ConsistentHashRing<Integer> ring = new ConsistentHashRing<>(virtualNodes);
+        for (int i = 0; i < nodes; i++) {
+            ring.addNode("node-" + i, i);
+        }
+        return ring;
+    }
+
+    private static int[] owners(ConsistentHashRing<Integer> ring, int[] keys) {
+        int[] owners = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            owners[i] = ring.primary(ConsistentHashRing.hash(keys[i]));
+        }
+        return owners;
+    }
+
+    private static int moved(int[] before, int[] after) {
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] != after[i]) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private static void printLoad(String keySet, int nodes, int virtualNodes, long[] load) {
+        double mean = 0;
+        long max = Long.MIN_VALUE;
+        long min = Long.MAX_VALUE;
+        for (long l : load) {
+            mean += l;
+            max = Math.max(max, l);
+            min = Math.min(min, l);
+        }
+        mean /= load.length;
+        double variance = 0;
+        for (long l : load) {
+            variance += (l - mean) * (l - mean);
+        }
+        double stddev = Math.sqrt(variance / load.length);
+        System.out.printf("%-10s %6d %6d %10.1f %9.3f %9.3f %8.2f%n",
+                keySet, nodes, virtualNodes, mean, max / mean, min / mean, 100 * stddev / mean);
+    }
+
+    private static int[] sequentialKeys(int count) {
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = i;
+        }
+        return keys;
+    }
+
+    private static int[] randomKeys(int count, long seed) {
+        Random random = new Random(seed);
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextInt();
+        }
+        return keys;
+    }
+
+    private static int[] stridedKeys(int count, int stride) {
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = i * stride;
+        }
+        return keys;
+    }
+
+    private static int[] parseList(String value) {
+        List<String> parts = List.of(value.split(","));
+        int[] result = new int[parts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Integer.parseInt(parts.get(i).trim());
+        }
+        return result;
+    }
+}
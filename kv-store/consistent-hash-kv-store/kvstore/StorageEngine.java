@@ -0,0 +1,82 @@
+package kvstore;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntConsumer;
+
+// Storage behind a single cache node. Implementations must be safe for concurrent use.
+public interface StorageEngine extends AutoCloseable {
+
+    // Callback used to visit every entry of an engine
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(int key, String value);
+    }
+
+    // Store a key-value pair, replacing any previous value. The entry is unversioned.
+    void put(int key, String value);
+
+    // Store a key-value pair with the given version unless the key already holds a version
+    // at least as new. Returns whether the value was stored.
+    boolean putIfNewer(int key, String value, long version);
+
+    // Store an unversioned key-value pair unless the key is already present, returning the
+    // existing value
+    String putIfAbsent(int key, String value);
+
+    // Retrieve a value by key, or null if absent
+    String get(int key);
+
+    // Copy the UTF-8 bytes of a value into target and return their length, or -1 if the key
+    // is absent. If the value is longer than target.remaining(), nothing is copied and the
+    // length is returned all the same, so the caller can make room and ask again. Engines
+    // that keep values encoded copy them straight from their storage, without a String.
+    default int getBytes(int key, ByteBuffer target) {
+        String value = get(key);
+        if (value == null) {
+            return -1;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= target.remaining()) {
+            target.put(bytes);
+        }
+        return bytes.length;
+    }
+
+    // Retrieve a value and the version it was written with, or null if absent
+    Versioned getVersioned(int key);
+
+    // Remove a key, returning the removed value or null
+    String remove(int key);
+
+    // Retrieve the values of the first count keys into values, null where absent.
+    // Engines override this to pay for locking once per batch instead of once per key.
+    default void getAll(int[] keys, String[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            values[i] = get(keys[i]);
+        }
+    }
+
+    // Store the first count key-value pairs with the given version, skipping keys that
+    // already hold a version at least as new
+    default void putAll(int[] keys, String[] values, long version, int count) {
+        for (int i = 0; i < count; i++) {
+            putIfNewer(keys[i], values[i], version);
+        }
+    }
+
+    // Number of entries
+    int size();
+
+    // Visit every entry. The consumer must not modify this engine.
+    void forEach(EntryConsumer action);
+
+    // Visit every key. The consumer must not modify this engine.
+    default void forEachKey(IntConsumer action) {
+        forEach((key, value) -> action.accept(key));
+    }
+
+    // Release any resources held by the engine
+    @Override
+    default void close() {
+    }
+}
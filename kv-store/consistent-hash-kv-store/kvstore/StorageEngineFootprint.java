@@ -0,0 +1,83 @@
+package kvstore;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+// Compares the heap footprint and GC cost of the storage engines. For each engine it loads
+// the same entries, reports retained bytes per entry, GC activity while loading and while
+// overwriting random keys, and the duration of a full collection with the data live.
+//
+// Usage: java -Xmx4g -XX:+UseParallelGC StorageEngineFootprint [entries] [valueLength]
+public class StorageEngineFootprint {
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int valueLength = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        System.out.println("Entries: " + entries + ", value length: " + valueLength + " chars");
+        System.out.printf("%-10s %12s %14s %16s %14s%n",
+                "engine", "bytes/entry", "load gc (ms)", "churn gc (ms)", "full gc (ms)");
+        measure("hashmap", HashMapStorageEngine::new, entries, valueLength);
+        measure("primitive", () -> new PrimitiveStorageEngine(entries), entries, valueLength);
+    }
+
+    private static void measure(String name, Supplier<StorageEngine> factory, int entries, int valueLength) {
+        long baseline = usedHeapAfterGc();
+
+        long gcBefore = totalGcMillis();
+        StorageEngine engine = factory.get();
+        for (int i = 0; i < entries; i++) {
+            engine.put(i, value(i, valueLength));
+        }
+        long loadGc = totalGcMillis() - gcBefore;
+
+        long retained = usedHeapAfterGc() - baseline;
+
+        // Overwrite random keys so that garbage is produced while the data set stays live
+        gcBefore = totalGcMillis();
+        Random random = new Random(7);
+        for (int i = 0; i < entries; i++) {
+            int key = random.nextInt(entries);
+            engine.put(key, value(key + i, valueLength));
+        }
+        long churnGc = totalGcMillis() - gcBefore;
+
+        gcBefore = totalGcMillis();
+        System.gc();
+        long fullGc = totalGcMillis() - gcBefore;
+
+        System.out.printf("%-10s %12.1f %14d %16d %14d%n",
+                name, (double) retained / entries, loadGc, churnGc, fullGc);
+        if (engine.size() != entries) {
+            throw new IllegalStateException("Lost entries: " + engine.size());
+        }
+    }
+
+    // ASCII value of the requested length derived from seed
+    private static String value(int seed, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + Math.floorMod(seed + i * 31, 26));
+        }
+        return new String(chars);
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long totalGcMillis() {
+        long total = 0;
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean collector : collectors) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,23 @@
+package kvstore;
+
+// Value of an entry together with the version it was written with. Versions order
+// concurrent writes to the same key: replicas keep the value with the highest version, and
+// readers that see different values on different replicas trust the newest one.
+public final class Versioned {
+
+    // Version of writes that did not carry one; older than any versioned write
+    public static final long UNVERSIONED = 0;
+
+    public final String value;
+    public final long version;
+
+    public Versioned(String value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    @Override
+    public String toString() {
+        return value + "@" + version;
+    }
+}
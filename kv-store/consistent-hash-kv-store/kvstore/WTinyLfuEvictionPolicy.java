@@ -0,0 +1,153 @@
+package kvstore;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// Window TinyLFU: new entries land in a small LRU window (1% of the maximum weight). An
+// entry leaving the window is only admitted into the main segmented LRU if a count-min
+// sketch says it is used more often than the entry it would displace, so one-off keys
+// from scans cannot flush out the popular ones. The main area is split into a probation
+// segment and a protected segment (80%) for entries that were hit again after admission.
+public class WTinyLfuEvictionPolicy implements EvictionPolicy {
+
+    private final long windowMaximum;
+    private final long mainMaximum;
+    private final long protectedMaximum;
+    private final FrequencySketch sketch;
+
+    // Resident keys and their weights per segment, least recently used first
+    private final LinkedHashMap<Integer, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Integer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Integer> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    public WTinyLfuEvictionPolicy(long maximumWeight) {
+        this(maximumWeight, maximumWeight);
+    }
+
+    // The expected number of entries sizes the frequency sketch; it differs from the
+    // maximum weight when entries are weighed by bytes
+    public WTinyLfuEvictionPolicy(long maximumWeight, long expectedEntries) {
+        if (maximumWeight < 2) {
+            throw new IllegalArgumentException("Maximum weight must be at least 2");
+        }
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.mainMaximum = maximumWeight - windowMaximum;
+        this.protectedMaximum = mainMaximum * 4 / 5;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void onAccess(int key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protectedEntries.get(key) != null) {
+            return;
+        }
+        // A second hit promotes a probation entry to the protected segment
+        Integer weight = probation.remove(key);
+        if (weight != null) {
+            probationWeight -= weight;
+            protectedEntries.put(key, weight);
+            protectedWeight += weight;
+            demoteProtected();
+        }
+    }
+
+    @Override
+    public void onWrite(int key, int weight, IntConsumer evict) {
+        sketch.increment(key);
+        Integer previous;
+        if ((previous = window.get(key)) != null) {
+            window.put(key, weight);
+            windowWeight += weight - previous;
+        } else if ((previous = probation.get(key)) != null) {
+            probation.put(key, weight);
+            probationWeight += weight - previous;
+        } else if ((previous = protectedEntries.get(key)) != null) {
+            protectedEntries.put(key, weight);
+            protectedWeight += weight - previous;
+            demoteProtected();
+        } else {
+            window.put(key, weight);
+            windowWeight += weight;
+        }
+
+        // Entries leaving the window compete for a place in the main area
+        Iterator<Map.Entry<Integer, Integer>> eldest = window.entrySet().iterator();
+        while (windowWeight > windowMaximum) {
+            Map.Entry<Integer, Integer> candidate = eldest.next();
+            eldest.remove();
+            windowWeight -= candidate.getValue();
+            admit(candidate.getKey(), candidate.getValue(), evict);
+        }
+        // An update may have grown the main area past its share
+        while (probationWeight + protectedWeight > mainMaximum) {
+            evictVictim(evict);
+        }
+    }
+
+    @Override
+    public void onRemove(int key) {
+        Integer weight;
+        if ((weight = window.remove(key)) != null) {
+            windowWeight -= weight;
+        } else if ((weight = probation.remove(key)) != null) {
+            probationWeight -= weight;
+        } else if ((weight = protectedEntries.remove(key)) != null) {
+            protectedWeight -= weight;
+        }
+    }
+
+    // Admit a candidate into probation if it is used more often than the entries it displaces
+    private void admit(int key, int weight, IntConsumer evict) {
+        if (weight > mainMaximum) {
+            evict.accept(key);
+            return;
+        }
+        int candidateFrequency = sketch.frequency(key);
+        while (probationWeight + protectedWeight + weight > mainMaximum) {
+            LinkedHashMap<Integer, Integer> segment = probation.isEmpty() ? protectedEntries : probation;
+            int victim = segment.keySet().iterator().next();
+            // Ties favour the incumbent, which keeps one-hit wonders out
+            if (sketch.frequency(victim) >= candidateFrequency) {
+                evict.accept(key);
+                return;
+            }
+            evictVictim(evict);
+        }
+        probation.put(key, weight);
+        probationWeight += weight;
+    }
+
+    // Evict the least recently used entry of probation, or of protected if probation is empty
+    private void evictVictim(IntConsumer evict) {
+        if (!probation.isEmpty()) {
+            Iterator<Map.Entry<Integer, Integer>> eldest = probation.entrySet().iterator();
+            Map.Entry<Integer, Integer> victim = eldest.next();
+            eldest.remove();
+            probationWeight -= victim.getValue();
+            evict.accept(victim.getKey());
+        } else {
+            Iterator<Map.Entry<Integer, Integer>> eldest = protectedEntries.entrySet().iterator();
+            Map.Entry<Integer, Integer> victim = eldest.next();
+            eldest.remove();
+            protectedWeight -= victim.getValue();
+            evict.accept(victim.getKey());
+        }
+    }
+
+    // Move the least recently used protected entries back to probation when it overflows
+    private void demoteProtected() {
+        Iterator<Map.Entry<Integer, Integer>> eldest = protectedEntries.entrySet().iterator();
+        while (protectedWeight > protectedMaximum) {
+            Map.Entry<Integer, Integer> entry = eldest.next();
+            eldest.remove();
+            protectedWeight -= entry.getValue();
+            probation.put(entry.getKey(), entry.getValue());
+            probationWeight += entry.getValue();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package kvstore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import metrics.Metrics;
+
+// Measures durable writes through WalStorageEngine under each sync policy: a number of
+// threads put random keys into one engine for a while, and the benchmark reports writes
+// per second, the latency of a put as its caller saw it, how many records shared one force
+// of the log, and how long a force took.
+//
+// The log goes to a temporary directory unless one is given; point it at the disk the
+// store would use, since the numbers are mostly the disk's.
+//
+// Usage: java WalBenchmark [threads] [seconds] [valueSize] [directory]
+public class WalBenchmark {
+
+    private static final long WARMUP_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        String[] threadCounts = (args.length > 0 ? args[0] : "1,16,64").split(",");
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 3;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        Path directory = args.length > 3 ? Path.of(args[3]) : Files.createTempDirectory("wal-benchmark");
+
+        System.out.printf("Value: %d bytes, log directory: %s%n", valueSize, directory);
+        System.out.printf("%-9s %10s %7s %12s %10s %10s %14s %12s%n", "policy", "window us", "threads",
+                "writes/s", "p50 us", "p99 us", "records/force", "force us");
+        String value = "x".repeat(valueSize);
+        for (String count : threadCounts) {
+            int threads = Integer.parseInt(count.trim());
+            run(directory, WalStorageEngine.SyncPolicy.ALWAYS, 0, threads, seconds, value);
+            run(directory, WalStorageEngine.SyncPolicy.GROUP, 0, threads, seconds, value);
+            run(directory, WalStorageEngine.SyncPolicy.GROUP, 200, threads, seconds, value);
+            run(directory, WalStorageEngine.SyncPolicy.GROUP, 1000, threads, seconds, value);
+            run(directory, WalStorageEngine.SyncPolicy.PERIODIC, 10_000, threads, seconds, value);
+        }
+    }
+
+    private static void run(Path directory, WalStorageEngine.SyncPolicy policy, long windowMicros, int threads,
+            long seconds, String value) throws InterruptedException, IOException {
+        Path log = directory.resolve(policy + "-" + windowMicros + "-" + threads + ".wal");
+        WalStorageEngine engine = new WalStorageEngine(new PrimitiveStorageEngine(), log, policy, windowMicros);
+        long[] writes = new long[threads];
+        Metrics.Histogram latency = new Metrics.Histogram();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers[t] = Thread.ofPlatform().name("writer-" + t).start(() -> {
+                SplittableRandom random = new SplittableRandom(index * 0x9e3779b97f4a7c15L);
+                long now = System.nanoTime();
+                while (now < end) {
+                    long begin = now;
+                    engine.put(random.nextInt(1_000_000), value);
+                    now = System.nanoTime();
+                    if (begin >= start) {
+                        latency.record(now - begin);
+                        writes[index]++;
+                    }
+                }
+            });
+        }
+        // Leave the warmup out of the per-force counts as well
+        Thread.sleep(WARMUP_MILLIS);
+        long recordsBefore = engine.recordCount();
+        long commitsBefore = engine.commitCount();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double perForce = (double) (engine.recordCount() - recordsBefore)
+                / Math.max(1, engine.commitCount() - commitsBefore);
+        engine.close();
+        Files.deleteIfExists(log);
+
+        long total = 0;
+        for (long count : writes) {
+            total += count;
+        }
+        System.out.printf("%-9s %10d %7d %12.0f %10.1f %10.1f %14.1f %12.1f%n", policy, windowMicros, threads,
+                total * 1e9 / (end - start), latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, perForce,
+                engine.commitLatency().percentile(0.5) / 1e3);
+    }
+}
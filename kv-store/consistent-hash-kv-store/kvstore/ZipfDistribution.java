@@ -0,0 +1,41 @@
+package kvstore;
+import java.util.Arrays;
+import java.util.Random;
+
+// Samples ranks in [0, n) where rank r is drawn with probability proportional to
+// 1 / (r + 1)^exponent, so rank 0 is the most popular
+public class ZipfDistribution {
+
+    // Cumulative probability of ranks 0..i
+    private final double[] cdf;
+
+    public ZipfDistribution(int n, double exponent) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Number of elements must be positive");
+        }
+        this.cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    public int sample(Random random) {
+        return sample(random.nextDouble());
+    }
+
+    // Rank for a number drawn uniformly from [0, 1)
+    public int sample(double uniform) {
+        int index = Arrays.binarySearch(cdf, uniform);
+        return Math.min(index < 0 ? -index - 1 : index, cdf.length - 1);
+    }
+
+    // Probability of drawing the given rank
+    public double probability(int rank) {
+        return rank == 0 ? cdf[0] : cdf[rank] - cdf[rank - 1];
+    }
+}
@@ -0,0 +1,100 @@
+package strategies;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads a table of random CIDR blocks (IPv4 /8 to /32 and IPv6 /16 to /64) into
+ * GeolocationLoadBalancer and measures lookups by client address.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class GeolocationBenchmark {
+
+    private static final String[] REGIONS = { "us-east", "us-west", "eu-central", "eu-west", "ap-south",
+            "ap-northeast", "sa-east", "af-south" };
+    private static final int ADDRESSES = 1 << 16;
+
+    @Param({ "1000000" })
+    int prefixes;
+
+    private GeolocationLoadBalancer loadBalancer;
+    private int[] ipv4;
+    private String[] ipv4Text;
+    private String[] ipv6Text;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(7);
+        Path file = Files.createTempFile("prefixes", ".txt");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for (int i = 0; i < prefixes; i++) {
+                    String region = REGIONS[random.nextInt(REGIONS.length)];
+                    if (i % 8 == 0) {
+                        writer.write(String.format("2001:%x:%x:%x::/%d %s%n", random.nextInt(1 << 16),
+                                random.nextInt(1 << 16), random.nextInt(1 << 16), 16 + random.nextInt(49), region));
+                    } else {
+                        writer.write(String.format("%d.%d.%d.%d/%d %s%n", random.nextInt(256), random.nextInt(256),
+                                random.nextInt(256), random.nextInt(256), 8 + random.nextInt(25), region));
+                    }
+                }
+            }
+            loadBalancer = new GeolocationLoadBalancer();
+            for (String region : REGIONS) {
+                loadBalancer.addServer(region, region + "-1.example.com");
+                loadBalancer.addServer(region, region + "-2.example.com");
+            }
+            loadBalancer.loadPrefixes(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        ipv4 = new int[ADDRESSES];
+        ipv4Text = new String[ADDRESSES];
+        ipv6Text = new String[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            ipv4[i] = random.nextInt();
+            ipv4Text[i] = (ipv4[i] >>> 24) + "." + (ipv4[i] >>> 16 & 255) + "." + (ipv4[i] >>> 8 & 255) + "."
+                    + (ipv4[i] & 255);
+            ipv6Text[i] = String.format("2001:%x:%x::%x", random.nextInt(1 << 16), random.nextInt(1 << 16),
+                    random.nextInt(1 << 16));
+        }
+    }
+
+    @Benchmark
+    public String ipv4Int() {
+        return loadBalancer.getServerForAddress(ipv4[ThreadLocalRandom.current().nextInt(ADDRESSES)]);
+    }
+
+    @Benchmark
+    public String ipv4Text() {
+        return loadBalancer.getServerForAddress(ipv4Text[ThreadLocalRandom.current().nextInt(ADDRESSES)]);
+    }
+
+    @Benchmark
+    public String ipv6Text() {
+        return loadBalancer.getServerForAddress(ipv6Text[ThreadLocalRandom.current().nextInt(ADDRESSES)]);
+    }
+}
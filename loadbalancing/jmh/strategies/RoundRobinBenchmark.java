@@ -0,0 +1,75 @@
+package strategies;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the striped RoundRobinLoadBalancer with the previous single-counter version.
+ * The difference only shows with several threads on several cores, so run it with -t.
+ * RoundRobinLoadBalancer.main checks that the stripes still spread picks evenly.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoundRobinBenchmark {
+
+    /**
+     * The previous implementation: every thread increments one AtomicInteger, and the
+     * index goes negative once it overflows.
+     */
+    static final class SingleCounterRoundRobin {
+        private final List<String> servers;
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        SingleCounterRoundRobin(List<String> servers) {
+            this.servers = servers;
+        }
+
+        String getNextServer() {
+            int index = counter.getAndIncrement() % servers.size();
+            return servers.get(index);
+        }
+    }
+
+    @Param({ "16" })
+    int servers;
+
+    private SingleCounterRoundRobin single;
+    private RoundRobinLoadBalancer striped;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < servers; i++) {
+            addresses.add("10.0.0." + (i + 1));
+        }
+        single = new SingleCounterRoundRobin(addresses);
+        striped = new RoundRobinLoadBalancer(addresses);
+    }
+
+    @Benchmark
+    public String singleCounter() {
+        return single.getNextServer();
+    }
+
+    @Benchmark
+    public String stripedCounters() {
+        return striped.getNextServer();
+    }
+}
@@ -0,0 +1,479 @@
+package strategies;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import metrics.Metrics;
+
+/**
+ * Composite strategy that learns which of several strategies serves the current traffic
+ * best, and moves traffic to another one when the traffic or the backends change.
+ *
+ * Time is cut into epochs. In each epoch one of the strategies, the current arm, makes
+ * every pick, and the requests picked in the epoch score it: the cost of an epoch is the
+ * 99th percentile of their response times, raised by the share of failed requests. An
+ * epoch is scored one epoch after it ended, and requests that are still outstanding by
+ * then count as taking that long, or as long as the requests in flight take to drain if
+ * that is longer, so an arm that builds queues cannot hide its slowest requests. A discounted UCB bandit then chooses the next arm. It prefers arms with a low
+ * recent cost, discounts older epochs so that it follows traffic that shifts, and goes back
+ * to an arm it has not tried for a while once its uncertainty outweighs how much worse it
+ * looked.
+ *
+ * Arms that are WeightedLoadBalancers can have their weights tuned: every epoch each
+ * backend's weight is set in proportion to its observed capacity, the share of successful
+ * requests over the mean response time, smoothed over epochs. Capacity is learned from all
+ * requests, whichever arm picked them.
+ *
+ * Selecting reads one volatile field and delegates to the current arm. Releasing updates
+ * LongAdders and an atomic histogram and lets every arm observe the request. The
+ * controller runs every epoch on its own thread after start, or wherever adapt is called.
+ */
+public class AdaptiveLoadBalancer implements LoadBalancer, AutoCloseable {
+
+    public static final long DEFAULT_EPOCH_MILLIS = 250;
+    /** Weight of an epoch relative to the one after it. */
+    public static final double DEFAULT_DISCOUNT = 0.98;
+    /** Scale of the exploration bonus, in units of log cost. */
+    public static final double DEFAULT_EXPLORATION = 0.1;
+
+    // Epochs that scored fewer requests say nothing about their arm
+    private static final int MIN_SAMPLES = 32;
+    // An epoch this many times as costly as its arm's mean means the traffic or the
+    // backends changed, and what was learned about the other arms is out of date
+    private static final double CHANGE_RATIO = 4;
+    // Scored epochs an arm needs before its mean can tell a change
+    private static final double CHANGE_MIN_EPOCHS = 3;
+    // Weight of the latest epoch in the smoothed capacity of a backend
+    private static final double CAPACITY_SMOOTHING = 0.1;
+    // Sum of the tuned weights
+    private static final int TOTAL_TUNED_WEIGHT = 1000;
+
+    /**
+     * Requests scored in one epoch: a log-linear histogram of their response times with 8
+     * buckets per power of two, and how many of them failed.
+     */
+    private static final class Epoch {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+        final int arm;
+        final long startNanos;
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        final LongAdder picks = new LongAdder();
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+
+        Epoch(int arm, long startNanos) {
+            this.arm = arm;
+            this.startNanos = startNanos;
+        }
+
+        void record(long nanos, boolean success) {
+            requests.increment();
+            if (success) {
+                histogram.incrementAndGet(bucket(nanos));
+            } else {
+                failures.increment();
+            }
+        }
+
+        // Percentile of the successful requests and of `unanswered` more that took
+        // unansweredNanos or longer
+        long percentile(double quantile, long unanswered, long unansweredNanos) {
+            long total = unanswered;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = histogram.get(i);
+                seen += count;
+                if (count > 0 && seen >= rank) {
+                    return Math.min(bucketUpperBound(i), unanswered > 0 ? unansweredNanos : Long.MAX_VALUE);
+                }
+            }
+            return unansweredNanos;
+        }
+
+        private static int bucket(long nanos) {
+            long value = Math.max(1, nanos);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent < SUB_BUCKET_BITS) {
+                return (int) value;
+            }
+            int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + mantissa;
+        }
+
+        private static long bucketUpperBound(int bucket) {
+            if (bucket < (1 << SUB_BUCKET_BITS)) {
+                return bucket;
+            }
+            int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+            long mantissa = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+            return (((1L << SUB_BUCKET_BITS | mantissa) + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+
+    /**
+     * Requests of one backend, for tuning weights.
+     */
+    private static final class BackendStats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder responseNanos = new LongAdder();
+        // Only touched by the controller
+        long requestsSeen;
+        long failuresSeen;
+        long responseNanosSeen;
+        double capacity = -1; // Smoothed successful requests per second of response time
+
+        void record(long nanos, boolean success) {
+            requests.increment();
+            responseNanos.add(nanos);
+            if (!success) {
+                failures.increment();
+            }
+        }
+    }
+
+    private final LoadBalancer[] arms;
+    private final boolean tuneWeights;
+    private final double discount;
+    private final double exploration;
+    private final LongSupplier clock;
+    private volatile Epoch epoch;
+    // The epoch before, whose late requests are still being scored
+    private volatile Epoch previous;
+    // Replaced as a whole by update
+    private volatile List<Backend> backends = List.of();
+    private volatile Map<Backend, BackendStats> stats = Map.of();
+
+    // Discounted number of scored epochs and sum of their log costs per arm; only touched
+    // under the lock of adapt
+    private final double[] scoredEpochs;
+    private final double[] costSums;
+    private final long[] epochsPerArm;
+    private ScheduledExecutorService controller;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter adaptFailures = metrics.counter("lb_adaptive_adapt_failures_total",
+            "Controller runs that threw while scoring an epoch or tuning weights");
+
+    /**
+     * @param arms        Strategies to choose from; none of them may be used elsewhere
+     * @param tuneWeights Whether to tune the weights of WeightedLoadBalancer arms
+     */
+    public AdaptiveLoadBalancer(List<LoadBalancer> arms, boolean tuneWeights) {
+        this(arms, tuneWeights, DEFAULT_DISCOUNT, DEFAULT_EXPLORATION, System::nanoTime);
+    }
+
+    /**
+     * @param discount    Weight of an epoch relative to the one after it, in (0, 1]
+     * @param exploration Scale of the exploration bonus; 0 only ever tries each arm once
+     * @param clock       Current time in nanoseconds, for simulations on simulated time
+     */
+    AdaptiveLoadBalancer(List<LoadBalancer> arms, boolean tuneWeights, double discount, double exploration,
+            LongSupplier clock) {
+        if (arms.isEmpty()) {
+            throw new IllegalArgumentException("At least one strategy is required.");
+        }
+        if (discount <= 0 || discount > 1) {
+            throw new IllegalArgumentException("Discount must be in (0, 1].");
+        }
+        if (exploration < 0) {
+            throw new IllegalArgumentException("Exploration cannot be negative.");
+        }
+        this.arms = arms.toArray(new LoadBalancer[0]);
+        this.tuneWeights = tuneWeights;
+        this.discount = discount;
+        this.exploration = exploration;
+        this.clock = clock;
+        this.scoredEpochs = new double[this.arms.length];
+        this.costSums = new double[this.arms.length];
+        this.epochsPerArm = new long[this.arms.length];
+        this.epoch = new Epoch(0, clock.getAsLong());
+        this.previous = epoch;
+        epochsPerArm[0]++;
+    }
+
+    @Override
+    public synchronized void update(List<Backend> backends) {
+        for (LoadBalancer arm : arms) {
+            arm.update(backends);
+        }
+        Map<Backend, BackendStats> current = stats;
+        Map<Backend, BackendStats> updated = new HashMap<>();
+        for (Backend backend : backends) {
+            BackendStats existing = current.get(backend);
+            updated.put(backend, existing != null ? existing : new BackendStats());
+        }
+        this.backends = List.copyOf(backends);
+        this.stats = updated;
+    }
+
+    @Override
+    public Backend select(String clientKey) {
+        return arms[epoch.arm].select(clientKey);
+    }
+
+    @Override
+    public Backend acquire(String clientKey) {
+        Epoch current = epoch;
+        current.picks.increment();
+        return arms[current.arm].acquire(clientKey);
+    }
+
+    @Override
+    public void observe(Backend backend, long responseNanos, boolean success) {
+        // Score the request for the epoch it was picked in
+        long started = clock.getAsLong() - responseNanos;
+        Epoch current = epoch;
+        if (started >= current.startNanos) {
+            current.record(responseNanos, success);
+        } else {
+            Epoch before = previous;
+            if (started >= before.startNanos && before != current) {
+                before.record(responseNanos, success);
+            }
+        }
+        BackendStats backendStats = stats.get(backend);
+        if (backendStats != null) {
+            backendStats.record(responseNanos, success);
+        }
+        for (LoadBalancer arm : arms) {
+            arm.observe(backend, responseNanos, success);
+        }
+    }
+
+    /**
+     * Ends the current epoch: scores the epoch before it, tunes weights and starts the next
+     * epoch with the arm the bandit chooses. Called every epoch by the controller thread.
+     */
+    public synchronized void adapt() {
+        long now = clock.getAsLong();
+        Epoch finished = epoch;
+        Epoch scored = previous;
+        for (int i = 0; i < arms.length; i++) {
+            scoredEpochs[i] *= discount;
+            costSums[i] *= discount;
+        }
+        long finishedRequests = scored.requests.sum();
+        if (scored != finished && finishedRequests >= MIN_SAMPLES) {
+            // Requests picked in the epoch and not released yet took at least an epoch, and
+            // failed ones count the same since their clients got no answer either
+            long outstanding = Math.max(0, scored.picks.sum() - finishedRequests);
+            long unanswered = outstanding + scored.failures.sum();
+            long unansweredNanos = Math.max(now - finished.startNanos, backlogNanos(finished, now));
+            long p99 = scored.percentile(0.99, unanswered, unansweredNanos);
+            double cost = Math.log(Math.max(1, p99));
+            int arm = scored.arm;
+            if (scoredEpochs[arm] >= CHANGE_MIN_EPOCHS
+                    && cost > costSums[arm] / scoredEpochs[arm] + Math.log(CHANGE_RATIO)) {
+                // Try the other arms again before settling
+                for (int i = 0; i < arms.length; i++) {
+                    if (i != arm) {
+                        scoredEpochs[i] = 0;
+                        costSums[i] = 0;
+                    }
+                }
+            }
+            scoredEpochs[arm] += 1;
+            costSums[arm] += cost;
+        }
+        if (tuneWeights) {
+            tuneWeights();
+        }
+        int next = chooseArm(finished.arm);
+        epochsPerArm[next]++;
+        previous = finished;
+        epoch = new Epoch(next, now);
+    }
+
+    /**
+     * @return The strategy making the picks in the current epoch
+     */
+    public LoadBalancer getCurrentArm() {
+        return arms[epoch.arm];
+    }
+
+    /**
+     * @return How many epochs each arm made the picks in, in the order the arms were given
+     */
+    public synchronized long[] getEpochsPerArm() {
+        return epochsPerArm.clone();
+    }
+
+    /**
+     * @return Failed controller runs, e.g. for metrics().toPrometheus()
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs adapt every epoch on a daemon thread until close.
+     */
+    public synchronized void start(long epochMillis) {
+        if (controller != null) {
+            throw new IllegalStateException("Already started.");
+        }
+        controller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adaptive-load-balancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        controller.scheduleAtFixedRate(this::runAdapt, epochMillis, epochMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Adapt for the controller thread; an exception escaping would cancel the schedule, so
+    // a failed run is counted and the current arm keeps picking until the next epoch
+    private void runAdapt() {
+        try {
+            adapt();
+        } catch (RuntimeException e) {
+            adaptFailures.increment();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (controller != null) {
+            controller.shutdownNow();
+        }
+    }
+
+    // How long the requests in flight now will take to drain at the rate requests arrived
+    // in the last epoch, by Little's law. Unlike the age of the outstanding requests this is
+    // not bounded by the epoch length, so an arm that keeps growing queues keeps costing more.
+    private long backlogNanos(Epoch finished, long now) {
+        long picks = finished.picks.sum();
+        if (picks == 0) {
+            return 0;
+        }
+        long inFlight = 0;
+        for (Backend backend : backends) {
+            inFlight += backend.getActiveConnections();
+        }
+        return (long) ((double) inFlight / picks * (now - finished.startNanos));
+    }
+
+    // Lowest cost minus exploration bonus; arms never scored go first, then the current arm
+    // keeps its turn on ties
+    private int chooseArm(int current) {
+        double total = 0;
+        for (double count : scoredEpochs) {
+            total += count;
+        }
+        int best = current;
+        double lowest = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < arms.length; i++) {
+            int arm = (current + i) % arms.length;
+            if (scoredEpochs[arm] == 0) {
+                return arm;
+            }
+            double bound = costSums[arm] / scoredEpochs[arm]
+                    - exploration * Math.sqrt(Math.log(Math.max(1, total)) / scoredEpochs[arm]);
+            if (bound < lowest) {
+                best = arm;
+                lowest = bound;
+            }
+        }
+        return best;
+    }
+
+    // Set the weights of weighted arms in proportion to each backend's smoothed capacity.
+    // Backends without requests yet get the mean weight so that they are tried.
+    private void tuneWeights() {
+        List<Backend> current = backends;
+        Map<Backend, BackendStats> currentStats = stats;
+        if (current.isEmpty()) {
+            return;
+        }
+        double known = 0;
+        int counted = 0;
+        double[] capacity = new double[current.size()];
+        for (int i = 0; i < capacity.length; i++) {
+            BackendStats backend = currentStats.get(current.get(i));
+            long requests = backend.requests.sum();
+            long failures = backend.failures.sum();
+            long nanos = backend.responseNanos.sum();
+            long newRequests = requests - backend.requestsSeen;
+            if (newRequests > 0) {
+                double meanSeconds = Math.max(1, nanos - backend.responseNanosSeen) / 1e9 / newRequests;
+                double successRate = 1 - (double) (failures - backend.failuresSeen) / newRequests;
+                double observed = successRate / meanSeconds;
+                backend.capacity = backend.capacity < 0 ? observed
+                        : backend.capacity * (1 - CAPACITY_SMOOTHING) + observed * CAPACITY_SMOOTHING;
+            }
+            backend.requestsSeen = requests;
+            backend.failuresSeen = failures;
+            backend.responseNanosSeen = nanos;
+            capacity[i] = backend.capacity;
+            if (capacity[i] >= 0) {
+                known += capacity[i];
+                counted++;
+            }
+        }
+        if (counted == 0) {
+            return;
+        }
+        double mean = known / counted;
+        double sum = 0;
+        for (int i = 0; i < capacity.length; i++) {
+            if (capacity[i] < 0) {
+                capacity[i] = mean;
+            }
+            sum += capacity[i];
+        }
+        List<Integer> weights = new ArrayList<>();
+        for (double value : capacity) {
+            weights.add(sum > 0 ? Math.max(1, (int) Math.round(value / sum * TOTAL_TUNED_WEIGHT)) : 1);
+        }
+        for (LoadBalancer arm : arms) {
+            if (arm instanceof WeightedLoadBalancer weighted) {
+                weighted.setWeights(weights);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        List<Backend> backends = List.of(new Backend("http://fast1.example", 1, null),
+                new Backend("http://fast2.example", 1, null), new Backend("http://slow.example", 1, null));
+        // Simulated clock: requests run one after another, the fast backends take 2 ms and
+        // the slow one 200 ms
+        long[] now = {0};
+        AdaptiveLoadBalancer loadBalancer = new AdaptiveLoadBalancer(List.of(
+                new RoundRobinLoadBalancer(List.of()),
+                new WeightedLoadBalancer(),
+                new LeastConnectionsLoadBalancer(List.of())), true, DEFAULT_DISCOUNT, DEFAULT_EXPLORATION,
+                () -> now[0]);
+        loadBalancer.update(backends);
+
+        StringBuilder served = new StringBuilder();
+        for (int epoch = 0; epoch < 40; epoch++) {
+            for (int i = 0; i < 500; i++) {
+                Backend backend = loadBalancer.acquire(null);
+                long nanos = TimeUnit.MILLISECONDS.toNanos(backend == backends.get(2) ? 200 : 2);
+                now[0] += nanos;
+                loadBalancer.release(backend, nanos, true);
+            }
+            served.append(loadBalancer.getCurrentArm().getClass().getSimpleName().charAt(0));
+            loadBalancer.adapt();
+        }
+        System.out.println("Arm per epoch (R = round robin, W = weighted, L = least connections): " + served);
+        System.out.println("Epochs per arm: " + Arrays.toString(loadBalancer.getEpochsPerArm()));
+        WeightedLoadBalancer weighted = (WeightedLoadBalancer) loadBalancer.arms[1];
+        for (Backend backend : backends) {
+            System.out.println("Tuned weight of " + backend.getAddress() + ": "
+                    + weighted.getWeight(backend.getAddress()));
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package strategies;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Discrete-event simulation of eight heterogeneous backends whose speed, health and load
+ * change over time, comparing fixed strategies with AdaptiveLoadBalancer choosing among
+ * them.
+ *
+ * Each backend serves up to four requests at once and queues the rest; service times are
+ * exponential around the backend's mean. Two backends start at 2 ms, four at 5 ms and two
+ * at 20 ms, and the run goes through four phases of equal length:
+ * - steady: load at 70% of capacity.
+ * - slowdown: the two fast backends become five times slower, load at 70% of what is left.
+ * - failing: one 5 ms backend fails every request within 1 ms, which draws traffic to it
+ *   under strategies that favor fast or idle backends. Load at 70%.
+ * - spike: all backends healthy again, load at 90%.
+ *
+ * Arrivals are Poisson. Time is simulated, so the strategies that measure time use the
+ * simulation's clock. Latencies are end-to-end, queueing included, and failed requests
+ * count with the time they took.
+ *
+ * Usage: java strategies.AdaptiveSimulation [phaseSeconds] [epochMillis] [seed] [discount]
+ *                                          [exploration]
+ */
+public class AdaptiveSimulation {
+
+    private static final int CONCURRENCY = 4;
+    private static final double[] BASE_MILLIS = {2, 2, 5, 5, 5, 5, 20, 20};
+    // Static weights in proportion to the initial capacity
+    private static final int[] CONFIGURED_WEIGHTS = {10, 10, 4, 4, 4, 4, 1, 1};
+    private static final String[] PHASES = {"steady", "slowdown", "failing", "spike"};
+    private static final long FAILURE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // A backend that serves CONCURRENCY requests at once and queues the rest
+    private static final class SimulatedBackend {
+        final Backend backend;
+        final ArrayDeque<Long> queue = new ArrayDeque<>(); // Arrival times of waiting requests
+        int busy;
+        double meanNanos;
+        double failureRate;
+
+        SimulatedBackend(Backend backend) {
+            this.backend = backend;
+        }
+    }
+
+    // Completion of a request on a backend
+    private static final class Completion {
+        final long time;
+        final SimulatedBackend backend;
+        final long arrival;
+        final boolean success;
+
+        Completion(long time, SimulatedBackend backend, long arrival, boolean success) {
+            this.time = time;
+            this.backend = backend;
+            this.arrival = arrival;
+            this.success = success;
+        }
+    }
+
+    // Growable array of latencies
+    private static final class Latencies {
+        long[] values = new long[1 << 16];
+        int size;
+        long failures;
+
+        void add(long nanos, boolean success) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+            if (!success) {
+                failures++;
+            }
+        }
+    }
+
+    // Creates the strategy for a run on the run's backends and clock
+    @FunctionalInterface
+    private interface StrategyFactory {
+        LoadBalancer create(List<Backend> backends, LongSupplier clock);
+    }
+
+    public static void main(String[] args) {
+        long phaseSeconds = args.length > 0 ? Long.parseLong(args[0]) : 60;
+        long epochMillis = args.length > 1 ? Long.parseLong(args[1]) : AdaptiveLoadBalancer.DEFAULT_EPOCH_MILLIS;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        double discount = args.length > 3 ? Double.parseDouble(args[3]) : AdaptiveLoadBalancer.DEFAULT_DISCOUNT;
+        double exploration = args.length > 4 ? Double.parseDouble(args[4])
+                : AdaptiveLoadBalancer.DEFAULT_EXPLORATION;
+
+        System.out.printf("Phases of %d s, epochs of %d ms, seed %d%n", phaseSeconds, epochMillis, seed);
+        System.out.printf("%-18s %9s %9s %9s %8s %15s", "strategy", "p50 ms", "p99 ms", "p99.9 ms", "errors",
+                "failing errors");
+        for (String phase : PHASES) {
+            System.out.printf(" %12s", phase + " p99");
+        }
+        System.out.println();
+        run("RoundRobin", (backends, clock) -> new RoundRobinLoadBalancer(List.of()), phaseSeconds, epochMillis,
+                seed);
+        run("Weighted", (backends, clock) -> new WeightedLoadBalancer(), phaseSeconds, epochMillis, seed);
+        run("Weighted, tuned", (backends, clock) -> new AdaptiveLoadBalancer(List.of(new WeightedLoadBalancer()),
+                true, discount, exploration, clock), phaseSeconds, epochMillis, seed);
+        run("LeastConnections", (backends, clock) -> new LeastConnectionsLoadBalancer(List.of()), phaseSeconds,
+                epochMillis, seed);
+        run("PeakEwma", (backends, clock) -> new LeastResponseTimeLoadBalancer(
+                LeastResponseTimeLoadBalancer.Metric.PEAK_EWMA, 1000, clock), phaseSeconds, epochMillis, seed);
+        run("Adaptive", (backends, clock) -> new AdaptiveLoadBalancer(List.of(
+                new RoundRobinLoadBalancer(List.of()),
+                new WeightedLoadBalancer(),
+                new LeastConnectionsLoadBalancer(List.of()),
+                new LeastResponseTimeLoadBalancer(LeastResponseTimeLoadBalancer.Metric.PEAK_EWMA, 1000, clock)),
+                true, discount, exploration, clock),
+                phaseSeconds, epochMillis, seed);
+    }
+
+    private static void run(String name, StrategyFactory factory, long phaseSeconds, long epochMillis, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] now = {0};
+        List<Backend> backends = new ArrayList<>();
+        SimulatedBackend[] simulated = new SimulatedBackend[BASE_MILLIS.length];
+        for (int i = 0; i < simulated.length; i++) {
+            Backend backend = new Backend("backend" + i, CONFIGURED_WEIGHTS[i], null);
+            backends.add(backend);
+            simulated[i] = new SimulatedBackend(backend);
+        }
+        LoadBalancer loadBalancer = factory.create(backends, () -> now[0]);
+        loadBalancer.update(List.copyOf(backends));
+        AdaptiveLoadBalancer adaptive = loadBalancer instanceof AdaptiveLoadBalancer a ? a : null;
+        boolean printArms = name.equals("Adaptive");
+
+        long phaseNanos = TimeUnit.SECONDS.toNanos(phaseSeconds);
+        long epochNanos = TimeUnit.MILLISECONDS.toNanos(epochMillis);
+        Latencies all = new Latencies();
+        Latencies[] perPhase = new Latencies[PHASES.length];
+        // Epochs each arm served in each phase, for the adaptive strategy
+        long[][] armEpochs = new long[PHASES.length][4];
+        PriorityQueue<Completion> completions = new PriorityQueue<>((a, b) -> Long.compare(a.time, b.time));
+        long nextEpoch = epochNanos;
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            perPhase[phase] = new Latencies();
+            double arrivalsPerNano = configurePhase(phase, simulated);
+            long phaseEnd = (phase + 1) * phaseNanos;
+            long nextArrival = now[0] + exponential(random, 1 / arrivalsPerNano);
+            while (true) {
+                Completion next = completions.peek();
+                boolean arrival = next == null || nextArrival <= next.time;
+                long time = arrival ? nextArrival : next.time;
+                if (time >= phaseEnd) {
+                    break;
+                }
+                while (adaptive != null && time >= nextEpoch) {
+                    now[0] = nextEpoch;
+                    armEpochs[phase][armIndex(adaptive)]++;
+                    adaptive.adapt();
+                    nextEpoch += epochNanos;
+                }
+                now[0] = time;
+                if (arrival) {
+                    SimulatedBackend backend = simulated[indexOf(loadBalancer.acquire(null))];
+                    if (backend.busy < CONCURRENCY) {
+                        start(backend, time, time, random, completions);
+                    } else {
+                        backend.queue.add(time);
+                    }
+                    nextArrival = time + exponential(random, 1 / arrivalsPerNano);
+                } else {
+                    completions.poll();
+                    SimulatedBackend backend = next.backend;
+                    long latency = time - next.arrival;
+                    loadBalancer.release(backend.backend, latency, next.success);
+                    all.add(latency, next.success);
+                    perPhase[phase].add(latency, next.success);
+                    backend.busy--;
+                    Long waiting = backend.queue.poll();
+                    if (waiting != null) {
+                        start(backend, time, waiting, random, completions);
+                    }
+                }
+            }
+            now[0] = phaseEnd;
+        }
+
+        System.out.printf("%-18s %9.1f %9.1f %9.1f %7.2f%% %14.2f%%", name, percentile(all, 0.5),
+                percentile(all, 0.99), percentile(all, 0.999), 100.0 * all.failures / all.size,
+                100.0 * perPhase[2].failures / perPhase[2].size);
+        for (Latencies phase : perPhase) {
+            System.out.printf(" %12.1f", percentile(phase, 0.99));
+        }
+        System.out.println();
+        if (printArms) {
+            String[] arms = {"RoundRobin", "Weighted", "LeastConnections", "PeakEwma"};
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                StringBuilder shares = new StringBuilder();
+                long total = Arrays.stream(armEpochs[phase]).sum();
+                for (int arm = 0; arm < arms.length; arm++) {
+                    shares.append(String.format(" %s %.0f%%", arms[arm], 100.0 * armEpochs[phase][arm] / total));
+                }
+                System.out.printf("  %-10s epochs:%s%n", PHASES[phase], shares);
+            }
+        }
+    }
+
+    // Set the speed and health of the backends for a phase and return the arrival rate
+    private static double configurePhase(int phase, SimulatedBackend[] backends) {
+        double load = phase == 3 ? 0.9 : 0.7;
+        double capacity = 0;
+        for (int i = 0; i < backends.length; i++) {
+            double slowdown = phase == 1 && BASE_MILLIS[i] == 2 ? 5 : 1;
+            backends[i].meanNanos = TimeUnit.MILLISECONDS.toNanos(1) * BASE_MILLIS[i] * slowdown;
+            backends[i].failureRate = phase == 2 && i == 2 ? 1 : 0;
+            capacity += CONCURRENCY / backends[i].meanNanos;
+        }
+        return load * capacity;
+    }
+
+    private static void start(SimulatedBackend backend, long now, long arrival, SplittableRandom random,
+            PriorityQueue<Completion> completions) {
+        backend.busy++;
+        boolean success = random.nextDouble() >= backend.failureRate;
+        long service = success ? exponential(random, backend.meanNanos) : FAILURE_NANOS;
+        completions.add(new Completion(now + service, backend, arrival, success));
+    }
+
+    private static long exponential(SplittableRandom random, double mean) {
+        return Math.max(1, (long) (-Math.log(1 - random.nextDouble()) * mean));
+    }
+
+    private static int indexOf(Backend backend) {
+        return Integer.parseInt(backend.getAddress().substring("backend".length()));
+    }
+
+    private static int armIndex(AdaptiveLoadBalancer adaptive) {
+        LoadBalancer arm = adaptive.getCurrentArm();
+        if (arm instanceof RoundRobinLoadBalancer) {
+            return 0;
+        } else if (arm instanceof WeightedLoadBalancer) {
+            return 1;
+        } else if (arm instanceof LeastConnectionsLoadBalancer) {
+            return 2;
+        }
+        return 3;
+    }
+
+    // Percentile in milliseconds
+    private static double percentile(Latencies latencies, double quantile) {
+        long[] sorted = Arrays.copyOf(latencies.values, latencies.size);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,124 @@
+package strategies;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A backend server shared by all load balancing strategies: its address, an optional
+ * weight and region, and the number of requests it is serving right now. Whether it is
+ * healthy is tracked by BackendPool, not here.
+ */
+public class Backend {
+    private final String address;
+    private final int weight;
+    private final String region; // Null if the backend is not tied to a region
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder requests = new LongAdder(); // Requests started on this backend
+    // Exact-mode heaps of least connections load balancers that hold this backend, told
+    // about every change of its connection count. Each heap keeps its own positions, so a
+    // backend can be in any number of them. Replaced as a whole under this backend's lock.
+    private volatile LeastConnectionsLoadBalancer.ConnectionHeap[] heaps = NO_HEAPS;
+    private static final LeastConnectionsLoadBalancer.ConnectionHeap[] NO_HEAPS = {};
+
+    public Backend(String address) {
+        this(address, 1, null);
+    }
+
+    /**
+     * @param address The server address (e.g., IP address, host:port or URL)
+     * @param weight  Relative share of traffic for weighted strategies
+     * @param region  Region the backend serves, or null
+     */
+    public Backend(String address, int weight, String region) {
+        if (address == null || address.isEmpty()) {
+            throw new IllegalArgumentException("Backend address cannot be null or empty.");
+        }
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight cannot be negative.");
+        }
+        this.address = address;
+        this.weight = weight;
+        this.region = region;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * @return Number of requests started on this backend, i.e. how often it was picked
+     *         through acquire or incrementConnections
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public void incrementConnections() {
+        countConnection();
+        connectionsChanged(null);
+    }
+
+    public void decrementConnections() {
+        activeConnections.decrementAndGet();
+        connectionsChanged(null);
+    }
+
+    // Decrement unless already at zero, for completions reported without a matching start
+    void decrementConnectionsIfPositive() {
+        if (activeConnections.getAndUpdate(count -> count > 0 ? count - 1 : 0) > 0) {
+            connectionsChanged(null);
+        }
+    }
+
+    // Count a started request without telling the heaps, for a heap that re-sifts this
+    // backend itself and then calls connectionsChanged for the others
+    void countConnection() {
+        requests.increment();
+        activeConnections.incrementAndGet();
+    }
+
+    // Tell every heap holding this backend except the given one that its count changed
+    void connectionsChanged(LeastConnectionsLoadBalancer.ConnectionHeap except) {
+        for (LeastConnectionsLoadBalancer.ConnectionHeap heap : heaps) {
+            if (heap != except) {
+                heap.changed(this);
+            }
+        }
+    }
+
+    synchronized void addHeap(LeastConnectionsLoadBalancer.ConnectionHeap heap) {
+        LeastConnectionsLoadBalancer.ConnectionHeap[] current = heaps;
+        LeastConnectionsLoadBalancer.ConnectionHeap[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = heap;
+        heaps = updated;
+    }
+
+    synchronized void removeHeap(LeastConnectionsLoadBalancer.ConnectionHeap heap) {
+        LeastConnectionsLoadBalancer.ConnectionHeap[] current = heaps;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == heap) {
+                LeastConnectionsLoadBalancer.ConnectionHeap[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                heaps = updated;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address + " (Active Connections: " + activeConnections + ")";
+    }
+}
@@ -0,0 +1,506 @@
+package strategies;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongBiFunction;
+import metrics.Metrics;
+
+/**
+ * Tracks which backends can take traffic and publishes them to a load balancing strategy.
+ *
+ * Two signals take a backend out of rotation:
+ * - Active health checks, run every check interval on virtual threads. A backend is marked
+ *   down after a number of failed checks in a row and up again after a number of passed ones.
+ * - Passive outlier ejection: requests reported through release are counted per backend,
+ *   and a backend whose error rate over a check interval passes a threshold is ejected for
+ *   a time that grows with every ejection. At most a share of the backends is ejected at once.
+ *
+ * Every change publishes an immutable list of the backends in rotation to the strategy, so
+ * selecting a backend never looks at health. If no backend is in rotation, all of them are
+ * published: trying a backend that might be down beats refusing every request. The strategy
+ * can be swapped at runtime with setStrategy.
+ *
+ * The pool does not log. Health changes, ejections and failed scheduler runs are counted in
+ * metrics() and reported to a Listener, which can log or alert on them.
+ */
+public class BackendPool implements AutoCloseable {
+
+    /**
+     * Active health check. Runs on a virtual thread, so it may block; throwing an exception
+     * or running past the timeout counts as a failed check.
+     */
+    @FunctionalInterface
+    public interface HealthCheck {
+        boolean check(Backend backend) throws Exception;
+    }
+
+    /**
+     * Receives the pool's state changes. Called on the scheduler thread or the thread that
+     * finished a health check, so implementations should return quickly and not throw.
+     */
+    public interface Listener {
+        /** A backend failed or passed enough health checks in a row to change its health. */
+        default void onHealthChanged(Backend backend, boolean healthy) {
+        }
+
+        /** A backend was ejected after failures of its requests in the last interval. */
+        default void onEjected(Backend backend, long ejectionMillis, long failures, long requests) {
+        }
+
+        /** An ejected backend's time is up and it is back in rotation. */
+        default void onReturned(Backend backend) {
+        }
+
+        /** Evaluating error rates or starting health checks threw; the schedule goes on. */
+        default void onTickFailed(RuntimeException e) {
+        }
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+    };
+
+    // Health and outlier state of one backend
+    private static final class State {
+        final AtomicBoolean checking = new AtomicBoolean();
+        // Requests reported through release and how many of them failed
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        volatile boolean healthy = true;
+        // Only touched by one check at a time, ordered through checking
+        int consecutiveFailures;
+        int consecutiveSuccesses;
+        // Only touched by the scheduler thread
+        long requestsSeen;
+        long failuresSeen;
+        long ejectedUntilNanos;
+        int ejections;
+        volatile boolean ejected;
+        volatile long totalEjections;
+        volatile long totalReturns;
+        // Written by one check at a time
+        volatile long healthChanges;
+    }
+
+    private final List<Backend> backends = new CopyOnWriteArrayList<>();
+    private final Map<Backend, State> states = new ConcurrentHashMap<>();
+    private final HealthCheck healthCheck;
+    private final long checkIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService checks = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile LoadBalancer strategy;
+    private volatile Listener listener = NO_LISTENER;
+    // Backends in rotation, as last published to the strategy
+    private volatile List<Backend> available = List.of();
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram responseTimes = metrics.histogram("lb_request_duration_seconds",
+            "Response times reported through release");
+    private final Metrics.Counter tickFailures = metrics.counter("lb_pool_tick_failures_total",
+            "Scheduler runs that threw while evaluating error rates or starting health checks");
+
+    private volatile long checkTimeoutMillis;
+    private volatile int unhealthyThreshold = 2;
+    private volatile int healthyThreshold = 2;
+    private volatile double maxErrorRate = 0.5;
+    private volatile int minimumRequests = 20;
+    private volatile long baseEjectionMillis = 30_000;
+    private volatile double maxEjectedShare = 0.5;
+
+    /**
+     * @param strategy            The strategy to publish backends to
+     * @param healthCheck         The active health check, or null to rely on outlier ejection only
+     * @param checkIntervalMillis How often to run health checks and evaluate error rates
+     */
+    public BackendPool(LoadBalancer strategy, HealthCheck healthCheck, long checkIntervalMillis) {
+        if (checkIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Check interval must be positive.");
+        }
+        this.strategy = strategy;
+        this.healthCheck = healthCheck;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.checkTimeoutMillis = checkIntervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "backend-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        perBackend("lb_backend_requests_total", "Requests started on the backend", Metrics.Type.COUNTER,
+                (backend, state) -> backend.getRequestCount());
+        perBackend("lb_backend_in_flight", "Requests the backend is serving right now", Metrics.Type.GAUGE,
+                (backend, state) -> backend.getActiveConnections());
+        perBackend("lb_backend_failures_total", "Requests reported as failed", Metrics.Type.COUNTER,
+                (backend, state) -> state.failures.sum());
+        perBackend("lb_backend_ejections_total", "Times the backend was ejected as an outlier",
+                Metrics.Type.COUNTER, (backend, state) -> state.totalEjections);
+        perBackend("lb_backend_returns_total", "Times the backend came back from an ejection",
+                Metrics.Type.COUNTER, (backend, state) -> state.totalReturns);
+        perBackend("lb_backend_health_changes_total", "Times health checks marked the backend up or down",
+                Metrics.Type.COUNTER, (backend, state) -> state.healthChanges);
+        perBackend("lb_backend_healthy", "Whether the backend passes its health checks", Metrics.Type.GAUGE,
+                (backend, state) -> state.healthy ? 1 : 0);
+        perBackend("lb_backend_ejected", "Whether the backend is ejected as an outlier", Metrics.Type.GAUGE,
+                (backend, state) -> state.ejected ? 1 : 0);
+        perBackend("lb_backend_up", "Whether the backend is in rotation", Metrics.Type.GAUGE,
+                (backend, state) -> available.contains(backend) ? 1 : 0);
+    }
+
+    // Register a family with one sample per backend in the pool at snapshot time
+    private void perBackend(String name, String help, Metrics.Type type, ToLongBiFunction<Backend, State> value) {
+        metrics.register(name, help, type, samples -> {
+            for (Backend backend : backends) {
+                State state = states.get(backend);
+                if (state != null) {
+                    samples.add(Metrics.label("backend", backend.getAddress()), value.applyAsLong(backend, state));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Per-backend pick counts, in-flight requests, failures, ejections, returns,
+     *         health changes and state, failed scheduler runs and the reported response
+     *         times, e.g. for metrics().toPrometheus()
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @param listener Receiver of health changes and ejections, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener != null ? listener : NO_LISTENER;
+    }
+
+    /**
+     * Starts running health checks and evaluating error rates every check interval.
+     */
+    public void start() {
+        // Spread the first round so that many pools do not check in lockstep
+        long delay = ThreadLocalRandom.current().nextLong(checkIntervalMillis);
+        scheduler.scheduleWithFixedDelay(this::tick, delay, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        checks.shutdownNow();
+    }
+
+    public synchronized void addBackend(Backend backend) {
+        if (states.putIfAbsent(backend, new State()) == null) {
+            backends.add(backend);
+            publish();
+        }
+    }
+
+    public synchronized void removeBackend(Backend backend) {
+        if (states.remove(backend) != null) {
+            backends.remove(backend);
+            publish();
+        }
+    }
+
+    /**
+     * Swaps the strategy. It receives the current backends before it starts serving, and
+     * requests in flight finish against whichever strategy they were released to.
+     *
+     * @param next The new strategy
+     */
+    public synchronized void setStrategy(LoadBalancer next) {
+        List<Backend> current = available;
+        if (!current.isEmpty()) {
+            next.update(current);
+        }
+        strategy = next;
+    }
+
+    public LoadBalancer getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Chooses a backend for a request and counts it as active. Pair with release.
+     *
+     * @param clientKey The client's address or region, or null
+     * @return The chosen backend
+     */
+    public Backend acquire(String clientKey) {
+        if (available.isEmpty()) {
+            throw new IllegalStateException("No backends available.");
+        }
+        return strategy.acquire(clientKey);
+    }
+
+    /**
+     * Reports that a request finished, for outlier ejection and the strategy's statistics.
+     *
+     * @param backend       The backend that served the request
+     * @param responseNanos Response time in nanoseconds
+     * @param success       Whether the request succeeded
+     */
+    public void release(Backend backend, long responseNanos, boolean success) {
+        State state = states.get(backend);
+        if (state != null) {
+            state.requests.increment();
+            if (!success) {
+                state.failures.increment();
+            }
+        }
+        responseTimes.record(responseNanos);
+        strategy.release(backend, responseNanos, success);
+    }
+
+    /**
+     * @return The backends currently in rotation
+     */
+    public List<Backend> getAvailableBackends() {
+        return available;
+    }
+
+    public boolean isHealthy(Backend backend) {
+        State state = states.get(backend);
+        return state != null && state.healthy;
+    }
+
+    public boolean isEjected(Backend backend) {
+        State state = states.get(backend);
+        return state != null && state.ejected;
+    }
+
+    /**
+     * Configures active health checks.
+     *
+     * @param timeoutMillis      How long a check may take before it counts as failed
+     * @param unhealthyThreshold Failed checks in a row that mark a backend down
+     * @param healthyThreshold   Passed checks in a row that mark it up again
+     */
+    public void setHealthCheckPolicy(long timeoutMillis, int unhealthyThreshold, int healthyThreshold) {
+        if (timeoutMillis <= 0 || unhealthyThreshold < 1 || healthyThreshold < 1) {
+            throw new IllegalArgumentException("Timeout and thresholds must be positive.");
+        }
+        this.checkTimeoutMillis = timeoutMillis;
+        this.unhealthyThreshold = unhealthyThreshold;
+        this.healthyThreshold = healthyThreshold;
+    }
+
+    /**
+     * Configures outlier ejection.
+     *
+     * @param maxErrorRate       Share of failed requests in a check interval that ejects a backend
+     * @param minimumRequests    Requests a backend must have served in the interval to be judged
+     * @param baseEjectionMillis Ejection time, multiplied by the number of recent ejections
+     * @param maxEjectedShare    Largest share of the backends that may be ejected at once
+     */
+    public void setOutlierDetection(double maxErrorRate, int minimumRequests, long baseEjectionMillis,
+            double maxEjectedShare) {
+        if (maxErrorRate <= 0 || minimumRequests < 1 || baseEjectionMillis <= 0 || maxEjectedShare < 0) {
+            throw new IllegalArgumentException("Invalid outlier detection settings.");
+        }
+        this.maxErrorRate = maxErrorRate;
+        this.minimumRequests = minimumRequests;
+        this.baseEjectionMillis = baseEjectionMillis;
+        this.maxEjectedShare = maxEjectedShare;
+    }
+
+    // Evaluate error rates, bring back ejected backends whose time is up and start checks
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            boolean changed = false;
+            int ejected = 0;
+            for (State state : states.values()) {
+                if (state.ejected) {
+                    ejected++;
+                }
+            }
+            for (Backend backend : backends) {
+                State state = states.get(backend);
+                if (state == null) {
+                    continue;
+                }
+                long totalRequests = state.requests.sum();
+                long totalFailures = state.failures.sum();
+                long requests = totalRequests - state.requestsSeen;
+                long failures = totalFailures - state.failuresSeen;
+                state.requestsSeen = totalRequests;
+                state.failuresSeen = totalFailures;
+                if (state.ejected) {
+                    if (now - state.ejectedUntilNanos >= 0) {
+                        state.ejected = false;
+                        state.totalReturns++;
+                        ejected--;
+                        changed = true;
+                        listener.onReturned(backend);
+                    }
+                } else if (requests >= minimumRequests && failures > maxErrorRate * requests
+                        && ejected + 1 <= maxEjectedShare * states.size()) {
+                    state.ejections++;
+                    state.totalEjections++;
+                    long millis = baseEjectionMillis * state.ejections;
+                    state.ejectedUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(millis);
+                    state.ejected = true;
+                    ejected++;
+                    changed = true;
+                    listener.onEjected(backend, millis, failures, requests);
+                } else if (state.ejections > 0 && requests >= minimumRequests) {
+                    // A good interval earns back one ejection
+                    state.ejections--;
+                }
+            }
+            if (changed) {
+                synchronized (this) {
+                    publish();
+                }
+            }
+            if (healthCheck != null) {
+                for (Backend backend : backends) {
+                    State state = states.get(backend);
+                    if (state != null && state.checking.compareAndSet(false, true)) {
+                        runCheck(backend, state);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive
+            tickFailures.increment();
+            listener.onTickFailed(e);
+        }
+    }
+
+    private void runCheck(Backend backend, State state) {
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return healthCheck.check(backend);
+            } catch (Exception e) {
+                return false;
+            }
+        }, checks).completeOnTimeout(false, checkTimeoutMillis, TimeUnit.MILLISECONDS).thenAccept(passed -> {
+            try {
+                onCheck(backend, state, passed);
+            } finally {
+                state.checking.set(false);
+            }
+        });
+    }
+
+    private void onCheck(Backend backend, State state, boolean passed) {
+        if (passed) {
+            state.consecutiveFailures = 0;
+            if (!state.healthy && ++state.consecutiveSuccesses >= healthyThreshold) {
+                state.healthy = true;
+                state.healthChanges++;
+                listener.onHealthChanged(backend, true);
+                synchronized (this) {
+                    publish();
+                }
+            }
+        } else {
+            state.consecutiveSuccesses = 0;
+            if (state.healthy && ++state.consecutiveFailures >= unhealthyThreshold) {
+                state.healthy = false;
+                state.healthChanges++;
+                listener.onHealthChanged(backend, false);
+                synchronized (this) {
+                    publish();
+                }
+            }
+        }
+    }
+
+    // Publish the backends in rotation to the strategy; callers hold the lock
+    private void publish() {
+        List<Backend> inRotation = new ArrayList<>();
+        for (Backend backend : backends) {
+            State state = states.get(backend);
+            if (state != null && state.healthy && !state.ejected) {
+                inRotation.add(backend);
+            }
+        }
+        if (inRotation.isEmpty()) {
+            inRotation.addAll(backends);
+        }
+        available = List.copyOf(inRotation);
+        if (!inRotation.isEmpty()) {
+            strategy.update(available);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        List<Backend> backends = List.of(
+                new Backend("10.0.0.1", 5, "Europe"),
+                new Backend("10.0.0.2", 3, "Europe"),
+                new Backend("10.0.0.3", 2, "Asia"),
+                new Backend("10.0.0.4", 1, "Asia"));
+
+        // 10.0.0.4 does not answer health checks and 10.0.0.3 fails most requests
+        Backend unreachable = backends.get(3);
+        Backend failing = backends.get(2);
+        RoundRobinLoadBalancer roundRobin = new RoundRobinLoadBalancer(List.of());
+        try (BackendPool pool = new BackendPool(roundRobin, backend -> backend != unreachable, 100)) {
+            pool.setOutlierDetection(0.5, 20, 1_000, 0.5);
+            pool.setListener(new Listener() {
+                @Override
+                public void onHealthChanged(Backend backend, boolean healthy) {
+                    System.out.println("Backend " + backend.getAddress() + " is " + (healthy ? "healthy" : "unhealthy"));
+                }
+
+                @Override
+                public void onEjected(Backend backend, long ejectionMillis, long failures, long requests) {
+                    System.out.println("Ejecting " + backend.getAddress() + " for " + ejectionMillis + " ms after "
+                            + failures + " of " + requests + " requests failed");
+                }
+
+                @Override
+                public void onReturned(Backend backend) {
+                    System.out.println("Returning " + backend.getAddress() + " from ejection");
+                }
+
+                @Override
+                public void onTickFailed(RuntimeException e) {
+                    System.err.println("Backend pool tick failed: " + e);
+                }
+            });
+            for (Backend backend : backends) {
+                pool.addBackend(backend);
+            }
+            pool.start();
+
+            for (int round = 0; round < 3; round++) {
+                Map<String, Integer> served = new HashMap<>();
+                for (int i = 0; i < 200; i++) {
+                    Backend backend = pool.acquire(null);
+                    boolean success = backend != failing || ThreadLocalRandom.current().nextInt(10) == 0;
+                    pool.release(backend, TimeUnit.MILLISECONDS.toNanos(5), success);
+                    served.merge(backend.getAddress(), 1, Integer::sum);
+                }
+                System.out.println("Round " + (round + 1) + " served by: " + served);
+                Thread.sleep(300);
+            }
+
+            // Switch to least connections without stopping traffic
+            System.out.println("\nSwitching to least connections...");
+            pool.setStrategy(new LeastConnectionsLoadBalancer(List.of(), LeastConnectionsLoadBalancer.Selection.EXACT));
+            Map<String, Integer> served = new HashMap<>();
+            for (int i = 0; i < 200; i++) {
+                Backend backend = pool.acquire(null);
+                pool.release(backend, TimeUnit.MILLISECONDS.toNanos(5), true);
+                served.merge(backend.getAddress(), 1, Integer::sum);
+            }
+            System.out.println("Served by: " + served);
+
+            System.out.println("\nMetrics:");
+            pool.metrics().snapshot().forEach((name, value) -> System.out.println(name + " " + value));
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package strategies;
+import java.util.Arrays;
+
+/**
+ * Longest-prefix-match table from CIDR blocks to int values over 128-bit addresses. IPv4
+ * addresses are stored as IPv4-mapped IPv6 addresses (::ffff:a.b.c.d), so both families
+ * share one trie.
+ *
+ * The trie is path-compressed: a node only exists where two prefixes diverge or a prefix
+ * ends. Each node takes 32 bytes of one long[] (prefix bits, length and value, children),
+ * so visiting a node costs at most one cache miss. Two jump tables, one for the first 16
+ * bits of IPv4 addresses and one for the first 16 bits of all others, skip the top of the
+ * trie. Lookups do not allocate.
+ *
+ * A trie is not safe for concurrent modification; GeolocationLoadBalancer copies it,
+ * modifies the copy, calls index() and publishes it.
+ */
+final class CidrTrie {
+
+    // High 64 bits of an IPv4-mapped IPv6 address
+    static final long IPV4_MAPPED_HIGH = 0;
+    // Low 64 bits of an IPv4-mapped IPv6 address, without the IPv4 address itself
+    static final long IPV4_MAPPED_LOW = 0xFFFFL << 32;
+
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    // Longs per node: prefix high bits, prefix low bits, length << 32 | value, zero << 32 | one
+    private static final int NODE_SIZE = 4;
+    private static final int JUMP_BITS = 16;
+
+    private long[] data;
+    private int nodes;
+    private int prefixes;
+    // For every value of the first 16 bits of an address: the node to continue at, or
+    // NONE, and the value of the longest prefix covering all of those addresses
+    private int[] ipv4Next;
+    private int[] ipv4Best;
+    private int[] ipv6Next;
+    private int[] ipv6Best;
+
+    CidrTrie() {
+        this(16);
+    }
+
+    private CidrTrie(int capacity) {
+        data = new long[capacity * NODE_SIZE];
+        newNode(0, 0, 0, NONE);
+    }
+
+    CidrTrie copy() {
+        CidrTrie copy = new CidrTrie(1);
+        copy.data = Arrays.copyOf(data, data.length);
+        copy.nodes = nodes;
+        copy.prefixes = prefixes;
+        return copy;
+    }
+
+    int size() {
+        return prefixes;
+    }
+
+    // Map the prefix of the given length of an address to a non-negative value. Drops the
+    // jump tables until the next call to index().
+    void put(long addressHigh, long addressLow, int prefixLength, int prefixValue) {
+        if (prefixLength < 0 || prefixLength > 128) {
+            throw new IllegalArgumentException("Prefix length must be between 0 and 128: " + prefixLength);
+        }
+        ipv4Next = null;
+        ipv6Next = null;
+        long keyHigh = maskHigh(addressHigh, prefixLength);
+        long keyLow = maskLow(addressLow, prefixLength);
+        int node = ROOT;
+        while (true) {
+            // The prefix of node is a prefix of the key here
+            if (length(node) == prefixLength) {
+                if (value(node) == NONE) {
+                    prefixes++;
+                }
+                setValue(node, prefixValue);
+                return;
+            }
+            boolean bit = bit(keyHigh, keyLow, length(node));
+            int child = child(node, bit);
+            if (child == NONE) {
+                setChild(node, bit, newNode(keyHigh, keyLow, prefixLength, prefixValue));
+                prefixes++;
+                return;
+            }
+            int childBase = child * NODE_SIZE;
+            int common = Math.min(Math.min(length(child), prefixLength),
+                    commonPrefix(data[childBase], data[childBase + 1], keyHigh, keyLow));
+            if (common == length(child)) {
+                node = child;
+                continue;
+            }
+            // Split the edge to child at the first differing bit
+            int split = newNode(maskHigh(keyHigh, common), maskLow(keyLow, common), common, NONE);
+            childBase = child * NODE_SIZE;
+            setChild(split, bit(data[childBase], data[childBase + 1], common), child);
+            if (common == prefixLength) {
+                setValue(split, prefixValue);
+            } else {
+                setChild(split, bit(keyHigh, keyLow, common), newNode(keyHigh, keyLow, prefixLength, prefixValue));
+            }
+            setChild(node, bit, split);
+            prefixes++;
+            return;
+        }
+    }
+
+    // Build the jump tables after modifications
+    void index() {
+        int entries = 1 << JUMP_BITS;
+        int[] v4Next = new int[entries];
+        int[] v4Best = new int[entries];
+        int[] v6Next = new int[entries];
+        int[] v6Best = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            long v4Low = IPV4_MAPPED_LOW | (long) i << 16;
+            descend(IPV4_MAPPED_HIGH, v4Low, 96 + JUMP_BITS, v4Next, v4Best, i);
+            descend((long) i << 48, 0, JUMP_BITS, v6Next, v6Best, i);
+        }
+        ipv6Next = v6Next;
+        ipv6Best = v6Best;
+        ipv4Best = v4Best;
+        ipv4Next = v4Next;
+    }
+
+    // Value of the longest prefix containing the address, or -1 if there is none
+    int get(long addressHigh, long addressLow) {
+        int node;
+        int best;
+        if (ipv4Next == null) {
+            node = ROOT;
+            best = NONE;
+        } else if (addressHigh == IPV4_MAPPED_HIGH && (addressLow >>> 32) == (IPV4_MAPPED_LOW >>> 32)) {
+            int slot = (int) (addressLow >>> 16) & 0xFFFF;
+            node = ipv4Next[slot];
+            best = ipv4Best[slot];
+        } else {
+            int slot = (int) (addressHigh >>> 48);
+            node = ipv6Next[slot];
+            best = ipv6Best[slot];
+        }
+        long[] nodeData = data;
+        while (node != NONE) {
+            int base = node * NODE_SIZE;
+            long meta = nodeData[base + 2];
+            int bits = (int) (meta >>> 32);
+            if (maskHigh(addressHigh, bits) != nodeData[base] || maskLow(addressLow, bits) != nodeData[base + 1]) {
+                return best;
+            }
+            if ((int) meta != NONE) {
+                best = (int) meta;
+            }
+            if (bits == 128) {
+                return best;
+            }
+            long children = nodeData[base + 3];
+            node = bit(addressHigh, addressLow, bits) ? (int) children : (int) (children >> 32);
+        }
+        return best;
+    }
+
+    // Walk the trie along the first depth bits of a key, recording the best value found
+    // and the first node that depends on later bits
+    private void descend(long keyHigh, long keyLow, int depth, int[] next, int[] best, int slot) {
+        int node = ROOT;
+        int value = NONE;
+        while (node != NONE && length(node) < depth) {
+            int base = node * NODE_SIZE;
+            int bits = length(node);
+            if (maskHigh(keyHigh, bits) != data[base] || maskLow(keyLow, bits) != data[base + 1]) {
+                node = NONE;
+                break;
+            }
+            if (value(node) != NONE) {
+                value = value(node);
+            }
+            node = child(node, bit(keyHigh, keyLow, bits));
+        }
+        next[slot] = node;
+        best[slot] = value;
+    }
+
+    private int newNode(long keyHigh, long keyLow, int prefixLength, int prefixValue) {
+        if ((nodes + 1) * NODE_SIZE > data.length) {
+            int capacity = nodes + (nodes >> 1) + 1;
+            data = Arrays.copyOf(data, capacity * NODE_SIZE);
+        }
+        int base = nodes * NODE_SIZE;
+        data[base] = keyHigh;
+        data[base + 1] = keyLow;
+        data[base + 2] = (long) prefixLength << 32 | (prefixValue & 0xFFFFFFFFL);
+        data[base + 3] = (long) NONE << 32 | (NONE & 0xFFFFFFFFL);
+        return nodes++;
+    }
+
+    private int length(int node) {
+        return (int) (data[node * NODE_SIZE + 2] >>> 32);
+    }
+
+    private int value(int node) {
+        return (int) data[node * NODE_SIZE + 2];
+    }
+
+    private void setValue(int node, int prefixValue) {
+        int index = node * NODE_SIZE + 2;
+        data[index] = (data[index] & 0xFFFFFFFF00000000L) | (prefixValue & 0xFFFFFFFFL);
+    }
+
+    private int child(int node, boolean bit) {
+        long children = data[node * NODE_SIZE + 3];
+        return bit ? (int) children : (int) (children >> 32);
+    }
+
+    private void setChild(int node, boolean bit, int child) {
+        int index = node * NODE_SIZE + 3;
+        if (bit) {
+            data[index] = (data[index] & 0xFFFFFFFF00000000L) | (child & 0xFFFFFFFFL);
+        } else {
+            data[index] = (data[index] & 0xFFFFFFFFL) | (long) child << 32;
+        }
+    }
+
+    // Bit at the given position counted from the most significant bit of high
+    private static boolean bit(long addressHigh, long addressLow, int position) {
+        return position < 64 ? (addressHigh << position) < 0 : (addressLow << (position - 64)) < 0;
+    }
+
+    private static int commonPrefix(long aHigh, long aLow, long bHigh, long bLow) {
+        long differentHigh = aHigh ^ bHigh;
+        if (differentHigh != 0) {
+            return Long.numberOfLeadingZeros(differentHigh);
+        }
+        return 64 + Long.numberOfLeadingZeros(aLow ^ bLow);
+    }
+
+    private static long maskHigh(long addressHigh, int prefixLength) {
+        if (prefixLength >= 64) {
+            return addressHigh;
+        }
+        return prefixLength == 0 ? 0 : addressHigh & (-1L << (64 - prefixLength));
+    }
+
+    private static long maskLow(long addressLow, int prefixLength) {
+        if (prefixLength <= 64) {
+            return 0;
+        }
+        return prefixLength == 128 ? addressLow : addressLow & (-1L << (128 - prefixLength));
+    }
+
+    // IPv4 address in dotted form as an int, or throws if the string is not one
+    static int parseIpv4(String ip, int from, int to) {
+        long address = tryParseIpv4(ip, from, to);
+        if (address < 0) {
+            throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+        }
+        return (int) address;
+    }
+
+    // IPv4 address in dotted form as an unsigned value, or -1 if the string is not one
+    static long tryParseIpv4(String ip, int from, int to) {
+        int address = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = from; i < to; i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                address = address << 8 | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return (address << 8 | octet) & 0xFFFFFFFFL;
+    }
+
+    // Halves parseIpv6 can produce, and a mode that only checks the syntax
+    private static final int HIGH_HALF = 0;
+    private static final int LOW_HALF = 1;
+    private static final int VALIDATE = 2;
+
+    // High or low 64 bits of an IPv6 address in the usual text form, including "::"
+    // shorthand and a dotted IPv4 tail, or throws if the string is not one. Reads the string
+    // without allocating.
+    static long parseIpv6(String ip, int from, int to, boolean highHalf) {
+        if (!isIpv6(ip, from, to)) {
+            throw new IllegalArgumentException("Invalid IPv6 address: " + ip);
+        }
+        return parseValidIpv6(ip, from, to, highHalf);
+    }
+
+    // Like parseIpv6, for a string that isIpv6 accepted
+    static long parseValidIpv6(String ip, int from, int to, boolean highHalf) {
+        return parseIpv6(ip, from, to, highHalf ? HIGH_HALF : LOW_HALF);
+    }
+
+    // Whether the string is an IPv6 address that parseIpv6 accepts
+    static boolean isIpv6(String ip, int from, int to) {
+        return parseIpv6(ip, from, to, VALIDATE) == 0;
+    }
+
+    // In VALIDATE mode returns 0 for a valid address and -1 otherwise; the other modes
+    // expect a valid address
+    private static long parseIpv6(String ip, int from, int to, int mode) {
+        int doubleColon = ip.indexOf("::", from);
+        if (doubleColon >= to - 1) {
+            doubleColon = -1;
+        }
+        // Count the groups after "::" so that they can be placed at the end
+        int groupsAfter = 0;
+        if (doubleColon >= 0) {
+            for (int start = doubleColon + 2; start < to; ) {
+                int end = segmentEnd(ip, start, to);
+                groupsAfter += isDotted(ip, start, end) ? 2 : 1;
+                start = end + 1;
+            }
+        }
+        long result = 0;
+        int group = 0;
+        int i = from;
+        while (i < to) {
+            if (i == doubleColon) {
+                // "::" stands for at least one group of zeros
+                if (group + groupsAfter >= 8) {
+                    return -1;
+                }
+                group = 8 - groupsAfter;
+                i += 2;
+                continue;
+            }
+            int end = segmentEnd(ip, i, to);
+            if (isDotted(ip, i, end)) {
+                // A dotted IPv4 tail fills the last two groups
+                long ipv4 = tryParseIpv4(ip, i, end);
+                if (end != to || ipv4 < 0) {
+                    return -1;
+                }
+                result = place(result, group++, (int) (ipv4 >>> 16), mode);
+                result = place(result, group++, (int) (ipv4 & 0xFFFF), mode);
+            } else {
+                if (end == i || end - i > 4) {
+                    return -1;
+                }
+                int groupValue = 0;
+                for (int k = i; k < end; k++) {
+                    int digit = Character.digit(ip.charAt(k), 16);
+                    if (digit < 0) {
+                        return -1;
+                    }
+                    groupValue = groupValue << 4 | digit;
+                }
+                result = place(result, group++, groupValue, mode);
+            }
+            if (group > 8) {
+                return -1;
+            }
+            i = end;
+            // Step over a single separating colon, but not over the start of "::"
+            if (i < to && i != doubleColon) {
+                if (++i == to) {
+                    return -1;
+                }
+            }
+        }
+        if (group != 8) {
+            return -1;
+        }
+        return result;
+    }
+
+    private static int segmentEnd(String ip, int from, int to) {
+        int end = from;
+        while (end < to && ip.charAt(end) != ':') {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isDotted(String ip, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (ip.charAt(i) == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Put a 16-bit group into the half it belongs to; nothing is placed when validating
+    private static long place(long half, int group, int groupValue, int mode) {
+        if (mode == VALIDATE || group >= 8 || (group < 4) != (mode == HIGH_HALF)) {
+            return half;
+        }
+        return half | (long) groupValue << (48 - 16 * (group & 3));
+    }
+}
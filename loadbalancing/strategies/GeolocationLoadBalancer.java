@@ -1,28 +1,199 @@
 package strategies;
-import java.util.HashMap;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class GeolocationLoadBalancer {
-    // Mapping of client region to server address
-    private final Map<String, String> regionToServerMap = new HashMap<>();
+public class GeolocationLoadBalancer implements LoadBalancer {
 
     /**
-     * Adds a server for a specific region.
+     * A region with its backends. Fields are written under the load balancer's lock and
+     * read without it.
+     */
+    private static final class Region {
+        final String name;
+        volatile double latitude = Double.NaN; // NaN until the location is known
+        volatile double longitude = Double.NaN;
+        volatile Backend[] servers = new Backend[0];
+        volatile boolean available = true;
+        // Indexes of the other regions with a known location, nearest first
+        volatile int[] fallback = new int[0];
+        final AtomicInteger next = new AtomicInteger();
+
+        Region(String name) {
+            this.name = name;
+        }
+
+        // Next backend in round-robin order, or null if the region cannot take traffic
+        Backend pick() {
+            Backend[] current = servers;
+            if (!available || current.length == 0) {
+                return null;
+            }
+            return current[Math.floorMod(next.getAndIncrement(), current.length)];
+        }
+    }
+
+    // What lookup returns for a string that is not an IPv4 or IPv6 address
+    private static final int NOT_AN_ADDRESS = -2;
+
+    // Region name to index into regions, ignoring case without allocating on lookup
+    private final Map<String, Integer> regionIndex = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private volatile Region[] regions = new Region[0];
+    // CIDR blocks to region indexes; replaced as a whole when prefixes are added
+    private volatile CidrTrie prefixes = new CidrTrie();
+    private volatile Backend defaultServer = new Backend("default-server.example.com");
+
+    /**
+     * Adds a server for a specific region. A region can have several servers, which take
+     * turns.
      *
      * @param region       The region (e.g., "North America", "Europe")
      * @param serverAddress The server address (e.g., IP address or domain name)
      */
-    public void addServer(String region, String serverAddress) {
-        regionToServerMap.put(region.toLowerCase(), serverAddress);
+    public synchronized void addServer(String region, String serverAddress) {
+        Region target = region(region);
+        Backend[] current = target.servers;
+        for (Backend backend : current) {
+            if (backend.getAddress().equals(serverAddress)) {
+                return;
+            }
+        }
+        Backend[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Backend(serverAddress, 1, target.name);
+        target.servers = updated;
     }
 
     /**
-     * Removes a server for a specific region.
+     * Removes all servers for a specific region. Requests for it then fall back to the
+     * nearest region with servers.
      *
      * @param region The region to remove
      */
-    public void removeServer(String region) {
-        regionToServerMap.remove(region.toLowerCase());
+    public synchronized void removeServer(String region) {
+        Integer index = regionIndex.get(region);
+        if (index != null) {
+            regions[index].servers = new Backend[0];
+        }
+    }
+
+    /**
+     * Removes one server from a region.
+     *
+     * @param region        The region
+     * @param serverAddress The server address to remove
+     */
+    public synchronized void removeServer(String region, String serverAddress) {
+        Integer index = regionIndex.get(region);
+        if (index != null) {
+            Region target = regions[index];
+            target.servers = Arrays.stream(target.servers)
+                    .filter(server -> !server.getAddress().equals(serverAddress))
+                    .toArray(Backend[]::new);
+        }
+    }
+
+    /**
+     * Sets the location of a region. Requests for a region without available servers go
+     * to the nearest region that has some, by great-circle distance.
+     *
+     * @param region    The region
+     * @param latitude  Latitude in degrees
+     * @param longitude Longitude in degrees
+     */
+    public synchronized void setRegionLocation(String region, double latitude, double longitude) {
+        Region target = region(region);
+        target.latitude = latitude;
+        target.longitude = longitude;
+        updateFallbacks();
+    }
+
+    /**
+     * Marks a region as available or not, e.g. from health checks, without removing its
+     * servers.
+     *
+     * @param region    The region
+     * @param available Whether the region takes traffic
+     */
+    public synchronized void setRegionAvailable(String region, boolean available) {
+        region(region).available = available;
+    }
+
+    /**
+     * Maps a CIDR block such as "203.0.113.0/24" or "2001:db8::/32" to a region. Adding
+     * many blocks one by one copies the table each time; use loadPrefixes for bulk loads.
+     *
+     * @param cidr   The CIDR block
+     * @param region The region
+     */
+    public synchronized void addPrefix(String cidr, String region) {
+        CidrTrie updated = prefixes.copy();
+        put(updated, cidr, region(region));
+        updated.index();
+        prefixes = updated;
+    }
+
+    /**
+     * Loads CIDR blocks from a file with one "cidr region" pair per line, separated by
+     * whitespace or a comma. Blank lines and lines starting with '#' are skipped.
+     *
+     * @param file The file to load
+     * @return The number of blocks loaded
+     */
+    public synchronized int loadPrefixes(Path file) throws IOException {
+        CidrTrie updated = prefixes.copy();
+        int loaded = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[\\s,]+", 2);
+                if (fields.length != 2) {
+                    throw new IllegalArgumentException("Expected \"cidr region\": " + line);
+                }
+                put(updated, fields[0], region(fields[1].trim()));
+                loaded++;
+            }
+        }
+        updated.index();
+        prefixes = updated;
+        return loaded;
+    }
+
+    /**
+     * Replaces the servers of all regions with the given backends, grouped by their region.
+     * Backends without a region are ignored.
+     *
+     * @param backends The backends to choose from
+     */
+    @Override
+    public synchronized void update(List<Backend> backends) {
+        Map<String, List<Backend>> byRegion = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Backend backend : backends) {
+            if (backend.getRegion() != null) {
+                region(backend.getRegion());
+                byRegion.computeIfAbsent(backend.getRegion(), name -> new ArrayList<>()).add(backend);
+            }
+        }
+        for (Region region : regions) {
+            List<Backend> servers = byRegion.get(region.name);
+            region.servers = servers == null ? new Backend[0] : servers.toArray(new Backend[0]);
+        }
+    }
+
+    public void setDefaultServer(String serverAddress) {
+        defaultServer = new Backend(serverAddress);
     }
 
     /**
@@ -32,8 +203,153 @@ public class GeolocationLoadBalancer {
      * @return The server address for the region, or a default server if not found
      */
     public String getServer(String clientRegion) {
-        String regionKey = clientRegion.toLowerCase();
-        return regionToServerMap.getOrDefault(regionKey, "default-server.example.com");
+        Integer index = regionIndex.get(clientRegion);
+        return route(index == null ? -1 : index).getAddress();
+    }
+
+    /**
+     * Finds the backend for a client given by address, if the key parses as an IPv4 or
+     * IPv6 address, or else by region name, so region names such as "1st-dc" that start
+     * with a digit are routed by name.
+     *
+     * @param clientKey The client's IP address or region
+     * @return The backend for the client's region, or the default server if not found
+     */
+    @Override
+    public Backend select(String clientKey) {
+        if (clientKey == null || clientKey.isEmpty()) {
+            return defaultServer;
+        }
+        // Only keys that can be addresses are parsed; the rest go straight to the region map
+        if (Character.isDigit(clientKey.charAt(0)) || clientKey.indexOf(':') >= 0) {
+            int index = lookup(clientKey);
+            if (index != NOT_AN_ADDRESS) {
+                return route(index);
+            }
+        }
+        Integer index = regionIndex.get(clientKey);
+        return route(index == null ? -1 : index);
+    }
+
+    /**
+     * Finds the server for a client address by the longest matching CIDR block. Does not
+     * allocate.
+     *
+     * @param clientIp The client's IPv4 or IPv6 address
+     * @return The server address for the client's region, or a default server if not found
+     *         or clientIp is not a valid address
+     */
+    public String getServerForAddress(String clientIp) {
+        return route(lookup(clientIp)).getAddress();
+    }
+
+    /**
+     * Finds the server for a client IPv4 address given as an int, e.g. 0xC0A80101 for
+     * 192.168.1.1.
+     *
+     * @param clientIp The client's IPv4 address
+     * @return The server address for the client's region, or a default server if not found
+     */
+    public String getServerForAddress(int clientIp) {
+        return route(prefixes.get(CidrTrie.IPV4_MAPPED_HIGH, CidrTrie.IPV4_MAPPED_LOW | (clientIp & 0xFFFFFFFFL)))
+                .getAddress();
+    }
+
+    // Region index of the longest prefix containing the address, -1 if there is none, or
+    // NOT_AN_ADDRESS if the string is not an address
+    private int lookup(String clientIp) {
+        int length = clientIp.length();
+        if (clientIp.indexOf(':') >= 0) {
+            if (!CidrTrie.isIpv6(clientIp, 0, length)) {
+                return NOT_AN_ADDRESS;
+            }
+            return prefixes.get(CidrTrie.parseValidIpv6(clientIp, 0, length, true),
+                    CidrTrie.parseValidIpv6(clientIp, 0, length, false));
+        }
+        long ipv4 = CidrTrie.tryParseIpv4(clientIp, 0, length);
+        return ipv4 < 0 ? NOT_AN_ADDRESS : prefixes.get(CidrTrie.IPV4_MAPPED_HIGH, CidrTrie.IPV4_MAPPED_LOW | ipv4);
+    }
+
+    // Server in the region with the given index, or in the nearest region that can take traffic
+    private Backend route(int index) {
+        if (index < 0) {
+            return defaultServer;
+        }
+        Region[] all = regions;
+        Region region = all[index];
+        Backend server = region.pick();
+        if (server != null) {
+            return server;
+        }
+        for (int other : region.fallback) {
+            server = all[other].pick();
+            if (server != null) {
+                return server;
+            }
+        }
+        return defaultServer;
+    }
+
+    private Region region(String name) {
+        Integer index = regionIndex.get(name);
+        if (index != null) {
+            return regions[index];
+        }
+        Region region = new Region(name);
+        Region[] updated = Arrays.copyOf(regions, regions.length + 1);
+        updated[regions.length] = region;
+        regions = updated;
+        regionIndex.put(name, regions.length - 1);
+        return region;
+    }
+
+    private void put(CidrTrie trie, String cidr, Region region) {
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("Missing prefix length: " + cidr);
+        }
+        int prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+        int index = regionIndex.get(region.name);
+        if (cidr.lastIndexOf(':', slash) >= 0) {
+            trie.put(CidrTrie.parseIpv6(cidr, 0, slash, true), CidrTrie.parseIpv6(cidr, 0, slash, false),
+                    prefixLength, index);
+        } else {
+            if (prefixLength > 32) {
+                throw new IllegalArgumentException("IPv4 prefix length must be at most 32: " + cidr);
+            }
+            int ipv4 = CidrTrie.parseIpv4(cidr, 0, slash);
+            trie.put(CidrTrie.IPV4_MAPPED_HIGH, CidrTrie.IPV4_MAPPED_LOW | (ipv4 & 0xFFFFFFFFL), 96 + prefixLength,
+                    index);
+        }
+    }
+
+    // Rank the other located regions by distance for every located region
+    private void updateFallbacks() {
+        Region[] all = regions;
+        for (Region region : all) {
+            if (Double.isNaN(region.latitude)) {
+                continue;
+            }
+            List<Integer> others = new ArrayList<>();
+            for (int i = 0; i < all.length; i++) {
+                if (all[i] != region && !Double.isNaN(all[i].latitude)) {
+                    others.add(i);
+                }
+            }
+            others.sort(Comparator.comparingDouble(i -> distance(region, all[i])));
+            region.fallback = others.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    // Great-circle distance in kilometers
+    private static double distance(Region a, Region b) {
+        double lat1 = Math.toRadians(a.latitude);
+        double lat2 = Math.toRadians(b.latitude);
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(b.longitude - a.longitude);
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * 6371 * Math.asin(Math.min(1, Math.sqrt(h)));
     }
 
     public static void main(String[] args) {
@@ -60,5 +376,43 @@ public class GeolocationLoadBalancer {
             System.out.println("Client region: " + clientRegion +
                     ", Routed to server: " + loadBalancer.getServer(clientRegion));
         }
+
+        // Route by client address instead, with a second European server and locations
+        // for falling back to the nearest region
+        System.out.println("\nRouting by client address...");
+        loadBalancer.addServer("Europe", "eu-1.example.com");
+        loadBalancer.addServer("Europe", "eu-2.example.com");
+        loadBalancer.setRegionLocation("North America", 39.0, -77.5);
+        loadBalancer.setRegionLocation("Europe", 50.1, 8.7);
+        loadBalancer.setRegionLocation("Asia", 1.35, 103.8);
+        loadBalancer.setRegionLocation("Africa", -33.9, 18.4);
+        loadBalancer.addPrefix("198.51.100.0/24", "North America");
+        loadBalancer.addPrefix("203.0.113.0/24", "Asia");
+        loadBalancer.addPrefix("192.0.2.0/24", "Europe");
+        loadBalancer.addPrefix("192.0.2.128/25", "Africa");
+        loadBalancer.addPrefix("2001:db8::/32", "Europe");
+
+        // Malformed addresses and region names that look like addresses go to the default server
+        String[] clientIps = { "198.51.100.7", "203.0.113.9", "192.0.2.10", "192.0.2.200", "2001:db8::1", "10.1.2.3",
+                "10.0.0", "1.2.3.256", "2001:db8:::1" };
+        for (String clientIp : clientIps) {
+            System.out.println("Client address: " + clientIp +
+                    ", Routed to server: " + loadBalancer.getServerForAddress(clientIp));
+        }
+
+        System.out.println("Client key: 1st Street, Routed to server: " + loadBalancer.select("1st Street").getAddress());
+
+        // Region names that start with a digit are routed by name, addresses still by prefix
+        loadBalancer.addServer("1st-dc", "first-dc.example.com");
+        System.out.println("Client key: 1st-dc, Routed to server: " + loadBalancer.select("1st-dc").getAddress());
+        if (!loadBalancer.select("1st-dc").getAddress().equals("first-dc.example.com")
+                || !loadBalancer.select("203.0.113.9").getAddress().equals("asia-server.example.com")) {
+            throw new IllegalStateException("Region names starting with a digit must route by name");
+        }
+
+        System.out.println("\nMarking Europe unavailable...");
+        loadBalancer.setRegionAvailable("Europe", false);
+        System.out.println("Client address: 192.0.2.10, Routed to server: "
+                + loadBalancer.getServerForAddress("192.0.2.10"));
     }
 }
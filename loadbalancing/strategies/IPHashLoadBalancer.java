@@ -1,43 +1,229 @@
 package strategies;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
-public class IPHashLoadBalancer {
-    private final List<String> servers; // List of backend server addresses
-    private final Map<String, String> ipToServerMap; // Map for session stickiness
+/**
+ * Sticky client-to-server mapping without per-client state, using Maglev hashing: every
+ * server fills slots of a prime-sized lookup table in the order of its own permutation,
+ * taking turns with the others until the table is full. A client's IP is hashed to a
+ * slot, so a lookup is one array read, and adding or removing a server only changes the
+ * slots it gains or gives up, which remaps roughly 1/N of the clients.
+ */
+public class IPHashLoadBalancer implements LoadBalancer {
+
+    // Smallest lookup table; Maglev needs the table size to be a prime
+    public static final int DEFAULT_TABLE_SIZE = 65537;
+    // Slots per server that keep each server's share of the table within about 1%
+    private static final int SLOTS_PER_SERVER = 100;
+
+    // Immutable view published on every membership change
+    private static final class Table {
+        final List<Backend> servers;
+        final Backend[] lookup;
+
+        Table(List<Backend> servers, Backend[] lookup) {
+            this.servers = servers;
+            this.lookup = lookup;
+        }
+    }
+
+    private volatile Table table;
+
+    /**
+     * Creates a balancer without servers, to be filled through update, e.g. by a
+     * BackendPool.
+     */
+    public IPHashLoadBalancer() {
+        this.table = build(List.of());
+    }
 
     public IPHashLoadBalancer(List<String> servers) {
         if (servers == null || servers.isEmpty()) {
             throw new IllegalArgumentException("Server list cannot be null or empty.");
         }
-        this.servers = servers;
-        this.ipToServerMap = new HashMap<>();
+        List<Backend> backends = new ArrayList<>();
+        for (String server : servers) {
+            backends.add(new Backend(server));
+        }
+        this.table = build(List.copyOf(backends));
     }
 
     /**
-     * Get the server assigned to the client's IP.
+     * Get the server assigned to the client's IP. Thread-safe and allocation-free.
      *
      * @param clientIp Client's IP address
      * @return Server address
      */
     public String getServer(String clientIp) {
+        return select(clientIp).getAddress();
+    }
+
+    /**
+     * Get the backend assigned to the client's IP. Addresses are hashed by their numeric
+     * value, so every text form of an IPv6 address, and an IPv4-mapped IPv6 address and its
+     * IPv4 address, reach the same backend. Other keys are hashed by their characters.
+     *
+     * @param clientIp Client's IP address
+     * @return Backend
+     */
+    @Override
+    public Backend select(String clientIp) {
         if (clientIp == null || clientIp.isEmpty()) {
             throw new IllegalArgumentException("Client IP cannot be null or empty.");
         }
+        int length = clientIp.length();
+        long ipv4 = CidrTrie.tryParseIpv4(clientIp, 0, length);
+        if (ipv4 >= 0) {
+            return lookup(mix((int) ipv4));
+        }
+        if (clientIp.indexOf(':') >= 0 && CidrTrie.isIpv6(clientIp, 0, length)) {
+            long high = CidrTrie.parseValidIpv6(clientIp, 0, length, true);
+            long low = CidrTrie.parseValidIpv6(clientIp, 0, length, false);
+            if (high == CidrTrie.IPV4_MAPPED_HIGH && (low & ~0xFFFFFFFFL) == CidrTrie.IPV4_MAPPED_LOW) {
+                return lookup(mix((int) low));
+            }
+            return lookup(mix(mix(high) ^ low));
+        }
+        return lookup(hashChars(clientIp, 0));
+    }
+
+    /**
+     * Get the server assigned to an IPv4 address given as an int, e.g. 0xC0A80101 for
+     * 192.168.1.1. Gives the same answer as the dotted form.
+     *
+     * @param clientIp Client's IPv4 address
+     * @return Server address
+     */
+    public String getServer(int clientIp) {
+        return lookup(mix(clientIp)).getAddress();
+    }
+
+    /**
+     * Replaces the backends. Clients of backends that stay mostly keep their backend.
+     *
+     * @param backends The backends to choose from
+     */
+    @Override
+    public synchronized void update(List<Backend> backends) {
+        table = build(List.copyOf(backends));
+    }
 
-        // Check if the IP is already assigned to a server for stickiness
-        if (ipToServerMap.containsKey(clientIp)) {
-            return ipToServerMap.get(clientIp);
+    /**
+     * Adds a backend. Only the clients on the slots it takes over move to it.
+     *
+     * @param server Server address
+     */
+    public synchronized void addServer(String server) {
+        List<Backend> servers = new ArrayList<>(table.servers);
+        for (Backend backend : servers) {
+            if (backend.getAddress().equals(server)) {
+                return;
+            }
+        }
+        servers.add(new Backend(server));
+        table = build(List.copyOf(servers));
+    }
+
+    /**
+     * Removes a backend. Only the clients that were mapped to it move.
+     *
+     * @param server Server address
+     * @return Whether the server was part of the table
+     */
+    public synchronized boolean removeServer(String server) {
+        List<Backend> servers = new ArrayList<>(table.servers);
+        if (!servers.removeIf(backend -> backend.getAddress().equals(server))) {
+            return false;
         }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("Cannot remove the last server.");
+        }
+        table = build(List.copyOf(servers));
+        return true;
+    }
 
-        // Calculate hash and assign server
-        int serverIndex = Math.abs(clientIp.hashCode() % servers.size());
-        String assignedServer = servers.get(serverIndex);
+    public List<String> getServers() {
+        List<String> addresses = new ArrayList<>();
+        for (Backend backend : table.servers) {
+            addresses.add(backend.getAddress());
+        }
+        return addresses;
+    }
 
-        // Store mapping for stickiness
-        ipToServerMap.put(clientIp, assignedServer);
-        return assignedServer;
+    private Backend lookup(long hash) {
+        Backend[] lookup = table.lookup;
+        if (lookup.length == 0) {
+            throw new IllegalStateException("No servers available");
+        }
+        return lookup[(int) Long.remainderUnsigned(hash, lookup.length)];
+    }
+
+    // Maglev table population: server i prefers slots offset, offset + skip, ... (mod size)
+    // and servers take turns claiming their next free preferred slot
+    private static Table build(List<Backend> servers) {
+        int n = servers.size();
+        if (n == 0) {
+            return new Table(servers, new Backend[0]);
+        }
+        int size = nextPrime(Math.max(DEFAULT_TABLE_SIZE, n * SLOTS_PER_SERVER));
+        long[] offset = new long[n];
+        long[] skip = new long[n];
+        long[] next = new long[n];
+        for (int i = 0; i < n; i++) {
+            String server = servers.get(i).getAddress();
+            offset[i] = Long.remainderUnsigned(hashChars(server, 0x2545F4914F6CDD1DL), size);
+            skip[i] = Long.remainderUnsigned(hashChars(server, 0x9E3779B97F4A7C15L), size - 1) + 1;
+        }
+        Backend[] lookup = new Backend[size];
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < n; i++) {
+                int slot = (int) ((offset[i] + next[i] * skip[i]) % size);
+                while (lookup[slot] != null) {
+                    next[i]++;
+                    slot = (int) ((offset[i] + next[i] * skip[i]) % size);
+                }
+                lookup[slot] = servers.get(i);
+                next[i]++;
+                if (++filled == size) {
+                    return new Table(servers, lookup);
+                }
+            }
+        }
+    }
+
+    // 64-bit hash of a string's characters without allocating
+    private static long hashChars(String value, long seed) {
+        long hash = seed ^ 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static int nextPrime(int value) {
+        for (int candidate = value | 1; ; candidate += 2) {
+            boolean prime = true;
+            for (int divisor = 3; (long) divisor * divisor <= candidate; divisor += 2) {
+                if (candidate % divisor == 0) {
+                    prime = false;
+                    break;
+                }
+            }
+            if (prime) {
+                return candidate;
+            }
+        }
     }
 
     public static void main(String[] args) {
@@ -54,5 +240,26 @@ public class IPHashLoadBalancer {
 
         // Simulate repeat request from the same client
         System.out.println("Server for " + clientIp1 + " (repeat): " + loadBalancer.getServer(clientIp1));
+
+        // Forms of the same IPv6 address share a server
+        for (String ipv6 : new String[] { "2001:db8::1", "2001:DB8:0:0:0:0:0:1", "2001:0db8::0001" }) {
+            System.out.println("Server for " + ipv6 + ": " + loadBalancer.getServer(ipv6));
+        }
+
+        // Count how many of a million clients move when a fourth server joins
+        int clients = 1_000_000;
+        String[] before = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            before[i] = loadBalancer.getServer(0x0A000000 + i);
+        }
+        loadBalancer.addServer("192.168.1.4");
+        int moved = 0;
+        for (int i = 0; i < clients; i++) {
+            if (!before[i].equals(loadBalancer.getServer(0x0A000000 + i))) {
+                moved++;
+            }
+        }
+        System.out.printf("Adding a fourth server moved %.1f%% of the clients (ideal %.1f%%)%n",
+                100.0 * moved / clients, 100.0 / 4);
     }
 }
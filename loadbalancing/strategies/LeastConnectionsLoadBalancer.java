@@ -1,80 +1,310 @@
 package strategies;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
-class Server {
-    private final String name;
-    private final AtomicInteger activeConnections;
+public class LeastConnectionsLoadBalancer implements LoadBalancer {
 
-    public Server(String name) {
-        this.name = name;
-        this.activeConnections = new AtomicInteger(0);
+    // How getNextServer picks a server
+    public enum Selection {
+        // Scan every server for the fewest connections: O(n) per request
+        SCAN,
+        // Sample a few random servers and take the least loaded of them: O(choices)
+        RANDOM_CHOICES,
+        // Read the top of an indexed min-heap that is updated on every connection change
+        EXACT
     }
 
-    public String getName() {
-        return name;
+    // Min-heap of servers ordered by active connections. The heap keeps the position of
+    // every server itself, so a connection change re-sifts just that server in O(log n),
+    // and a server can be in the heaps of several balancers at once. Changes are
+    // serialized on the heap; readers only read the volatile top. A heap that was replaced
+    // is detached from its servers and stops being updated.
+    static final class ConnectionHeap {
+        private final Backend[] heap;
+        // Connection count of each heap entry as of its last change
+        private final int[] connections;
+        // Fixed slot of every server, and the heap position of each slot and the slot at
+        // each heap position; only the two arrays change as servers move
+        private final Map<Backend, Integer> slots = new IdentityHashMap<>();
+        private final int[] positions;
+        private final int[] slotAt;
+        private volatile Backend top;
+
+        ConnectionHeap(List<Backend> servers) {
+            List<Backend> distinct = new ArrayList<>();
+            for (Backend server : servers) {
+                if (slots.putIfAbsent(server, distinct.size()) == null) {
+                    distinct.add(server);
+                }
+            }
+            heap = distinct.toArray(new Backend[0]);
+            connections = new int[heap.length];
+            positions = new int[heap.length];
+            slotAt = new int[heap.length];
+            synchronized (this) {
+                for (int i = 0; i < heap.length; i++) {
+                    // Changes from now on wait for this lock, so none is missed
+                    heap[i].addHeap(this);
+                    connections[i] = heap[i].getActiveConnections();
+                    positions[i] = i;
+                    slotAt[i] = i;
+                }
+                for (int i = heap.length / 2 - 1; i >= 0; i--) {
+                    siftDown(i);
+                }
+                top = heap.length == 0 ? null : heap[0];
+            }
+        }
+
+        Backend peek() {
+            return top;
+        }
+
+        // Take the least loaded server and count a connection on it in one step, so that
+        // concurrent callers never pick the same server based on the same count. Other
+        // heaps holding the server are told after the lock is released, so that two
+        // balancers acquiring at once never wait on each other's heap.
+        Backend acquire() {
+            Backend server;
+            synchronized (this) {
+                server = top;
+                if (server == null) {
+                    return null;
+                }
+                server.countConnection();
+                changed(server);
+            }
+            server.connectionsChanged(this);
+            return server;
+        }
+
+        synchronized void changed(Backend server) {
+            Integer slot = slots.get(server);
+            if (slot == null) {
+                return;
+            }
+            int index = positions[slot];
+            connections[index] = server.getActiveConnections();
+            siftDown(siftUp(index));
+            top = heap[0];
+        }
+
+        // Stop receiving changes from the servers, once the heap was replaced
+        void detach() {
+            for (Backend server : heap) {
+                server.removeHeap(this);
+            }
+        }
+
+        private int siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (connections[parent] <= connections[index]) {
+                    break;
+                }
+                swap(index, parent);
+                index = parent;
+            }
+            return index;
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= heap.length) {
+                    return;
+                }
+                if (child + 1 < heap.length && connections[child + 1] < connections[child]) {
+                    child++;
+                }
+                if (connections[index] <= connections[child]) {
+                    return;
+                }
+                swap(index, child);
+                index = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            Backend server = heap[i];
+            heap[i] = heap[j];
+            heap[j] = server;
+            int count = connections[i];
+            connections[i] = connections[j];
+            connections[j] = count;
+            int slot = slotAt[i];
+            slotAt[i] = slotAt[j];
+            slotAt[j] = slot;
+            positions[slotAt[i]] = i;
+            positions[slotAt[j]] = j;
+        }
     }
 
-    public int getActiveConnections() {
-        return activeConnections.get();
+    // Servers to choose from, replaced as a whole by update
+    private static final class Members {
+        final List<Backend> servers;
+        // Same servers as an array so that sampling does not allocate
+        final Backend[] candidates;
+        final ConnectionHeap heap;
+
+        Members(List<Backend> servers, ConnectionHeap heap) {
+            this.servers = servers;
+            this.candidates = servers.toArray(new Backend[0]);
+            this.heap = heap;
+        }
     }
 
-    public void incrementConnections() {
-        activeConnections.incrementAndGet();
+    private volatile Members members;
+    private final Selection selection;
+    // Servers sampled per request in RANDOM_CHOICES mode
+    private final int choices;
+    // Source of the samples, or null for ThreadLocalRandom
+    private final RandomGenerator random;
+
+    // Power of two choices
+    public LeastConnectionsLoadBalancer(List<Backend> servers) {
+        this(servers, Selection.RANDOM_CHOICES, 2);
     }
 
-    public void decrementConnections() {
-        activeConnections.decrementAndGet();
+    public LeastConnectionsLoadBalancer(List<Backend> servers, Selection selection) {
+        this(servers, selection, 2);
     }
 
-    @Override
-    public String toString() {
-        return name + " (Active Connections: " + activeConnections + ")";
+    public LeastConnectionsLoadBalancer(List<Backend> servers, Selection selection, int choices) {
+        this(servers, selection, choices, null);
     }
-}
 
-class LeastConnectionsLoadBalancer {
-    private final List<Server> servers;
+    // Sample with the given generator instead of ThreadLocalRandom, so that single-threaded
+    // simulations pick the same servers for the same seed. The generator must not be
+    // shared between threads.
+    LeastConnectionsLoadBalancer(List<Backend> servers, Selection selection, int choices, RandomGenerator random) {
+        if (choices < 1) {
+            throw new IllegalArgumentException("Choices must be at least 1");
+        }
+        this.selection = selection;
+        this.choices = choices;
+        this.random = random;
+        this.members = new Members(List.copyOf(servers), selection == Selection.EXACT ? new ConnectionHeap(servers) : null);
+    }
 
-    public LeastConnectionsLoadBalancer(List<Server> servers) {
-        this.servers = servers;
+    @Override
+    public synchronized void update(List<Backend> servers) {
+        Members previous = members;
+        members = new Members(List.copyOf(servers), selection == Selection.EXACT ? new ConnectionHeap(servers) : null);
+        if (previous != null && previous.heap != null) {
+            previous.heap.detach();
+        }
     }
 
     // Get the server with the least active connections
-    public Server getNextServer() {
-        return servers.stream()
-                .min(Comparator.comparingInt(Server::getActiveConnections))
-                .orElseThrow(() -> new RuntimeException("No servers available"));
+    public Backend getNextServer() {
+        Members current = members;
+        switch (selection) {
+            case SCAN:
+                return current.servers.stream()
+                        .min(Comparator.comparingInt(Backend::getActiveConnections))
+                        .orElseThrow(() -> new RuntimeException("No servers available"));
+            case EXACT:
+                Backend top = current.heap.peek();
+                if (top == null) {
+                    throw new RuntimeException("No servers available");
+                }
+                return top;
+            default:
+                return sample(current.candidates);
+        }
     }
 
-    public void simulateRequest(Server server) {
-        // Simulate handling a request by incrementing and then decrementing connections
-        server.incrementConnections();
-        System.out.println("Forwarding request to: " + server);
-        try {
-            Thread.sleep((long) (Math.random() * 1000)); // Simulate request processing time
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    @Override
+    public Backend select(String clientKey) {
+        return getNextServer();
+    }
+
+    // Pick a server and count a connection on it. In EXACT mode both happen atomically.
+    public Backend acquire() {
+        return acquire(null);
+    }
+
+    @Override
+    public Backend acquire(String clientKey) {
+        if (selection == Selection.EXACT) {
+            Backend server = members.heap.acquire();
+            if (server == null) {
+                throw new RuntimeException("No servers available");
+            }
+            return server;
         }
-        server.decrementConnections();
+        Backend server = getNextServer();
+        server.incrementConnections();
+        return server;
     }
 
-    public static void main(String[] args) {
-        // Initialize servers
-        List<Server> servers = List.of(
-                new Server("http://server1.com"),
-                new Server("http://server2.com"),
-                new Server("http://server3.com"));
+    public void release(Backend server) {
+        server.decrementConnections();
+    }
 
-        // Initialize load balancer
-        LeastConnectionsLoadBalancer loadBalancer = new LeastConnectionsLoadBalancer(servers);
+    public Selection getSelection() {
+        return selection;
+    }
 
-        // Simulate client requests
-        for (int i = 0; i < 20; i++) {
-            Server server = loadBalancer.getNextServer();
-            new Thread(() -> loadBalancer.simulateRequest(server)).start();
+    // Least loaded of `choices` servers drawn at random. Sampling spreads concurrent
+    // requests that see the same counts instead of sending all of them to one server.
+    private Backend sample(Backend[] all) {
+        if (all.length == 0) {
+            throw new RuntimeException("No servers available");
         }
+        RandomGenerator random = this.random != null ? this.random : ThreadLocalRandom.current();
+        Backend best = all[random.nextInt(all.length)];
+        int fewest = best.getActiveConnections();
+        for (int i = 1; i < choices; i++) {
+            Backend candidate = all[random.nextInt(all.length)];
+            int connections = candidate.getActiveConnections();
+            if (connections < fewest) {
+                best = candidate;
+                fewest = connections;
+            }
+        }
+        return best;
+    }
 
+    // Three servers, one of them half as fast, at 80% load in a deterministic simulation
+    public static void main(String[] args) {
+        LoadSimulator simulator = new LoadSimulator(List.of(
+                new LoadSimulator.BackendModel("http://server1.com", 1, null, 4, LoadSimulator.ServiceTime.exponential(10e6)),
+                new LoadSimulator.BackendModel("http://server2.com", 1, null, 4, LoadSimulator.ServiceTime.exponential(10e6)),
+                new LoadSimulator.BackendModel("http://server3.com", 1, null, 4, LoadSimulator.ServiceTime.exponential(20e6))),
+                42);
+        LeastConnectionsLoadBalancer loadBalancer = new LeastConnectionsLoadBalancer(List.of(), Selection.SCAN);
+        // Capacity is 4 + 4 + 2 requests per 10 ms
+        simulator.run(loadBalancer, LoadSimulator.Workload.poisson(800, 100_000, null)).print(System.out);
+
+        // Two exact balancers over the same backends each keep their own heap positions,
+        // so both keep picking a least loaded backend
+        List<Backend> shared = List.of(new Backend("http://a.com"), new Backend("http://b.com"),
+                new Backend("http://c.com"), new Backend("http://d.com"));
+        LeastConnectionsLoadBalancer first = new LeastConnectionsLoadBalancer(shared, Selection.EXACT);
+        LeastConnectionsLoadBalancer second = new LeastConnectionsLoadBalancer(shared, Selection.EXACT);
+        Random random = new Random(7);
+        for (int i = 0; i < 1_000; i++) {
+            LeastConnectionsLoadBalancer balancer = random.nextBoolean() ? first : second;
+            int fewest = shared.stream().mapToInt(Backend::getActiveConnections).min().getAsInt();
+            Backend server = balancer.acquire();
+            if (server.getActiveConnections() != fewest + 1) {
+                throw new IllegalStateException("Exact heap picked " + server + " with " + fewest + " the fewest");
+            }
+            if (random.nextInt(3) != 0) {
+                Backend done = shared.get(random.nextInt(shared.size()));
+                if (done.getActiveConnections() > 0) {
+                    balancer.release(done);
+                }
+            }
+        }
+        System.out.println("\nTwo exact balancers over shared backends: " + shared);
     }
 }
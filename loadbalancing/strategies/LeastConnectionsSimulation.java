@@ -0,0 +1,97 @@
+package strategies;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the selection modes of LeastConnectionsLoadBalancer at growing numbers of
+ * servers: the cost of one selection and the deepest queue any server builds up.
+ *
+ * Every tick, requests arrive at 90% of the total capacity and every busy server finishes
+ * one request with probability 1/2. Requests are dispatched in rounds of `dispatchers`,
+ * which models that many threads reading the connection counts before any of them
+ * counted its own request. SCAN and RANDOM_CHOICES select with getNextServer and count
+ * afterwards; EXACT uses acquire, which selects and counts under the heap lock.
+ *
+ * Usage: java strategies.LeastConnectionsSimulation [serverCounts] [dispatchers] [requests]
+ */
+public class LeastConnectionsSimulation {
+
+    private static final double LOAD = 0.9;
+    private static final double COMPLETION_CHANCE = 0.5;
+
+    public static void main(String[] args) {
+        String[] serverCounts = (args.length > 0 ? args[0] : "10,1000,10000").split(",");
+        int dispatchers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long requests = args.length > 2 ? Long.parseLong(args[2]) : 500_000;
+
+        System.out.printf("Load: %.0f%%, dispatchers: %d, requests per run: %d%n", LOAD * 100, dispatchers, requests);
+        System.out.printf("%-8s %-16s %12s %10s %14s%n", "servers", "selection", "ns/select", "max queue",
+                "mean max queue");
+        for (String count : serverCounts) {
+            int servers = Integer.parseInt(count.trim());
+            simulate(servers, LeastConnectionsLoadBalancer.Selection.SCAN, 1, dispatchers, requests);
+            simulate(servers, LeastConnectionsLoadBalancer.Selection.RANDOM_CHOICES, 2, dispatchers, requests);
+            simulate(servers, LeastConnectionsLoadBalancer.Selection.RANDOM_CHOICES, 3, dispatchers, requests);
+            simulate(servers, LeastConnectionsLoadBalancer.Selection.EXACT, 1, dispatchers, requests);
+        }
+    }
+
+    private static void simulate(int serverCount, LeastConnectionsLoadBalancer.Selection selection, int choices,
+            int dispatchers, long requests) {
+        List<Backend> servers = new ArrayList<>();
+        for (int i = 0; i < serverCount; i++) {
+            servers.add(new Backend("server" + i));
+        }
+        LeastConnectionsLoadBalancer loadBalancer = new LeastConnectionsLoadBalancer(servers, selection, choices);
+        Backend[] round = new Backend[dispatchers];
+        Random random = new Random(42);
+        double arrivalRate = LOAD * COMPLETION_CHANCE * serverCount;
+        long ticks = Math.max(100, (long) (requests / arrivalRate));
+
+        long selections = 0;
+        long selectNanos = 0;
+        int maxQueue = 0;
+        long sumOfMaxQueues = 0;
+        double arrived = 0;
+        for (long tick = 0; tick < ticks; tick++) {
+            // Carry the fraction over so that small rings also run at LOAD
+            arrived += arrivalRate;
+            int arrivalsPerTick = (int) arrived;
+            arrived -= arrivalsPerTick;
+            for (int dispatched = 0; dispatched < arrivalsPerTick; dispatched += dispatchers) {
+                int batch = Math.min(dispatchers, arrivalsPerTick - dispatched);
+                long start = System.nanoTime();
+                if (selection == LeastConnectionsLoadBalancer.Selection.EXACT) {
+                    for (int i = 0; i < batch; i++) {
+                        loadBalancer.acquire();
+                    }
+                } else {
+                    // All dispatchers of a round see the same counts
+                    for (int i = 0; i < batch; i++) {
+                        round[i] = loadBalancer.getNextServer();
+                    }
+                    for (int i = 0; i < batch; i++) {
+                        round[i].incrementConnections();
+                    }
+                }
+                selectNanos += System.nanoTime() - start;
+                selections += batch;
+            }
+            int tickMax = 0;
+            for (Backend server : servers) {
+                int queue = server.getActiveConnections();
+                tickMax = Math.max(tickMax, queue);
+                if (queue > 0 && random.nextDouble() < COMPLETION_CHANCE) {
+                    loadBalancer.release(server);
+                }
+            }
+            maxQueue = Math.max(maxQueue, tickMax);
+            sumOfMaxQueues += tickMax;
+        }
+        String name = selection == LeastConnectionsLoadBalancer.Selection.RANDOM_CHOICES
+                ? "choices of " + choices : selection.name();
+        System.out.printf("%-8d %-16s %12.1f %10d %14.2f%n", serverCount, name, (double) selectNanos / selections,
+                maxQueue, (double) sumOfMaxQueues / ticks);
+    }
+}
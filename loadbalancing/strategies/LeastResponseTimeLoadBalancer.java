@@ -1,37 +1,343 @@
 package strategies;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
-public class LeastResponseTimeLoadBalancer {
-    private final Map<String, Server> serverMap = new HashMap<>();
+public class LeastResponseTimeLoadBalancer implements LoadBalancer {
 
     /**
-     * Represents a server with response time tracking.
+     * What getServer compares servers by.
      */
-    static class Server {
-        private final String address; // Server address
-        private int totalResponseTime; // Total response time of completed requests
-        private int requestCount; // Number of completed requests
+    public enum Metric {
+        /**
+         * Average response time with samples weighted down exponentially by age, decaying
+         * while the server is idle.
+         */
+        MEAN,
+        /**
+         * Exponentially weighted moving average that forgets old samples over time and
+         * decays while the server is idle.
+         */
+        EWMA,
+        /**
+         * EWMA that jumps to any slower sample, decays while the server is idle and is
+         * multiplied by the number of outstanding requests plus one.
+         */
+        PEAK_EWMA,
+        /**
+         * 99th percentile of the response times of the last one to two windows. Needs
+         * per-server histograms.
+         */
+        P99
+    }
+
+    /** Default time constant of the moving averages. */
+    public static final long DEFAULT_DECAY_MILLIS = 10_000;
+
+    private final Map<String, ResponseTimes> serverMap = new ConcurrentHashMap<>();
+    // Copy of the servers for selection without iterators; replaced on every change
+    private volatile ResponseTimes[] servers = new ResponseTimes[0];
+    private final Metric metric;
+    private final long decayNanos;
+    // Source of the current time in nanoseconds; simulations substitute their own clock
+    private final LongSupplier clock;
+    // Time the ranks of all servers are relative to
+    private final long origin;
+
+    /**
+     * Response time tracking for one backend. All statistics are updated with atomics, so
+     * concurrent recordResponseTime calls never block each other. Outstanding requests are
+     * the backend's active connections.
+     */
+    static final class ResponseTimes {
+        // Natural logarithm of the outstanding requests plus one for up to 255 outstanding
+        // requests, for PEAK_EWMA
+        private static final double[] LOG_LOAD = new double[256];
+
+        static {
+            for (int i = 0; i < LOG_LOAD.length; i++) {
+                LOG_LOAD[i] = Math.log(i + 1);
+            }
+        }
+
+        private final Backend backend;
+        private final LongAdder totalResponseNanos = new LongAdder(); // Total response time of completed requests
+        private final LongAdder requestCount = new LongAdder(); // Number of completed requests
+        private final long decayNanos;
+        private final LongSupplier clock;
+        // Moving average in nanoseconds as double bits, negative until the first sample
+        private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(-1));
+        private volatile long lastSampleNanos;
+        private final LatencyHistogram histogram; // Null unless percentiles are tracked
+        private final AtomicReference<DecayedMean> decayedMean; // Null unless the mean is compared
+        private final long origin;
+        // Logarithm of the average's cost at origin, refreshed on every sample, or negative
+        // infinity without samples. A decaying average costs
+        //   average * exp(-(now - lastSample) / decay)
+        //     = exp(log(average) + (lastSample - origin) / decay) * exp(-(now - origin) / decay)
+        // and the last factor is the same for every server, so servers rank the same by
+        // this value at any time and select needs neither the clock nor exp.
+        private volatile double rank = Double.NEGATIVE_INFINITY;
+
+        ResponseTimes(Backend backend, long decayNanos, Metric metric, LongSupplier clock, long origin) {
+            this.backend = backend;
+            this.decayNanos = decayNanos;
+            this.clock = clock;
+            this.origin = origin;
+            this.histogram = metric == Metric.P99 ? new LatencyHistogram(decayNanos, clock.getAsLong()) : null;
+            this.decayedMean = metric == Metric.MEAN ? new AtomicReference<>(new DecayedMean(0, 0, 0)) : null;
+        }
+
+        Backend getBackend() {
+            return backend;
+        }
+
+        /**
+         * Records a completed request.
+         *
+         * @param nanos Response time in nanoseconds
+         * @param peak  Whether a slower sample replaces the average outright
+         */
+        void recordResponseNanos(long nanos, boolean peak) {
+            totalResponseNanos.add(nanos);
+            requestCount.increment();
+            long now = clock.getAsLong();
+            while (true) {
+                long bits = ewmaBits.get();
+                double ewma = Double.longBitsToDouble(bits);
+                double next;
+                if (ewma < 0 || (peak && nanos > ewma)) {
+                    next = nanos;
+                } else {
+                    double weight = Math.exp(-Math.max(0, now - lastSampleNanos) / (double) decayNanos);
+                    next = ewma * weight + nanos * (1 - weight);
+                }
+                if (ewmaBits.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                    lastSampleNanos = now;
+                    break;
+                }
+            }
+            if (histogram != null) {
+                histogram.record(nanos, now);
+            }
+            if (decayedMean != null) {
+                decayedMean.updateAndGet(mean -> mean.add(nanos, now, decayNanos));
+            }
+            // Concurrent samples may publish their ranks out of order, which the next sample
+            // corrects
+            double average = decayedMean != null ? decayedMean.get().value() : Double.longBitsToDouble(ewmaBits.get());
+            rank = average <= 0 ? Double.NEGATIVE_INFINITY
+                    : Math.log(average) + (lastSampleNanos - origin) / (double) decayNanos;
+        }
+
+        public double getAverageResponseTime() {
+            long count = requestCount.sum();
+            return count == 0 ? 0 : totalResponseNanos.sum() / 1e6 / count;
+        }
+
+        /**
+         * @return The moving average response time in milliseconds, 0 before the first sample
+         */
+        public double getEwmaResponseTime() {
+            return Math.max(0, Double.longBitsToDouble(ewmaBits.get())) / 1e6;
+        }
+
+        /**
+         * @return The recent 99th percentile response time in milliseconds, 0 without a histogram
+         */
+        public double getP99ResponseTime() {
+            return histogram == null ? 0 : histogram.p99Nanos(clock.getAsLong()) / 1e6;
+        }
+
+        public int getOutstandingRequests() {
+            return backend.getActiveConnections();
+        }
+
+        // What getServer compares, lower is better: the logarithm of the cost of MEAN, EWMA
+        // and PEAK_EWMA as of origin, or the percentile for P99. Servers without samples
+        // come first. Averages decay towards zero while a server gets no samples, which
+        // raises its rank relative to servers still sampled, and the percentile drops
+        // expired windows, so a server that stopped being picked because it was slow gets
+        // traffic again once its old samples have aged out. now is only read for P99.
+        double rank(Metric metric, long now) {
+            switch (metric) {
+                case P99:
+                    return histogram.p99Nanos(now);
+                case PEAK_EWMA:
+                    int outstanding = Math.max(0, backend.getActiveConnections());
+                    return rank + (outstanding < LOG_LOAD.length ? LOG_LOAD[outstanding] : Math.log(outstanding + 1));
+                default:
+                    return rank;
+            }
+        }
+    }
 
-        public Server(String address) {
-            this.address = address;
-            this.totalResponseTime = 0;
-            this.requestCount = 0;
+    /**
+     * Sum and count of samples, both multiplied by exp(-age / decay), as of a given time.
+     */
+    private record DecayedMean(double sum, double count, long asOfNanos) {
+        DecayedMean add(long nanos, long now, long decayNanos) {
+            double weight = Math.exp(-Math.max(0, now - asOfNanos) / (double) decayNanos);
+            return new DecayedMean(sum * weight + nanos, count * weight + 1, Math.max(now, asOfNanos));
         }
 
-        public String getAddress() {
-            return address;
+        double value() {
+            return count == 0 ? 0 : sum / count;
         }
+    }
+
+    /**
+     * Log-linear histogram of response times in the spirit of HdrHistogram: 32 buckets
+     * per power of two, so percentiles are accurate to about 3%. Samples go into the
+     * current of two windows, and the older window is cleared when a new one starts, so
+     * percentiles cover the last one to two windows.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+        // Recompute the cached percentile after this many samples
+        private static final int REFRESH_INTERVAL = 64;
 
-        public synchronized void recordResponseTime(int responseTime) {
-            this.totalResponseTime += responseTime;
-            this.requestCount++;
+        private final AtomicLongArray[] windows = { new AtomicLongArray(BUCKETS), new AtomicLongArray(BUCKETS) };
+        private final long windowNanos;
+        private final long origin;
+        private final AtomicLong epoch = new AtomicLong();
+        private final AtomicInteger sinceRefresh = new AtomicInteger();
+        private volatile long p99Nanos;
+        // Window the cached percentile was computed in
+        private volatile long p99Epoch;
+
+        LatencyHistogram(long windowNanos, long origin) {
+            this.windowNanos = windowNanos;
+            this.origin = origin;
+        }
+
+        void record(long nanos, long now) {
+            long current = (now - origin) / windowNanos;
+            long previous = epoch.get();
+            if (current > previous && epoch.compareAndSet(previous, current)) {
+                // The window being reused holds samples from two windows ago, or both are stale
+                clear(windows[(int) (current & 1)]);
+                if (current - previous > 1) {
+                    clear(windows[(int) (previous & 1)]);
+                }
+            }
+            windows[(int) (current & 1)].incrementAndGet(bucket(nanos));
+            if (sinceRefresh.incrementAndGet() >= REFRESH_INTERVAL || p99Nanos == 0 || p99Epoch != current) {
+                sinceRefresh.set(0);
+                p99Nanos = percentile(0.99, now);
+                p99Epoch = current;
+            }
         }
 
-        public synchronized double getAverageResponseTime() {
-            return requestCount == 0 ? 0 : (double) totalResponseTime / requestCount;
+        /**
+         * @return The 99th percentile at now, cached between samples and recomputed when a
+         *         window expired since
+         */
+        long p99Nanos(long now) {
+            long current = (now - origin) / windowNanos;
+            if (p99Epoch != current) {
+                p99Nanos = percentile(0.99, now);
+                p99Epoch = current;
+            }
+            return p99Nanos;
+        }
+
+        /**
+         * @return The given percentile of the windows that have not expired at now, or 0
+         *         if they hold no samples
+         */
+        long percentile(double quantile, long now) {
+            long current = (now - origin) / windowNanos;
+            long latest = epoch.get();
+            // Windows hold epochs latest and latest - 1; only this one and the one before count
+            AtomicLongArray newer = current - latest <= 1 ? windows[(int) (latest & 1)] : null;
+            AtomicLongArray older = current == latest ? windows[(int) ((latest + 1) & 1)] : null;
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += count(newer, i) + count(older, i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = count(newer, i) + count(older, i);
+                seen += count;
+                if (count > 0 && seen >= rank) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static long count(AtomicLongArray window, int bucket) {
+            return window == null ? 0 : window.get(bucket);
+        }
+
+        private static void clear(AtomicLongArray window) {
+            for (int i = 0; i < BUCKETS; i++) {
+                window.set(i, 0);
+            }
+        }
+
+        private static int bucket(long nanos) {
+            long value = Math.max(1, nanos);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent < SUB_BUCKET_BITS) {
+                return (int) value;
+            }
+            int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + mantissa;
+        }
+
+        private static long bucketUpperBound(int bucket) {
+            if (bucket < (1 << SUB_BUCKET_BITS)) {
+                return bucket;
+            }
+            int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+            long mantissa = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+            return (((1L << SUB_BUCKET_BITS | mantissa) + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+
+    /**
+     * Compares servers by PEAK_EWMA, which also accounts for requests still outstanding.
+     */
+    public LeastResponseTimeLoadBalancer() {
+        this(Metric.PEAK_EWMA, DEFAULT_DECAY_MILLIS);
+    }
+
+    /**
+     * @param metric      What servers are compared by
+     * @param decayMillis Time constant of the moving averages, and the window of the
+     *                    percentile histograms
+     */
+    public LeastResponseTimeLoadBalancer(Metric metric, long decayMillis) {
+        this(metric, decayMillis, System::nanoTime);
+    }
+
+    /**
+     * @param clock Current time in nanoseconds, for simulations that run on simulated time
+     */
+    LeastResponseTimeLoadBalancer(Metric metric, long decayMillis, LongSupplier clock) {
+        if (decayMillis <= 0) {
+            throw new IllegalArgumentException("Decay time must be positive.");
         }
+        this.metric = metric;
+        this.decayNanos = TimeUnit.MILLISECONDS.toNanos(decayMillis);
+        this.clock = clock;
+        this.origin = clock.getAsLong();
     }
 
     /**
@@ -39,8 +345,14 @@ public class LeastResponseTimeLoadBalancer {
      *
      * @param serverAddress Address of the server
      */
-    public void addServer(String serverAddress) {
-        serverMap.putIfAbsent(serverAddress, new Server(serverAddress));
+    public synchronized void addServer(String serverAddress) {
+        ResponseTimes server = newResponseTimes(new Backend(serverAddress));
+        if (serverMap.putIfAbsent(serverAddress, server) == null) {
+            ResponseTimes[] current = servers;
+            ResponseTimes[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = server;
+            servers = updated;
+        }
     }
 
     /**
@@ -48,21 +360,79 @@ public class LeastResponseTimeLoadBalancer {
      *
      * @param serverAddress Address of the server to remove
      */
-    public void removeServer(String serverAddress) {
-        serverMap.remove(serverAddress);
+    public synchronized void removeServer(String serverAddress) {
+        ResponseTimes removed = serverMap.remove(serverAddress);
+        if (removed != null) {
+            ResponseTimes[] current = servers;
+            ResponseTimes[] updated = new ResponseTimes[current.length - 1];
+            for (int i = 0, j = 0; i < current.length; i++) {
+                if (current[i] != removed) {
+                    updated[j++] = current[i];
+                }
+            }
+            servers = updated;
+        }
     }
 
     /**
-     * Gets the server with the least average response time.
+     * Replaces the servers, keeping the statistics of backends that stay.
+     *
+     * @param backends The backends to choose from
+     */
+    @Override
+    public synchronized void update(List<Backend> backends) {
+        ResponseTimes[] updated = new ResponseTimes[backends.size()];
+        for (int i = 0; i < updated.length; i++) {
+            Backend backend = backends.get(i);
+            ResponseTimes existing = serverMap.get(backend.getAddress());
+            updated[i] = existing != null && existing.getBackend() == backend ? existing : newResponseTimes(backend);
+        }
+        Map<String, ResponseTimes> byAddress = new HashMap<>();
+        for (ResponseTimes server : updated) {
+            byAddress.put(server.getBackend().getAddress(), server);
+        }
+        serverMap.putAll(byAddress);
+        serverMap.keySet().retainAll(byAddress.keySet());
+        servers = updated;
+    }
+
+    /**
+     * Gets the server with the lowest cost under the configured metric. Does not allocate,
+     * and compares ranks cached on every sample, so a pick costs one read per server.
      *
      * @return The selected server's address
      */
     public String getServer() {
-        Optional<Server> selectedServer = serverMap.values().stream()
-                .min((s1, s2) -> Double.compare(s1.getAverageResponseTime(), s2.getAverageResponseTime()));
+        return select(null).getAddress();
+    }
+
+    @Override
+    public Backend select(String clientKey) {
+        ResponseTimes[] current = servers;
+        if (current.length == 0) {
+            throw new IllegalStateException("No servers available.");
+        }
+        long now = metric == Metric.P99 ? clock.getAsLong() : 0;
+        ResponseTimes best = current[0];
+        double lowest = best.rank(metric, now);
+        for (int i = 1; i < current.length; i++) {
+            double rank = current[i].rank(metric, now);
+            if (rank < lowest) {
+                best = current[i];
+                lowest = rank;
+            }
+        }
+        return best.getBackend();
+    }
 
-        return selectedServer.map(Server::getAddress)
-                .orElseThrow(() -> new IllegalStateException("No servers available."));
+    /**
+     * Counts a request as outstanding on a server until its response time is recorded.
+     * Only PEAK_EWMA takes outstanding requests into account.
+     *
+     * @param serverAddress Address of the server
+     */
+    public void recordRequestStart(String serverAddress) {
+        server(serverAddress).getBackend().incrementConnections();
     }
 
     /**
@@ -72,11 +442,45 @@ public class LeastResponseTimeLoadBalancer {
      * @param responseTime  Response time in milliseconds
      */
     public void recordResponseTime(String serverAddress, int responseTime) {
-        Server server = serverMap.get(serverAddress);
+        recordResponseTime(serverAddress, responseTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a response time for a specific server.
+     *
+     * @param serverAddress Address of the server
+     * @param responseTime  Response time
+     * @param unit          Unit of the response time
+     */
+    public void recordResponseTime(String serverAddress, long responseTime, TimeUnit unit) {
+        ResponseTimes server = server(serverAddress);
+        server.recordResponseNanos(unit.toNanos(responseTime), metric == Metric.PEAK_EWMA);
+        // Completions without a matching start must not drive the count negative
+        server.getBackend().decrementConnectionsIfPositive();
+    }
+
+    @Override
+    public void observe(Backend backend, long responseNanos, boolean success) {
+        ResponseTimes server = serverMap.get(backend.getAddress());
+        if (server != null && server.getBackend() == backend) {
+            server.recordResponseNanos(responseNanos, metric == Metric.PEAK_EWMA);
+        }
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    private ResponseTimes newResponseTimes(Backend backend) {
+        return new ResponseTimes(backend, decayNanos, metric, clock, origin);
+    }
+
+    private ResponseTimes server(String serverAddress) {
+        ResponseTimes server = serverMap.get(serverAddress);
         if (server == null) {
             throw new IllegalArgumentException("Server not found: " + serverAddress);
         }
-        server.recordResponseTime(responseTime);
+        return server;
     }
 
     public static void main(String[] args) {
@@ -105,5 +509,52 @@ public class LeastResponseTimeLoadBalancer {
         loadBalancer.removeServer("192.168.1.2");
 
         System.out.println("Selected server after removal: " + loadBalancer.getServer());
+
+        // Route on the tail instead of the average: 192.168.1.1 is fast on average
+        // but every 20th request takes a second
+        LeastResponseTimeLoadBalancer tailAware = new LeastResponseTimeLoadBalancer(Metric.P99, 10_000);
+        tailAware.addServer("192.168.1.1");
+        tailAware.addServer("192.168.1.3");
+        for (int i = 0; i < 200; i++) {
+            tailAware.recordResponseTime("192.168.1.1", i % 20 == 0 ? 1000 : 20);
+            tailAware.recordResponseTime("192.168.1.3", 60);
+        }
+        System.out.println("Selected server by p99: " + tailAware.getServer());
+
+        // A server that was slow and then recovered must win traffic back under every metric
+        for (Metric recovering : Metric.values()) {
+            int picks = picksAfterRecovery(recovering);
+            System.out.printf("Picks of the recovered server by %s: %d of 10000%n", recovering, picks);
+            if (picks < 5000) {
+                throw new IllegalStateException(recovering + " did not adapt after a server recovered");
+            }
+        }
+    }
+
+    // Two servers at 500 ms and 20 ms; an hour later the first answers in 1 ms and the
+    // second in 50 ms. Returns how many of the next 10000 requests went to the first.
+    private static int picksAfterRecovery(Metric metric) {
+        long[] now = {0};
+        LeastResponseTimeLoadBalancer loadBalancer = new LeastResponseTimeLoadBalancer(metric,
+                DEFAULT_DECAY_MILLIS, () -> now[0]);
+        loadBalancer.addServer("recovered");
+        loadBalancer.addServer("steady");
+        for (int i = 0; i < 1000; i++) {
+            loadBalancer.recordResponseTime("recovered", 500);
+            loadBalancer.recordResponseTime("steady", 20);
+            now[0] += TimeUnit.MILLISECONDS.toNanos(10);
+        }
+        now[0] += TimeUnit.HOURS.toNanos(1);
+        int picks = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String server = loadBalancer.getServer();
+            loadBalancer.recordRequestStart(server);
+            loadBalancer.recordResponseTime(server, server.equals("recovered") ? 1 : 50);
+            if (server.equals("recovered")) {
+                picks++;
+            }
+            now[0] += TimeUnit.MILLISECONDS.toNanos(1);
+        }
+        return picks;
     }
 }
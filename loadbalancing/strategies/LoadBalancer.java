@@ -0,0 +1,56 @@
+package strategies;
+import java.util.List;
+
+/**
+ * Common interface of all load balancing strategies. A strategy gets the backends it may
+ * choose from as an immutable snapshot through update, and select only ever looks at the
+ * latest snapshot, so health is never checked while selecting. BackendPool publishes the
+ * healthy backends to its current strategy and can swap strategies at runtime.
+ */
+public interface LoadBalancer {
+
+    /**
+     * Replaces the backends to choose from. Called rarely, never concurrently with itself.
+     *
+     * @param backends Immutable list of backends, never empty
+     */
+    void update(List<Backend> backends);
+
+    /**
+     * Chooses a backend for a request.
+     *
+     * @param clientKey The client's address or region for strategies that route by client,
+     *                  ignored by the others
+     * @return The chosen backend
+     */
+    Backend select(String clientKey);
+
+    /**
+     * Chooses a backend and counts the request as active on it.
+     */
+    default Backend acquire(String clientKey) {
+        Backend backend = select(clientKey);
+        backend.incrementConnections();
+        return backend;
+    }
+
+    /**
+     * Reports that a request acquired from this strategy finished.
+     *
+     * @param backend       The backend that served the request
+     * @param responseNanos Response time in nanoseconds
+     * @param success       Whether the request succeeded
+     */
+    default void release(Backend backend, long responseNanos, boolean success) {
+        observe(backend, responseNanos, success);
+        backend.decrementConnectionsIfPositive();
+    }
+
+    /**
+     * Learns from a finished request without counting it as released, for strategies that
+     * track response times. Composite strategies release a request once and let every
+     * strategy they hold observe it.
+     */
+    default void observe(Backend backend, long responseNanos, boolean success) {
+    }
+}
@@ -0,0 +1,172 @@
+package strategies;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Runs strategies through LoadSimulator on one workload and compares their latency
+ * distributions and how evenly they use the backends.
+ *
+ * Eight backends serve up to eight requests at once each, with service times drawn from
+ * one distribution scaled by the backend's speed: two take half the time, four the time
+ * itself and two twice as long. Weights are in proportion to capacity. Halfway through the
+ * run one of the fast backends becomes five times slower. Arrivals are Poisson, or bursty
+ * switching between half and one and a half times the rate every 100 ms on average, at the
+ * given share of the total capacity from 1000 clients. Every strategy sees the same
+ * requests, and the same seed gives the same results.
+ *
+ * A trace file replaces the synthetic arrivals; "record:file" writes the synthetic ones to
+ * a trace before replaying it. With one strategy the full result is printed, histogram and
+ * backends included.
+ *
+ * Usage: java strategies.LoadSimulation [requests] [load] [seed] [strategies] [serviceTime]
+ *                                       [poisson|bursty] [trace|record:trace]
+ *
+ * Strategies: RoundRobin, Weighted, LeastConnections, LeastConnectionsExact, PeakEwma,
+ * LeastResponseTime, IPHash. Service times as in LoadSimulator.ServiceTime.parse, e.g.
+ * "exp:5" or "lognormal:5:1".
+ */
+public class LoadSimulation {
+
+    private static final int CONCURRENCY = 8;
+    private static final double[] SPEED = {0.5, 0.5, 1, 1, 1, 1, 2, 2};
+    private static final int[] WEIGHTS = {4, 4, 2, 2, 2, 2, 1, 1};
+    private static final double SLOWDOWN = 5;
+    private static final int CLIENTS = 1000;
+    private static final long BURST_PHASE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final Map<String, Function<LoadSimulator, LoadBalancer>> STRATEGIES = new LinkedHashMap<>();
+
+    static {
+        STRATEGIES.put("RoundRobin", simulator -> new RoundRobinLoadBalancer(List.of()));
+        STRATEGIES.put("Weighted", simulator -> new WeightedLoadBalancer());
+        STRATEGIES.put("LeastConnections", simulator -> new LeastConnectionsLoadBalancer(List.of(),
+                LeastConnectionsLoadBalancer.Selection.RANDOM_CHOICES, 2, new SplittableRandom(1)));
+        STRATEGIES.put("LeastConnectionsExact", simulator -> new LeastConnectionsLoadBalancer(List.of(),
+                LeastConnectionsLoadBalancer.Selection.EXACT));
+        STRATEGIES.put("PeakEwma", simulator -> new LeastResponseTimeLoadBalancer(
+                LeastResponseTimeLoadBalancer.Metric.PEAK_EWMA, 1000, simulator.clock()));
+        STRATEGIES.put("LeastResponseTime", simulator -> new LeastResponseTimeLoadBalancer(
+                LeastResponseTimeLoadBalancer.Metric.EWMA, 1000, simulator.clock()));
+        STRATEGIES.put("IPHash", simulator -> new IPHashLoadBalancer());
+    }
+
+    public static void main(String[] args) throws IOException {
+        long requests = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        double load = args.length > 1 ? Double.parseDouble(args[1]) : 0.7;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        String[] names = (args.length > 3 ? args[3] : String.join(",", STRATEGIES.keySet())).split(",");
+        String serviceSpec = args.length > 4 ? args[4] : "lognormal:4:0.5";
+        String arrivals = args.length > 5 ? args[5] : "poisson";
+        String trace = args.length > 6 ? args[6] : null;
+
+        LoadSimulator.ServiceTime service = LoadSimulator.ServiceTime.parse(serviceSpec);
+        List<LoadSimulator.BackendModel> models = new ArrayList<>();
+        double capacityPerSecond = 0;
+        double meanNanos = mean(service, seed);
+        for (int i = 0; i < SPEED.length; i++) {
+            models.add(new LoadSimulator.BackendModel("backend" + i, WEIGHTS[i], null, CONCURRENCY,
+                    scaled(service, SPEED[i])));
+            capacityPerSecond += CONCURRENCY * 1e9 / (meanNanos * SPEED[i]);
+        }
+        double perSecond = load * capacityPerSecond;
+        String[] clients = new String[CLIENTS];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = "10.0." + (i >> 8) + "." + (i & 255);
+        }
+
+        LoadSimulator.Trace replayed = null;
+        if (trace != null && trace.startsWith("record:")) {
+            replayed = LoadSimulator.Trace.record(workload(arrivals, perSecond, requests, clients), requests, seed);
+            replayed.write(Path.of(trace.substring("record:".length())));
+        } else if (trace != null) {
+            replayed = LoadSimulator.Trace.read(Path.of(trace));
+        }
+        long total = replayed != null ? replayed.size() : requests;
+        // Estimate the length of the run to put the slowdown halfway
+        long slowdownNanos = replayed != null ? replayed.lastArrivalNanos() / 2
+                : (long) (total / perSecond * 1e9 / 2);
+        List<LoadSimulator.Change> changes = List.of(new LoadSimulator.Change(slowdownNanos, 0,
+                models.get(0).withServiceTime(scaled(service, SPEED[0] * SLOWDOWN))));
+
+        String source = trace != null && !trace.startsWith("record:") ? "from " + trace
+                : String.format("%s arrivals at %.0f%% of capacity (%,.0f requests/s)", arrivals, load * 100, perSecond);
+        System.out.printf("%,d requests %s, service time %s, seed %d%n", total, source, serviceSpec, seed);
+        System.out.printf("backend0 becomes %.0fx slower at %.1f s%n", SLOWDOWN, slowdownNanos / 1e9);
+        boolean detailed = names.length == 1;
+        if (!detailed) {
+            System.out.printf("%-22s %10s %10s %10s %10s %10s %9s %9s %10s %8s%n", "strategy", "mean", "p50", "p99",
+                    "p99.9", "max", "min util", "max util", "max queue", "run s");
+        }
+        for (String name : names) {
+            Function<LoadSimulator, LoadBalancer> factory = STRATEGIES.get(name.trim());
+            if (factory == null) {
+                throw new IllegalArgumentException("Unknown strategy: " + name + ", expected one of "
+                        + STRATEGIES.keySet());
+            }
+            LoadSimulator simulator = new LoadSimulator(models, seed);
+            LoadSimulator.Workload workload = replayed != null ? LoadSimulator.Workload.replay(replayed)
+                    : workload(arrivals, perSecond, requests, clients);
+            LoadSimulator.Result result = simulator.run(factory.apply(simulator), workload, changes);
+            if (detailed) {
+                System.out.println(name.trim() + ":");
+                result.print(System.out);
+            } else {
+                report(name.trim(), result);
+            }
+        }
+    }
+
+    private static void report(String name, LoadSimulator.Result result) {
+        double minUtilization = Double.MAX_VALUE;
+        double maxUtilization = 0;
+        int maxQueue = 0;
+        for (LoadSimulator.BackendResult backend : result.backends) {
+            minUtilization = Math.min(minUtilization, backend.utilization);
+            maxUtilization = Math.max(maxUtilization, backend.utilization);
+            maxQueue = Math.max(maxQueue, backend.maxQueue);
+        }
+        LoadSimulator.Histogram latency = result.latency;
+        System.out.printf("%-22s %10s %10s %10s %10s %10s %8.1f%% %8.1f%% %10d %8.2f%n", name,
+                LoadSimulator.formatNanos((long) latency.meanNanos()),
+                LoadSimulator.formatNanos(latency.percentileNanos(0.5)),
+                LoadSimulator.formatNanos(latency.percentileNanos(0.99)),
+                LoadSimulator.formatNanos(latency.percentileNanos(0.999)),
+                LoadSimulator.formatNanos(latency.maxNanos()), minUtilization * 100, maxUtilization * 100, maxQueue,
+                result.elapsedNanos / 1e9);
+    }
+
+    private static LoadSimulator.Workload workload(String arrivals, double perSecond, long requests,
+            String[] clients) {
+        switch (arrivals) {
+            case "poisson":
+                return LoadSimulator.Workload.poisson(perSecond, requests, clients);
+            case "bursty":
+                return LoadSimulator.Workload.bursty(perSecond * 0.5, perSecond * 1.5, BURST_PHASE_NANOS, requests,
+                        clients);
+            default:
+                throw new IllegalArgumentException("Unknown arrivals: " + arrivals + ", expected poisson or bursty");
+        }
+    }
+
+    private static LoadSimulator.ServiceTime scaled(LoadSimulator.ServiceTime service, double factor) {
+        return random -> Math.max(1, (long) (service.sample(random) * factor));
+    }
+
+    // Mean of a distribution from samples, for distributions only known by their parameters
+    private static double mean(LoadSimulator.ServiceTime service, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        double sum = 0;
+        int samples = 1_000_000;
+        for (int i = 0; i < samples; i++) {
+            sum += service.sample(random);
+        }
+        return sum / samples;
+    }
+}
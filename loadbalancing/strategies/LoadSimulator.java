@@ -0,0 +1,834 @@
+package strategies;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Deterministic discrete-event simulation of a load balancing strategy in front of
+ * backends with queues, for measuring strategies at request rates no test cluster
+ * reaches.
+ *
+ * Requests come from a Workload: a synthetic arrival process or a recorded Trace. Each
+ * one is picked with the strategy's acquire and served by a BackendModel that runs up to
+ * `concurrency` requests at once and queues the rest in arrival order. Service times are
+ * drawn from the backend's ServiceTime distribution unless the request brings its own, as
+ * traces can. A finished request is handed to the strategy's release with its end-to-end
+ * latency, queueing included. BackendModels can be swapped at given times to slow down,
+ * break or recover backends in the middle of a run.
+ *
+ * The run is a single-threaded event loop on simulated time: completions wait in a binary
+ * heap of primitive arrays and arrivals are pulled from the workload one at a time, so
+ * nothing is allocated per request apart from what the strategy allocates. All randomness
+ * comes from one SplittableRandom seeded per run, so a run is reproducible as long as the
+ * strategy is; strategies that measure time must read clock() instead of System.nanoTime.
+ *
+ * The result holds the utilization, request counts and deepest queue of every backend,
+ * and log-linear latency histograms overall and per backend.
+ */
+public final class LoadSimulator {
+
+    /**
+     * Distribution of the time a backend takes to serve one request, in nanoseconds.
+     */
+    @FunctionalInterface
+    public interface ServiceTime {
+        long sample(SplittableRandom random);
+
+        static ServiceTime constant(long nanos) {
+            return random -> nanos;
+        }
+
+        static ServiceTime exponential(double meanNanos) {
+            return random -> Math.max(1, (long) (-Math.log(1 - random.nextDouble()) * meanNanos));
+        }
+
+        /**
+         * @param medianNanos Median service time
+         * @param sigma       Standard deviation of the logarithm; 1 gives a p99 about ten
+         *                    times the median
+         */
+        static ServiceTime logNormal(double medianNanos, double sigma) {
+            double mu = Math.log(medianNanos);
+            return random -> Math.max(1, (long) Math.exp(mu + sigma * random.nextGaussian()));
+        }
+
+        /**
+         * Pareto distribution, whose tail gets heavier as shape approaches 1.
+         */
+        static ServiceTime pareto(double minNanos, double shape) {
+            return random -> Math.max(1, (long) (minNanos / Math.pow(1 - random.nextDouble(), 1 / shape)));
+        }
+
+        /**
+         * Draws from slow with probability slowShare and from fast otherwise, e.g. for a
+         * backend that mostly serves from cache.
+         */
+        static ServiceTime bimodal(double slowShare, ServiceTime fast, ServiceTime slow) {
+            return random -> random.nextDouble() < slowShare ? slow.sample(random) : fast.sample(random);
+        }
+
+        /**
+         * Parses "const:5", "exp:5", "lognormal:5:0.5", "pareto:1:1.5" or
+         * "bimodal:0.01:exp:2:exp:200", with times in milliseconds.
+         */
+        static ServiceTime parse(String spec) {
+            String[] parts = spec.split(":");
+            try {
+                switch (parts[0]) {
+                    case "const":
+                        return constant(millisToNanos(parts[1]));
+                    case "exp":
+                        return exponential(millisToNanos(parts[1]));
+                    case "lognormal":
+                        return logNormal(millisToNanos(parts[1]), Double.parseDouble(parts[2]));
+                    case "pareto":
+                        return pareto(millisToNanos(parts[1]), Double.parseDouble(parts[2]));
+                    case "bimodal":
+                        return bimodal(Double.parseDouble(parts[1]), parse(parts[2] + ":" + parts[3]),
+                                parse(parts[4] + ":" + parts[5]));
+                    default:
+                        throw new IllegalArgumentException("Unknown service time distribution: " + spec);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed service time distribution: " + spec, e);
+            }
+        }
+
+        private static long millisToNanos(String millis) {
+            return (long) (Double.parseDouble(millis) * 1e6);
+        }
+    }
+
+    /**
+     * One request of a workload. Workloads fill in the same instance for every request.
+     */
+    public static final class Request {
+        /** Simulated time the request arrives at, in nanoseconds. */
+        public long arrivalNanos;
+        /** Key passed to the strategy's acquire, e.g. a client address; may be null. */
+        public String clientKey;
+        /** Service time to use instead of sampling the backend's, or -1. */
+        public long serviceNanos = -1;
+    }
+
+    /**
+     * Source of the requests of a run, in order of arrival.
+     */
+    @FunctionalInterface
+    public interface Workload {
+        /**
+         * Fills in the next request. Arrival times must not decrease.
+         *
+         * @return false when there are no more requests
+         */
+        boolean next(SplittableRandom random, Request request);
+
+        /**
+         * Poisson arrivals at a constant rate from clients drawn uniformly from clients.
+         */
+        static Workload poisson(double perSecond, long requests, String[] clients) {
+            double meanGapNanos = 1e9 / perSecond;
+            long[] state = {0, 0}; // Requests made, current time
+            return (random, request) -> {
+                if (state[0]++ >= requests) {
+                    return false;
+                }
+                state[1] += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+                fill(request, state[1], random, clients);
+                return true;
+            };
+        }
+
+        /**
+         * Poisson arrivals whose rate switches between low and high, each kept for an
+         * exponentially distributed time with the given mean: a two-state Markov-modulated
+         * Poisson process, the usual model of bursty traffic.
+         */
+        static Workload bursty(double lowPerSecond, double highPerSecond, long meanPhaseNanos, long requests,
+                String[] clients) {
+            long[] state = {0, 0, 0, 0}; // Requests made, current time, end of phase, 1 in the high phase
+            return (random, request) -> {
+                if (state[0]++ >= requests) {
+                    return false;
+                }
+                while (true) {
+                    double rate = state[3] == 1 ? highPerSecond : lowPerSecond;
+                    long gap = (long) (-Math.log(1 - random.nextDouble()) * 1e9 / rate);
+                    if (state[1] + gap <= state[2]) {
+                        state[1] += gap;
+                        break;
+                    }
+                    // Memoryless: start over from the phase change at the new rate
+                    state[1] = state[2];
+                    state[2] += (long) (-Math.log(1 - random.nextDouble()) * meanPhaseNanos);
+                    state[3] ^= 1;
+                }
+                fill(request, state[1], random, clients);
+                return true;
+            };
+        }
+
+        /**
+         * Replays a trace from its first request.
+         */
+        static Workload replay(Trace trace) {
+            int[] next = {0};
+            return (random, request) -> {
+                int i = next[0]++;
+                if (i >= trace.size) {
+                    return false;
+                }
+                request.arrivalNanos = trace.arrivals[i];
+                request.clientKey = trace.clients[i] < 0 ? null : trace.keys[trace.clients[i]];
+                request.serviceNanos = trace.services[i];
+                return true;
+            };
+        }
+
+        private static void fill(Request request, long arrivalNanos, SplittableRandom random, String[] clients) {
+            request.arrivalNanos = arrivalNanos;
+            request.clientKey = clients == null || clients.length == 0 ? null
+                    : clients[random.nextInt(clients.length)];
+            request.serviceNanos = -1;
+        }
+    }
+
+    /**
+     * Recorded requests in columns of primitives: arrival times, client keys as indexes into
+     * a table of distinct keys, and service times or -1.
+     *
+     * The text format has one request per line, "arrivalMicros [clientKey [serviceMicros]]",
+     * with arrival times relative to the start of the trace. Blank lines and lines starting
+     * with # are skipped.
+     */
+    public static final class Trace {
+        private long[] arrivals;
+        private int[] clients;
+        private long[] services;
+        private String[] keys;
+        private int size;
+
+        private Trace(int capacity) {
+            arrivals = new long[capacity];
+            clients = new int[capacity];
+            services = new long[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return Arrival time of the last request, or 0 for an empty trace
+         */
+        public long lastArrivalNanos() {
+            return size == 0 ? 0 : arrivals[size - 1];
+        }
+
+        /**
+         * Records the first `requests` requests of a workload.
+         */
+        public static Trace record(Workload workload, long requests, long seed) {
+            if (requests > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Too many requests for one trace: " + requests);
+            }
+            Trace trace = new Trace((int) Math.min(requests, 1 << 20));
+            Map<String, Integer> keyIndex = new HashMap<>();
+            SplittableRandom random = new SplittableRandom(seed);
+            Request request = new Request();
+            while (trace.size < requests && workload.next(random, request)) {
+                trace.add(request.arrivalNanos, keyIndex(keyIndex, request.clientKey), request.serviceNanos);
+            }
+            trace.keys = keys(keyIndex);
+            return trace;
+        }
+
+        public static Trace read(Path file) throws IOException {
+            Trace trace = new Trace(1 << 20);
+            Map<String, Integer> keyIndex = new HashMap<>();
+            try (BufferedReader reader = Files.newBufferedReader(file)) {
+                String line;
+                int number = 0;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    line = line.strip();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split("\\s+");
+                    try {
+                        long arrival = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(fields[0]));
+                        int client = fields.length > 1 ? keyIndex(keyIndex, fields[1]) : -1;
+                        long service = fields.length > 2 ? TimeUnit.MICROSECONDS.toNanos(Long.parseLong(fields[2]))
+                                : -1;
+                        if (trace.size > 0 && arrival < trace.arrivals[trace.size - 1]) {
+                            throw new IOException("Arrival times go back in line " + number + " of " + file);
+                        }
+                        trace.add(arrival, client, service);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed line " + number + " of " + file + ": " + line, e);
+                    }
+                }
+            }
+            trace.keys = keys(keyIndex);
+            return trace;
+        }
+
+        public void write(Path file) throws IOException {
+            try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+                writer.write("# arrivalMicros clientKey serviceMicros\n");
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < size; i++) {
+                    line.setLength(0);
+                    line.append(TimeUnit.NANOSECONDS.toMicros(arrivals[i]));
+                    if (clients[i] >= 0 || services[i] >= 0) {
+                        line.append(' ').append(clients[i] >= 0 ? keys[clients[i]] : "-");
+                    }
+                    if (services[i] >= 0) {
+                        line.append(' ').append(TimeUnit.NANOSECONDS.toMicros(services[i]));
+                    }
+                    writer.append(line).append('\n');
+                }
+            }
+        }
+
+        private void add(long arrival, int client, long service) {
+            if (size == arrivals.length) {
+                int capacity = size + (size >> 1);
+                arrivals = Arrays.copyOf(arrivals, capacity);
+                clients = Arrays.copyOf(clients, capacity);
+                services = Arrays.copyOf(services, capacity);
+            }
+            arrivals[size] = arrival;
+            clients[size] = client;
+            services[size] = service;
+            size++;
+        }
+
+        // "-" stands for no client key, so that a service time can follow
+        private static int keyIndex(Map<String, Integer> keyIndex, String key) {
+            if (key == null || key.equals("-")) {
+                return -1;
+            }
+            return keyIndex.computeIfAbsent(key, k -> keyIndex.size());
+        }
+
+        private static String[] keys(Map<String, Integer> keyIndex) {
+            String[] keys = new String[keyIndex.size()];
+            for (Map.Entry<String, Integer> entry : keyIndex.entrySet()) {
+                keys[entry.getValue()] = entry.getKey();
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * A simulated backend: how it appears to the strategy (address, weight, region) and how
+     * it serves requests. Failed requests complete after failureNanos and count in the
+     * latencies like any other.
+     */
+    public static final class BackendModel {
+        final String address;
+        final int weight;
+        final String region;
+        final int concurrency;
+        final ServiceTime serviceTime;
+        final double failureRate;
+        final long failureNanos;
+
+        public BackendModel(String address, int weight, String region, int concurrency, ServiceTime serviceTime) {
+            this(address, weight, region, concurrency, serviceTime, 0, 0);
+        }
+
+        private BackendModel(String address, int weight, String region, int concurrency, ServiceTime serviceTime,
+                double failureRate, long failureNanos) {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("Concurrency must be at least 1.");
+            }
+            if (failureRate < 0 || failureRate > 1) {
+                throw new IllegalArgumentException("Failure rate must be between 0 and 1.");
+            }
+            this.address = address;
+            this.weight = weight;
+            this.region = region;
+            this.concurrency = concurrency;
+            this.serviceTime = serviceTime;
+            this.failureRate = failureRate;
+            this.failureNanos = failureNanos;
+        }
+
+        /**
+         * @return The same backend serving from another distribution
+         */
+        public BackendModel withServiceTime(ServiceTime serviceTime) {
+            return new BackendModel(address, weight, region, concurrency, serviceTime, failureRate, failureNanos);
+        }
+
+        /**
+         * @return The same backend failing the given share of requests after failureNanos
+         */
+        public BackendModel withFailures(double failureRate, long failureNanos) {
+            return new BackendModel(address, weight, region, concurrency, serviceTime, failureRate, failureNanos);
+        }
+    }
+
+    /**
+     * Replaces the model of one backend at a point in simulated time. Requests already in
+     * service finish as they started; queued ones are served by the new model.
+     */
+    public static final class Change {
+        final long atNanos;
+        final int backend;
+        final BackendModel model;
+
+        public Change(long atNanos, int backend, BackendModel model) {
+            this.atNanos = atNanos;
+            this.backend = backend;
+            this.model = model;
+        }
+    }
+
+    /**
+     * Log-linear histogram of latencies with 16 buckets per power of two, about 6%
+     * resolution, over the whole range of a long.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[BUCKETS];
+        private long total;
+        private long sum;
+        private long max;
+
+        void record(long nanos) {
+            counts[bucket(nanos)]++;
+            total++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        public long count() {
+            return total;
+        }
+
+        public double meanNanos() {
+            return total == 0 ? 0 : (double) sum / total;
+        }
+
+        public long maxNanos() {
+            return max;
+        }
+
+        /**
+         * @return Latency below which the given share of requests finished, rounded up to
+         *         the end of its bucket
+         */
+        public long percentileNanos(double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, bucketUpperBound(i));
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Prints the share of requests per power of two of latency as a bar chart.
+         */
+        public void print(PrintStream out) {
+            int first = -1;
+            int last = -1;
+            long[] perPower = new long[64];
+            for (int i = 0; i < BUCKETS; i++) {
+                if (counts[i] > 0) {
+                    int power = 63 - Long.numberOfLeadingZeros(Math.max(1, bucketUpperBound(i)));
+                    perPower[power] += counts[i];
+                    first = first < 0 ? power : Math.min(first, power);
+                    last = Math.max(last, power);
+                }
+            }
+            long cumulative = 0;
+            for (int power = Math.max(0, first); power <= last; power++) {
+                cumulative += perPower[power];
+                double share = (double) perPower[power] / total;
+                out.printf("  < %10s %6.2f%% %7.3f%% %s%n", formatNanos(2L << power), share * 100,
+                        100.0 * cumulative / total, "#".repeat((int) Math.round(share * 50)));
+            }
+        }
+
+        private static int bucket(long nanos) {
+            long value = Math.max(1, nanos);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent < SUB_BUCKET_BITS) {
+                return (int) value;
+            }
+            int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + mantissa;
+        }
+
+        private static long bucketUpperBound(int bucket) {
+            if (bucket < (1 << SUB_BUCKET_BITS)) {
+                return bucket;
+            }
+            int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+            long mantissa = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+            return (((1L << SUB_BUCKET_BITS | mantissa) + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+
+    /**
+     * What one backend did during a run.
+     */
+    public static final class BackendResult {
+        public final String address;
+        public final long requests;
+        public final long failures;
+        public final int maxQueue;
+        /** Share of its capacity, concurrency times the duration of the run, it was busy. */
+        public final double utilization;
+        public final Histogram latency;
+
+        BackendResult(String address, long requests, long failures, int maxQueue, double utilization,
+                Histogram latency) {
+            this.address = address;
+            this.requests = requests;
+            this.failures = failures;
+            this.maxQueue = maxQueue;
+            this.utilization = utilization;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Result {
+        public final long requests;
+        public final long failures;
+        /** Simulated time from the start to the last completion. */
+        public final long durationNanos;
+        /** Wall-clock time the run took. */
+        public final long elapsedNanos;
+        public final Histogram latency;
+        public final List<BackendResult> backends;
+
+        Result(long requests, long failures, long durationNanos, long elapsedNanos, Histogram latency,
+                List<BackendResult> backends) {
+            this.requests = requests;
+            this.failures = failures;
+            this.durationNanos = durationNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.backends = backends;
+        }
+
+        /**
+         * Prints latency percentiles, the latency histogram and a table of the backends.
+         */
+        public void print(PrintStream out) {
+            out.printf("%,d requests over %.1f s simulated in %.2f s (%,.0f requests/s), %.2f%% failed%n",
+                    requests, durationNanos / 1e9, elapsedNanos / 1e9, requests * 1e9 / elapsedNanos,
+                    100.0 * failures / Math.max(1, requests));
+            out.printf("latency: mean %s, p50 %s, p90 %s, p99 %s, p99.9 %s, max %s%n",
+                    formatNanos((long) latency.meanNanos()), formatNanos(latency.percentileNanos(0.5)),
+                    formatNanos(latency.percentileNanos(0.9)), formatNanos(latency.percentileNanos(0.99)),
+                    formatNanos(latency.percentileNanos(0.999)), formatNanos(latency.maxNanos()));
+            latency.print(out);
+            out.printf("%-14s %12s %7s %8s %9s %10s %10s %10s%n", "backend", "requests", "share", "util",
+                    "max queue", "p50", "p99", "failed");
+            for (BackendResult backend : backends) {
+                out.printf("%-14s %,12d %6.2f%% %7.1f%% %9d %10s %10s %9.2f%%%n", backend.address,
+                        backend.requests, 100.0 * backend.requests / Math.max(1, requests),
+                        backend.utilization * 100, backend.maxQueue,
+                        formatNanos(backend.latency.percentileNanos(0.5)),
+                        formatNanos(backend.latency.percentileNanos(0.99)),
+                        100.0 * backend.failures / Math.max(1, backend.requests));
+            }
+        }
+    }
+
+    private final List<BackendModel> models;
+    private final long seed;
+    private long now;
+
+    /**
+     * @param backends Backends in the order Changes refer to them
+     * @param seed     Seed of the run's random numbers
+     */
+    public LoadSimulator(List<BackendModel> backends, long seed) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is required.");
+        }
+        this.models = List.copyOf(backends);
+        this.seed = seed;
+    }
+
+    /**
+     * @return Simulated time in nanoseconds, for strategies that measure response times
+     */
+    public LongSupplier clock() {
+        return () -> now;
+    }
+
+    public Result run(LoadBalancer strategy, Workload workload) {
+        return run(strategy, workload, List.of());
+    }
+
+    /**
+     * Runs a workload through a strategy until every request finished. The strategy gets
+     * fresh Backends for the run through update, so it should not be reused across runs
+     * that must not influence each other.
+     *
+     * @param changes Backend changes to apply, in any order
+     */
+    public Result run(LoadBalancer strategy, Workload workload, List<Change> changes) {
+        long started = System.nanoTime();
+        SplittableRandom random = new SplittableRandom(seed);
+        int count = models.size();
+        BackendModel[] current = models.toArray(new BackendModel[0]);
+        List<Backend> backends = new ArrayList<>();
+        IdentityHashMap<Backend, Integer> indexes = new IdentityHashMap<>();
+        for (int i = 0; i < count; i++) {
+            BackendModel model = current[i];
+            Backend backend = new Backend(model.address, model.weight, model.region);
+            backends.add(backend);
+            indexes.put(backend, i);
+        }
+        Change[] schedule = changes.toArray(new Change[0]);
+        Arrays.sort(schedule, (a, b) -> Long.compare(a.atNanos, b.atNanos));
+        for (Change change : schedule) {
+            if (change.backend < 0 || change.backend >= count) {
+                throw new IllegalArgumentException("No backend " + change.backend + " to change.");
+            }
+        }
+        now = 0;
+        strategy.update(List.copyOf(backends));
+
+        State state = new State(count);
+        Histogram latency = new Histogram();
+        Histogram[] backendLatency = new Histogram[count];
+        for (int i = 0; i < count; i++) {
+            backendLatency[i] = new Histogram();
+        }
+        Request request = new Request();
+        boolean arriving = workload.next(random, request);
+        int nextChange = 0;
+        long requests = 0;
+        long failures = 0;
+        while (true) {
+            long arrival = arriving ? request.arrivalNanos : Long.MAX_VALUE;
+            long completion = state.size > 0 ? state.times[0] : Long.MAX_VALUE;
+            long change = nextChange < schedule.length ? schedule[nextChange].atNanos : Long.MAX_VALUE;
+            if (change <= arrival && change <= completion) {
+                if (change == Long.MAX_VALUE) {
+                    break;
+                }
+                now = Math.max(now, change);
+                Change applied = schedule[nextChange++];
+                current[applied.backend] = applied.model;
+            } else if (completion <= arrival) {
+                // Completions first on ties, so that an arrival sees the capacity they free
+                now = completion;
+                int backend = state.backends[0] >>> 1;
+                boolean success = (state.backends[0] & 1) == 1;
+                long latencyNanos = now - state.arrivals[0];
+                state.poll();
+                latency.record(latencyNanos);
+                backendLatency[backend].record(latencyNanos);
+                requests++;
+                if (!success) {
+                    failures++;
+                    state.failures[backend]++;
+                }
+                state.busy[backend]--;
+                strategy.release(backends.get(backend), latencyNanos, success);
+                if (state.queued(backend) > 0) {
+                    long queuedService = state.queuedService(backend);
+                    long queuedArrival = state.dequeue(backend);
+                    start(state, current[backend], backend, queuedArrival, queuedService, random);
+                }
+            } else {
+                now = Math.max(now, arrival);
+                Backend picked = strategy.acquire(request.clientKey);
+                Integer backend = indexes.get(picked);
+                if (backend == null) {
+                    throw new IllegalStateException("Strategy picked a backend it was not given: " + picked);
+                }
+                state.requests[backend]++;
+                if (state.busy[backend] < current[backend].concurrency) {
+                    start(state, current[backend], backend, now, request.serviceNanos, random);
+                } else {
+                    state.enqueue(backend, now, request.serviceNanos);
+                }
+                arriving = workload.next(random, request);
+            }
+        }
+
+        List<BackendResult> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double capacity = (double) models.get(i).concurrency * Math.max(1, now);
+            results.add(new BackendResult(models.get(i).address, state.requests[i], state.failures[i],
+                    state.maxQueue[i], state.busyNanos[i] / capacity, backendLatency[i]));
+        }
+        return new Result(requests, failures, now, System.nanoTime() - started, latency, List.copyOf(results));
+    }
+
+    private void start(State state, BackendModel model, int backend, long arrival, long serviceNanos,
+            SplittableRandom random) {
+        boolean success = model.failureRate == 0 || random.nextDouble() >= model.failureRate;
+        long service = !success ? model.failureNanos
+                : serviceNanos >= 0 ? serviceNanos : model.serviceTime.sample(random);
+        state.busy[backend]++;
+        state.busyNanos[backend] += service;
+        state.push(now + service, backend << 1 | (success ? 1 : 0), arrival);
+    }
+
+    /**
+     * Mutable state of a run in primitive arrays: a min-heap of requests in service keyed by
+     * completion time, and a FIFO queue of waiting requests per backend.
+     */
+    private static final class State {
+        // Heap of requests in service: completion time, backend << 1 | success, arrival time
+        long[] times = new long[256];
+        int[] backends = new int[256];
+        long[] arrivals = new long[256];
+        int size;
+
+        final int[] busy;
+        final long[] busyNanos;
+        final long[] requests;
+        final long[] failures;
+        final int[] maxQueue;
+        // Ring buffers of arrival and service times of waiting requests per backend
+        final long[][] queueArrivals;
+        final long[][] queueServices;
+        final int[] heads;
+        final int[] tails;
+
+        State(int backendCount) {
+            busy = new int[backendCount];
+            busyNanos = new long[backendCount];
+            requests = new long[backendCount];
+            failures = new long[backendCount];
+            maxQueue = new int[backendCount];
+            queueArrivals = new long[backendCount][16];
+            queueServices = new long[backendCount][16];
+            heads = new int[backendCount];
+            tails = new int[backendCount];
+        }
+
+        void push(long time, int backend, long arrival) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                backends = Arrays.copyOf(backends, size * 2);
+                arrivals = Arrays.copyOf(arrivals, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (times[parent] <= time) {
+                    break;
+                }
+                times[i] = times[parent];
+                backends[i] = backends[parent];
+                arrivals[i] = arrivals[parent];
+                i = parent;
+            }
+            times[i] = time;
+            backends[i] = backend;
+            arrivals[i] = arrival;
+        }
+
+        // Remove the earliest completion
+        void poll() {
+            size--;
+            long time = times[size];
+            int backend = backends[size];
+            long arrival = arrivals[size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && times[child + 1] < times[child]) {
+                    child++;
+                }
+                if (time <= times[child]) {
+                    break;
+                }
+                times[i] = times[child];
+                backends[i] = backends[child];
+                arrivals[i] = arrivals[child];
+                i = child;
+            }
+            times[i] = time;
+            backends[i] = backend;
+            arrivals[i] = arrival;
+        }
+
+        int queued(int backend) {
+            return tails[backend] - heads[backend];
+        }
+
+        void enqueue(int backend, long arrival, long service) {
+            int length = queueArrivals[backend].length;
+            if (queued(backend) == length) {
+                queueArrivals[backend] = grow(queueArrivals[backend], heads[backend]);
+                queueServices[backend] = grow(queueServices[backend], heads[backend]);
+                tails[backend] -= heads[backend];
+                heads[backend] = 0;
+                length *= 2;
+            }
+            int slot = tails[backend]++ & (length - 1);
+            queueArrivals[backend][slot] = arrival;
+            queueServices[backend][slot] = service;
+            maxQueue[backend] = Math.max(maxQueue[backend], queued(backend));
+        }
+
+        long queuedService(int backend) {
+            return queueServices[backend][heads[backend] & (queueServices[backend].length - 1)];
+        }
+
+        long dequeue(int backend) {
+            return queueArrivals[backend][heads[backend]++ & (queueArrivals[backend].length - 1)];
+        }
+
+        // Double a full ring buffer, moving its head to the front
+        private static long[] grow(long[] ring, int head) {
+            long[] grown = new long[ring.length * 2];
+            int start = head & (ring.length - 1);
+            System.arraycopy(ring, start, grown, 0, ring.length - start);
+            System.arraycopy(ring, 0, grown, ring.length - start, start);
+            return grown;
+        }
+    }
+
+    /**
+     * @return Nanoseconds as a short human-readable duration, e.g. "1.50 ms"
+     */
+    static String formatNanos(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + " ns";
+        } else if (nanos < 1_000_000) {
+            return String.format("%.2f us", nanos / 1e3);
+        } else if (nanos < 1_000_000_000) {
+            return String.format("%.2f ms", nanos / 1e6);
+        }
+        return String.format("%.2f s", nanos / 1e9);
+    }
+}
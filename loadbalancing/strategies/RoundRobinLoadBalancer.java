@@ -1,23 +1,96 @@
 package strategies;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-public class RoundRobinLoadBalancer {
+public class RoundRobinLoadBalancer implements LoadBalancer {
 
-    // List of backend servers
-    private final List<String> servers;
+    // Longs between two stripes, so that every stripe has a cache line of its own
+    private static final int PADDING = 16;
 
-    // Atomic counter for round-robin strategy
-    private final AtomicInteger counter = new AtomicInteger(0);
+    // Snapshot of the backend servers, replaced as a whole when membership changes
+    private volatile Backend[] servers;
+
+    // One counter per stripe; threads are spread over the stripes by their id
+    private final AtomicLongArray counters;
+    private final int stripeMask;
 
     public RoundRobinLoadBalancer(List<String> servers) {
-        this.servers = servers;
+        this(servers, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Use at least the given number of counter stripes, rounded up to a power of two
+    public RoundRobinLoadBalancer(List<String> servers, int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Stripes must be at least 1");
+        }
+        this.servers = servers.stream().map(Backend::new).toArray(Backend[]::new);
+        int count = Integer.highestOneBit(Math.min(stripes, 1 << 10) * 2 - 1);
+        this.stripeMask = count - 1;
+        this.counters = new AtomicLongArray(count * PADDING);
     }
 
-    // Get the next server using round-robin
+    // Get the next server using round-robin. Each stripe cycles through all servers on its
+    // own, starting at a different offset, so threads do not contend on one counter and
+    // the servers still get an even share overall.
     public String getNextServer() {
-        int index = counter.getAndIncrement() % servers.size();
-        return servers.get(index);
+        return select(null).getAddress();
+    }
+
+    @Override
+    public Backend select(String clientKey) {
+        Backend[] current = servers;
+        if (current.length == 0) {
+            throw new IllegalStateException("No servers available");
+        }
+        int stripe = stripe();
+        long next = counters.getAndIncrement(stripe * PADDING);
+        // Long counters do not wrap in practice, and floorMod stays non-negative if they do
+        long offset = (long) stripe * current.length / (stripeMask + 1);
+        return current[(int) Math.floorMod(next + offset, (long) current.length)];
+    }
+
+    @Override
+    public synchronized void update(List<Backend> backends) {
+        servers = backends.toArray(new Backend[0]);
+    }
+
+    // Add a server at runtime; requests in flight keep using the previous snapshot
+    public synchronized void addServer(String server) {
+        Backend[] current = servers;
+        Backend[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Backend(server);
+        servers = updated;
+    }
+
+    // Remove a server at runtime; returns false if it was not part of the rotation
+    public synchronized boolean removeServer(String server) {
+        Backend[] current = servers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getAddress().equals(server)) {
+                Backend[] updated = new Backend[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                servers = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<String> getServers() {
+        List<String> addresses = new ArrayList<>();
+        for (Backend backend : servers) {
+            addresses.add(backend.getAddress());
+        }
+        return addresses;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().threadId();
+        // Fibonacci hashing spreads consecutive thread ids over the stripes
+        return (int) ((id * 0x9e3779b97f4a7c15L) >>> 40) & stripeMask;
     }
 
     public static void main(String[] args) {
@@ -32,5 +105,53 @@ public class RoundRobinLoadBalancer {
             String server = loadBalancer.getNextServer();
             System.out.println("Forwarding request " + (i + 1) + " to: " + server);
         }
+
+        // Change membership while the load balancer is in use
+        System.out.println("\nAdding http://server4.com and removing http://server2.com...");
+        loadBalancer.addServer("http://server4.com");
+        loadBalancer.removeServer("http://server2.com");
+        for (int i = 0; i < 6; i++) {
+            String server = loadBalancer.getNextServer();
+            System.out.println("Forwarding request " + (i + 1) + " to: " + server);
+        }
+
+        // Threads on different stripes must still spread their picks evenly
+        List<String> sixteen = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            sixteen.add("10.0.0." + (i + 1));
+        }
+        double maxOverMean = maxOverMean(new RoundRobinLoadBalancer(sixteen, 4), sixteen, 4);
+        System.out.printf("%nBusiest of 16 servers over the mean with 4 threads: %.4f%n", maxOverMean);
+        if (maxOverMean > 1.01) {
+            throw new IllegalStateException("Uneven spread: " + maxOverMean);
+        }
+    }
+
+    // Busiest server's share of picks made by the given number of threads over the mean
+    private static double maxOverMean(RoundRobinLoadBalancer loadBalancer, List<String> servers, int threads) {
+        int picksPerThread = 100_000;
+        AtomicLongArray picks = new AtomicLongArray(servers.size());
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < picksPerThread; i++) {
+                    picks.incrementAndGet(servers.indexOf(loadBalancer.getNextServer()));
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while counting picks", e);
+            }
+        }
+        long max = 0;
+        for (int i = 0; i < picks.length(); i++) {
+            max = Math.max(max, picks.get(i));
+        }
+        return max / ((double) threads * picksPerThread / servers.size());
     }
 }
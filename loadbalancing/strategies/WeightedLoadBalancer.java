@@ -1,49 +1,170 @@
 package strategies;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class WeightedLoadBalancer {
+public class WeightedLoadBalancer implements LoadBalancer {
 
-    private final List<String> servers; // List of servers
-    private final List<Integer> weights; // List of server weights
-    private final List<Integer> currentWeights; // Current weights for each server
-    private int totalWeight; // Sum of all weights
-    private int lastServerIndex = -1; // Index of the last selected server
+    // Upper bound on the sum of all weights, which is the length of the schedule
+    public static final int MAX_TOTAL_WEIGHT = 1 << 20;
+
+    // Immutable selection order covering one full cycle of the weights
+    private static final class Schedule {
+        final List<Backend> servers; // List of servers
+        final List<Integer> weights; // Weight of each server
+        final Backend[] order; // Server for each position of the cycle
+
+        Schedule(List<Backend> servers, List<Integer> weights, Backend[] order) {
+            this.servers = servers;
+            this.weights = weights;
+            this.order = order;
+        }
+    }
+
+    private volatile Schedule schedule; // Replaced as a whole when servers or weights change
+    private final AtomicLong counter = new AtomicLong(); // Position in the schedule
+    // Weights set at runtime by address, kept across update; guarded by this
+    private final Map<String, Integer> runtimeWeights = new HashMap<>();
+
+    // No servers until update, e.g. for a BackendPool to fill
+    public WeightedLoadBalancer() {
+        this.schedule = buildSchedule(List.of(), List.of());
+    }
 
     public WeightedLoadBalancer(List<String> servers, List<Integer> weights) {
         if (servers.size() != weights.size()) {
             throw new IllegalArgumentException("Servers and weights must have the same size.");
         }
-        this.servers = servers;
-        this.weights = weights;
-        this.currentWeights = new ArrayList<>(weights.size());
-
-        // Initialize current weights and calculate total weight
-        totalWeight = 0;
-        for (int weight : weights) {
-            currentWeights.add(0);
-            totalWeight += weight;
+        List<Backend> backends = new ArrayList<>();
+        for (int i = 0; i < servers.size(); i++) {
+            backends.add(new Backend(servers.get(i), weights.get(i), null));
         }
+        this.schedule = buildSchedule(List.copyOf(backends), List.copyOf(weights));
     }
 
-    // Get the next server using weighted round-robin logic
+    // Get the next server using weighted round-robin logic. Lock-free and allocation-free:
+    // one atomic increment indexes the precomputed schedule.
     public String getNextServer() {
-        while (true) {
-            lastServerIndex = (lastServerIndex + 1) % servers.size();
-
-            // Increment the current weight of the selected server
-            currentWeights.set(lastServerIndex,
-                    currentWeights.get(lastServerIndex) + weights.get(lastServerIndex));
-            System.out.println("Server: " + servers.get(lastServerIndex) + " Current weight: "
-                    + currentWeights.get(lastServerIndex));
-            // Check if this server should handle the request
-            if (currentWeights.get(lastServerIndex) >= totalWeight) {
-                currentWeights.set(lastServerIndex, currentWeights.get(lastServerIndex) - totalWeight);
-                System.out.println("Selected server: " + servers.get(lastServerIndex) + " with current weight "
-                        + currentWeights.get(lastServerIndex));
-                return servers.get(lastServerIndex);
+        return select(null).getAddress();
+    }
+
+    @Override
+    public Backend select(String clientKey) {
+        Backend[] order = schedule.order;
+        if (order.length == 0) {
+            throw new IllegalStateException("No servers available");
+        }
+        return order[(int) (counter.getAndIncrement() % order.length)];
+    }
+
+    // Use the given backends. A server keeps the weight last set through setWeight or
+    // setWeights, also if it was out of rotation in between; any other server starts with
+    // its Backend weight.
+    @Override
+    public synchronized void update(List<Backend> backends) {
+        List<Integer> weights = new ArrayList<>();
+        for (Backend backend : backends) {
+            weights.add(runtimeWeights.getOrDefault(backend.getAddress(), backend.getWeight()));
+        }
+        schedule = buildSchedule(List.copyOf(backends), List.copyOf(weights));
+    }
+
+    // Change the weight of one server while traffic keeps flowing. A weight of 0 takes the
+    // server out of rotation.
+    public synchronized void setWeight(String server, int weight) {
+        Schedule current = schedule;
+        List<Integer> weights = new ArrayList<>(current.weights);
+        weights.set(indexOf(current, server), weight);
+        schedule = buildSchedule(current.servers, List.copyOf(weights));
+        runtimeWeights.put(server, weight);
+    }
+
+    // Replace all weights at once
+    public synchronized void setWeights(List<Integer> weights) {
+        Schedule current = schedule;
+        if (current.servers.size() != weights.size()) {
+            throw new IllegalArgumentException("Servers and weights must have the same size.");
+        }
+        schedule = buildSchedule(current.servers, List.copyOf(weights));
+        for (int i = 0; i < weights.size(); i++) {
+            runtimeWeights.put(current.servers.get(i).getAddress(), weights.get(i));
+        }
+    }
+
+    public int getWeight(String server) {
+        Schedule current = schedule;
+        return current.weights.get(indexOf(current, server));
+    }
+
+    private static int indexOf(Schedule schedule, String server) {
+        for (int i = 0; i < schedule.servers.size(); i++) {
+            if (schedule.servers.get(i).getAddress().equals(server)) {
+                return i;
             }
         }
+        throw new IllegalArgumentException("Unknown server: " + server);
+    }
+
+    // Interleave the servers so that each one's picks are spread evenly over the cycle, like
+    // nginx's smooth weighted round robin: the k-th pick of a server with weight w is placed
+    // at (k + 1/2) / w, and positions are merged in order with a heap over the servers.
+    private static Schedule buildSchedule(List<Backend> servers, List<Integer> weights) {
+        long total = 0;
+        int[] weight = new int[weights.size()];
+        for (int i = 0; i < weight.length; i++) {
+            weight[i] = weights.get(i);
+            if (weight[i] < 0) {
+                throw new IllegalArgumentException("Weights cannot be negative.");
+            }
+            total += weight[i];
+        }
+        if (total == 0 && !servers.isEmpty()) {
+            throw new IllegalArgumentException("At least one weight must be positive.");
+        }
+        if (total > MAX_TOTAL_WEIGHT) {
+            throw new IllegalArgumentException("Weights cannot add up to more than " + MAX_TOTAL_WEIGHT + ".");
+        }
+        if (servers.isEmpty()) {
+            return new Schedule(servers, weights, new Backend[0]);
+        }
+        // Dividing by the greatest common divisor keeps the cycle short without changing the ratios
+        int divisor = 0;
+        for (int w : weight) {
+            divisor = gcd(divisor, w);
+        }
+        int[] picks = new int[weight.length]; // Picks of each server placed so far
+        PriorityQueue<Integer> next = new PriorityQueue<>((a, b) -> {
+            // Compare (2 * picks[a] + 1) / weight[a] with the same for b without division
+            int order = Long.compare((2L * picks[a] + 1) * weight[b], (2L * picks[b] + 1) * weight[a]);
+            return order != 0 ? order : a - b;
+        });
+        for (int i = 0; i < weight.length; i++) {
+            if (weight[i] > 0) {
+                weight[i] /= divisor;
+                next.add(i);
+            }
+        }
+        Backend[] order = new Backend[(int) (total / divisor)];
+        for (int position = 0; position < order.length; position++) {
+            int server = next.poll();
+            order[position] = servers.get(server);
+            if (++picks[server] < weight[server]) {
+                next.add(server);
+            }
+        }
+        return new Schedule(servers, weights, order);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
 
     public static void main(String[] args) {
@@ -59,5 +180,27 @@ public class WeightedLoadBalancer {
             String server = loadBalancer.getNextServer();
             System.out.println("Forwarding request " + (i + 1) + " to: " + server);
         }
+
+        // Shift traffic away from server1 without stopping the load balancer
+        System.out.println("\nSetting the weight of http://server1.com to 1...");
+        loadBalancer.setWeight("http://server1.com", 1);
+        for (int i = 0; i < 6; i++) {
+            String server = loadBalancer.getNextServer();
+            System.out.println("Forwarding request " + (i + 1) + " to: " + server);
+        }
+
+        // A new backend list, as BackendPool publishes on every membership or health
+        // change, keeps the weight set at runtime
+        List<Backend> backends = new ArrayList<>();
+        for (int i = 0; i < servers.size(); i++) {
+            backends.add(new Backend(servers.get(i), weights.get(i), null));
+        }
+        backends.add(new Backend("http://server4.com", 2, null));
+        loadBalancer.update(backends);
+        System.out.println("\nAdded http://server4.com with weight 2, weight of http://server1.com is still "
+                + loadBalancer.getWeight("http://server1.com"));
+        if (loadBalancer.getWeight("http://server1.com") != 1 || loadBalancer.getWeight("http://server4.com") != 2) {
+            throw new IllegalStateException("Runtime weight lost on update");
+        }
     }
 }
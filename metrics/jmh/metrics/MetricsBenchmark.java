@@ -0,0 +1,70 @@
+package metrics;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of the instrumentation on the hot paths of the store and the load balancers: a
+// counter increment, a histogram record, and timing a call the way the store's get and put
+// do it, once for every call and once for one call in 64. Each operation draws a random
+// number like the baseline does, so its cost is its average time minus the baseline's.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private static final int SAMPLE_RATE = 64;
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter counter = metrics.counter("benchmark_total", "Counter under test");
+    private final Metrics.Histogram histogram = metrics.histogram("benchmark_seconds", "Histogram under test");
+    private final Metrics.Histogram timed = metrics.histogram("benchmark_timed_seconds", "Histogram fed by timing");
+
+    @Benchmark
+    public int baseline() {
+        return ThreadLocalRandom.current().nextInt();
+    }
+
+    @Benchmark
+    public int counter() {
+        counter.increment();
+        return ThreadLocalRandom.current().nextInt();
+    }
+
+    @Benchmark
+    public int histogram() {
+        int value = ThreadLocalRandom.current().nextInt();
+        histogram.record(value & 0xFFFFF);
+        return value;
+    }
+
+    @Benchmark
+    public int timedEveryCall() {
+        long start = System.nanoTime();
+        int value = ThreadLocalRandom.current().nextInt();
+        timed.record(System.nanoTime() - start);
+        return value;
+    }
+
+    @Benchmark
+    public int timedSampled() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextInt(SAMPLE_RATE) != 0) {
+            return random.nextInt();
+        }
+        long start = System.nanoTime();
+        int value = random.nextInt();
+        timed.record(System.nanoTime() - start);
+        return value;
+    }
+}
@@ -0,0 +1,268 @@
+package metrics;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Pull-based metrics registry shared by the KV store and the load balancers. Hot paths
+// only bump LongAdders, directly or through a Counter or Histogram; everything else,
+// including per-node or per-backend counts kept anyway, is read by a collector when a
+// snapshot is taken. Snapshots come as a map or as the Prometheus text exposition format,
+// which can be served as is on a /metrics endpoint.
+public final class Metrics {
+
+    // Kind of a metric family, as named in the Prometheus text format
+    public enum Type {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    // Reports the current samples of one metric family when a snapshot is taken
+    @FunctionalInterface
+    public interface Collector {
+        void collect(Samples samples);
+    }
+
+    // Receives the samples of one family. labels is a Prometheus label set without the
+    // braces, e.g. node="cache-0" as built by label, or empty.
+    public interface Samples {
+        void add(String labels, double value);
+
+        void add(String labels, Histogram histogram);
+    }
+
+    // Monotonic counter
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Durations in nanoseconds counted in power-of-two buckets from about 1 us to about
+    // 69 s, plus one for everything longer. Recording is two LongAdder increments and no
+    // clock reads, so callers decide how often timing is worth it.
+    public static final class Histogram {
+        // Upper bounds of the first and the last finite bucket, as powers of two
+        private static final int MIN_EXPONENT = 10;
+        private static final int MAX_EXPONENT = 36;
+
+        private final LongAdder[] buckets = new LongAdder[MAX_EXPONENT - MIN_EXPONENT + 2];
+        private final LongAdder sumNanos = new LongAdder();
+
+        public Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            // Smallest exponent with nanos <= 2^exponent
+            int exponent = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos - 1));
+            buckets[Math.min(Math.max(exponent - MIN_EXPONENT, 0), buckets.length - 1)].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            long total = 0;
+            for (LongAdder bucket : buckets) {
+                total += bucket.sum();
+            }
+            return total;
+        }
+
+        public long sumNanos() {
+            return sumNanos.sum();
+        }
+
+        // Upper bound in nanoseconds of the bucket holding the given share of recorded
+        // durations, Long.MAX_VALUE if it is the overflow bucket and 0 if nothing was recorded
+        public long percentile(double quantile) {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private long[] counts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        private static long upperBound(int bucket) {
+            int exponent = MIN_EXPONENT + bucket;
+            return exponent > MAX_EXPONENT ? Long.MAX_VALUE : 1L << exponent;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        final Collector collector;
+
+        Family(String name, String help, Type type, Collector collector) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.collector = collector;
+        }
+    }
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+
+    // Register a family whose samples the collector reports on every snapshot. Names
+    // follow the Prometheus conventions: counters end in _total, histograms of durations in
+    // _seconds.
+    public synchronized void register(String name, String help, Type type, Collector collector) {
+        if (!name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+            throw new IllegalArgumentException("Invalid metric name: " + name);
+        }
+        for (Family family : families) {
+            if (family.name.equals(name)) {
+                throw new IllegalArgumentException("Metric already registered: " + name);
+            }
+        }
+        families.add(new Family(name, help, type, collector));
+    }
+
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter();
+        register(name, help, Type.COUNTER, samples -> samples.add("", counter.get()));
+        return counter;
+    }
+
+    public Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        register(name, help, Type.HISTOGRAM, samples -> samples.add("", histogram));
+        return histogram;
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value) {
+        register(name, help, Type.GAUGE, samples -> samples.add("", value.getAsDouble()));
+    }
+
+    // Label set with one label, escaping the value as the text format requires
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    // Current value of every sample keyed by name and labels, e.g.
+    // kv_node_hits_total{node="cache-0"}. A histogram contributes its _count and _sum in
+    // seconds.
+    public Map<String, Double> snapshot() {
+        Map<String, Double> snapshot = new LinkedHashMap<>();
+        for (Family family : families) {
+            family.collector.collect(new Samples() {
+                @Override
+                public void add(String labels, double value) {
+                    snapshot.put(family.name + braces(labels), value);
+                }
+
+                @Override
+                public void add(String labels, Histogram histogram) {
+                    snapshot.put(family.name + "_count" + braces(labels), (double) histogram.count());
+                    snapshot.put(family.name + "_sum" + braces(labels), histogram.sumNanos() / 1e9);
+                }
+            });
+        }
+        return snapshot;
+    }
+
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        try {
+            writePrometheus(out);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    // Write every family in the Prometheus text exposition format, version 0.0.4
+    public void writePrometheus(Appendable out) throws IOException {
+        IOException[] failure = new IOException[1];
+        for (Family family : families) {
+            out.append("# HELP ").append(family.name).append(' ')
+                    .append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ')
+                    .append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+            family.collector.collect(new Samples() {
+                @Override
+                public void add(String labels, double value) {
+                    line(family.name, labels, value);
+                }
+
+                @Override
+                public void add(String labels, Histogram histogram) {
+                    long[] counts = histogram.counts();
+                    long cumulative = 0;
+                    String separator = labels.isEmpty() ? "" : labels + ",";
+                    for (int i = 0; i < counts.length; i++) {
+                        cumulative += counts[i];
+                        long bound = Histogram.upperBound(i);
+                        String le = bound == Long.MAX_VALUE ? "+Inf" : format(bound / 1e9);
+                        line(family.name + "_bucket", separator + "le=\"" + le + "\"", cumulative);
+                    }
+                    line(family.name + "_sum", labels, histogram.sumNanos() / 1e9);
+                    line(family.name + "_count", labels, cumulative);
+                }
+
+                private void line(String name, String labels, double value) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        out.append(name).append(braces(labels)).append(' ').append(format(value)).append('\n');
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String format(double value) {
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.isNaN(value) ? "NaN" : Double.toString(value);
+    }
+}